@@ -37,16 +37,45 @@ public class Config {
     public static String HS_TO_WRITE = "hybris.timeoutwrite";
     public static String HS_TO_READ = "hybris.timeoutread";
     public static String HS_GC = "hybris.gc";
+    public static String HS_GC_RATE = "hybris.gc.rate";
+    public static String HS_GC_PARALLELISM = "hybris.gc.parallelism";
+    public static String HS_GC_PAGESIZE = "hybris.gc.pagesize";
+    public static String HS_GC_INTERVAL = "hybris.gc.interval";
+    public static String HS_GC_MAXLOAD = "hybris.gc.maxload";
+    public static String HS_HASH_LEAFSIZE = "hybris.hash.leafsize";
+    public static String HS_SCRUB_RATE = "hybris.scrub.rate";
+    public static String HS_REPAIR_RATE = "hybris.repair.rate";
 
     public static String HS_CRYPTO = "hybris.crypto";
+    public static String HS_CRYPTO_SEGMENTSIZE = "hybris.crypto.segmentsize";
+
+    public static String HS_COMPRESSION = "hybris.compression";
+    public static String HS_COMPRESSION_MAXRATIO = "hybris.compression.maxratio";
     
     public static String ECODING = "hybris.erasurecoding";
     public static String ECODING_K = "hybris.erasurecoding.k";
+    public static String ECODING_CODEC = "hybris.erasurecoding.codec";
+    public static String ECODING_SCHEME = "hybris.erasurecoding.scheme";
+    public static String ECODING_STRIPESIZE = "hybris.erasurecoding.stripesize";
+    public static String ECODING_OVERFETCH = "hybris.erasurecoding.overfetch";
+    public static String ECODING_WRITEQUORUM = "hybris.erasurecoding.writequorum";
 
     public static String CACHE_ENABLED = "hybris.cache";
     public static String CACHE_ADDRESS = "hybris.cache.address";
     public static String CACHE_EXP = "hybris.cache.exp";
     public static String CACHE_POLICY = "hybris.cache.policy";
+    public static String CACHE_TIMEOUT = "hybris.cache.timeout";
+    public static String CACHE_WINDOW = "hybris.cache.window";
+    public static String CACHE_MAXITEMSIZE = "hybris.cache.maxitemsize";
+    public static String CACHE_MINFREQUENCY = "hybris.cache.minfrequency";
+    public static String CACHE_RULES = "hybris.cache.rules";
+    public static String CACHE_NEARSIZE = "hybris.cache.nearsize";
+    public static String CACHE_OFFHEAPSIZE = "hybris.cache.offheapsize";
+    public static String CACHE_OFFHEAPFILE = "hybris.cache.offheapfile";
+    public static String CACHE_DISKDIR = "hybris.cache.diskdir";
+    public static String CACHE_DISKSIZE = "hybris.cache.disksize";
+    public static String CACHE_NEGATIVESIZE = "hybris.cache.negativesize";
+    public static String CACHE_NEGATIVETTL = "hybris.cache.negativettl";
 
     public static String MDS = "hybris.mds";
     public static String MDS_ADDR = "hybris.mds.address";
@@ -84,6 +113,16 @@ public class Config {
         return hybrisProperties.getProperty(key);
     }
 
+    /**
+     * Returns the value of an optional property, or the supplied
+     * default if either the property or the whole configuration is missing.
+     */
+    public String getProperty (String key, String defaultValue) {
+        if (hybrisProperties == null)
+            return defaultValue;
+        return hybrisProperties.getProperty(key, defaultValue);
+    }
+
     /* --------------- Accounts properties management --------------- */
 
     public synchronized void loadAccountsProperties(String propertiesFile) throws IOException {
@@ -15,14 +15,18 @@
  */
 package fr.eurecom.hybris;
 
-import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import eu.vandertil.jerasure.jni.Jerasure;
-import eu.vandertil.jerasure.jni.ReedSolomon;
+import fr.eurecom.hybris.ec.CodingScheme;
+import fr.eurecom.hybris.ec.ErasureCodec;
+import fr.eurecom.hybris.ec.JavaReedSolomonCodec;
+import fr.eurecom.hybris.ec.JerasureBitmatrixCodec;
+import fr.eurecom.hybris.ec.JerasureCodec;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 
 /**
@@ -33,10 +37,12 @@ public class EcManager {
     
     private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
     
-    private static String EC_LIB_NAME = "Jerasure.jni"; 
-    private static int PACKET_SIZE = 8;    // 256 B minimum encoded block size
-    private static int WORD_SIZE = 8;
-    
+    public static String CODEC_JERASURE = "jerasure";
+    public static String CODEC_JAVA = "java";
+
+    private final Map<CodingScheme, ErasureCodec> codecs = new EnumMap<CodingScheme, ErasureCodec>(CodingScheme.class);
+    private final CodingScheme scheme;
+
     public enum ChunkState { KO, PENDING, OK };
     
     public class EcChunk {
@@ -60,102 +66,284 @@ public class EcManager {
     }
     
     public EcManager() {
+        this(CODEC_JERASURE);
+    }
+
+    /**
+     * @param codecName - CODEC_JERASURE or CODEC_JAVA; if the Jerasure native
+     *                  library cannot be loaded, the pure-Java codec is used instead.
+     */
+    public EcManager(String codecName) {
+        this(codecName, CodingScheme.REED_SOL_VAN);
+    }
+
+    /**
+     * @param codecName - Reed-Solomon codec, see {@link #EcManager(String)}
+     * @param scheme - scheme used to encode new values; the bitmatrix schemes
+     *                  (Cauchy, Liberation) are only available with the Jerasure library.
+     */
+    public EcManager(String codecName, CodingScheme scheme) {
+        this.codecs.put(CodingScheme.REED_SOL_VAN, createCodec(codecName));
+        for (CodingScheme s : new CodingScheme[] { CodingScheme.CAUCHY_GOOD, CodingScheme.LIBERATION })
+            try {
+                this.codecs.put(s, new JerasureBitmatrixCodec(s));
+            } catch (UnsatisfiedLinkError | SecurityException e) {
+                break;
+            }
+        if (!this.codecs.containsKey(scheme)) {
+            logger.warn("Erasure coding scheme {} needs the Jerasure library, using {} instead.", 
+                    scheme, CodingScheme.REED_SOL_VAN);
+            scheme = CodingScheme.REED_SOL_VAN;
+        }
+        this.scheme = scheme;
+    }
+
+    private static ErasureCodec createCodec(String codecName) {
+        if (CODEC_JAVA.equalsIgnoreCase(codecName))
+            return new JavaReedSolomonCodec();
+        if (!CODEC_JERASURE.equalsIgnoreCase(codecName))
+            throw new IllegalArgumentException("Unknown erasure codec " + codecName);
         try {
-            loadNativeLibrary();
-        } catch(Throwable t) {
-            logger.error("Could not load the erasure coding library.");
-            throw t;
+            ErasureCodec codec = new JerasureCodec();
+            logger.debug("Correctly loaded libJerasure.jni");
+            return codec;
+        } catch (UnsatisfiedLinkError | SecurityException e) {
+            logger.warn("Could not load the Jerasure library, falling back to the Java erasure codec.");
+            return new JavaReedSolomonCodec();
         }
     }
+
+    public ErasureCodec getCodec() {
+        return this.codecs.get(CodingScheme.REED_SOL_VAN);
+    }
     
-    private void loadNativeLibrary() {
-        System.loadLibrary(EC_LIB_NAME);
-        logger.debug("Correctly loaded libJerasure.jni");
+    /**
+     * Returns the configured coding scheme if it can code k data blocks
+     * into m coding blocks (e.g. Liberation only supports m = 2),
+     * Reed-Solomon otherwise.
+     */
+    public CodingScheme getScheme(int k, int m) {
+        if (this.scheme.supports(k, m))
+            return this.scheme;
+        logger.debug("Erasure coding scheme {} does not support k={}, m={}, using {}.", 
+                this.scheme, k, m, CodingScheme.REED_SOL_VAN);
+        return CodingScheme.REED_SOL_VAN;
     }
     
-    private byte[] addPaddingIfNeeded(byte[] data, int blockSize) {
-        if (data.length < blockSize) {
-            data = Arrays.copyOf(data, blockSize);
+    private ErasureCodec getCodec(CodingScheme scheme) throws HybrisException {
+        ErasureCodec codec = this.codecs.get(scheme);
+        if (codec == null) {
+            logger.error("Erasure coding scheme {} is not available", scheme);
+            throw new HybrisException("Erasure coding scheme " + scheme + " is not available");
         }
-        return data;
+        return codec;
     }
     
-    private int[] getCodingMatrix(int k, int m) {
-        return ReedSolomon.reed_sol_vandermonde_coding_matrix(k, m, WORD_SIZE);
+    /**
+     * Rounds the size up to the next multiple of the coding alignment,
+     * i.e. k blocks of the block alignment of the codec.
+     */
+    private static int getPaddedSize(ErasureCodec codec, int originalSize, int k, int m) {
+        long alignment = (long) k * codec.getBlockAlignment(k, m);
+        return (int) ((originalSize + alignment - 1) / alignment * alignment);
     }
     
-    private int getPaddedSize(int originalSize, int k) {
-        int newSize = originalSize;
-        if (originalSize % (k * WORD_SIZE * PACKET_SIZE * 4) != 0)
-            while (newSize % ( k * WORD_SIZE * PACKET_SIZE * 4) != 0) 
-                newSize++;
-        return newSize;
+    /**
+     * Splits data into k data blocks and computes m coding blocks.
+     * Each block is allocated once and filled with a bulk copy; the tail
+     * of the last data blocks is left zeroed as padding.
+     * @return k data blocks followed by m coding blocks
+     */
+    public byte[][] encode(byte[] data, int k, int m) {
+        try {
+            return this.encode(data, data.length, k, m, CodingScheme.REED_SOL_VAN);
+        } catch (HybrisException e) {
+            throw new IllegalStateException(e);     // Reed-Solomon is always available
+        }
     }
     
-    public byte[][] encode(byte[] data, int k, int m) {
+    /**
+     * Encodes the first length bytes of data with the given scheme.
+     * @see #encode(byte[], int, int)
+     * @throws HybrisException if the scheme is not available
+     */
+    public byte[][] encode(byte[] data, int length, int k, int m, CodingScheme scheme) throws HybrisException {
         
-        int paddedSize = getPaddedSize(data.length, k);
-        data = addPaddingIfNeeded(data, paddedSize);
-        int blockSize = paddedSize / k;
-        
-        byte[][] dataBlocks = new byte[k][blockSize];
+        ErasureCodec codec = this.getCodec(scheme);
+        int blockSize = getPaddedSize(codec, length, k, m) / k;
+        byte[][] dataAndCoding = new byte[k+m][blockSize];
         for (int i = 0; i < k; i++) {
-            dataBlocks[i] = new byte[blockSize];
-            dataBlocks[i] = Arrays.copyOfRange(data, i*blockSize, i*blockSize + blockSize);
+            int blockLength = Math.min(blockSize, length - i * blockSize);
+            if (blockLength > 0)
+                System.arraycopy(data, i * blockSize, dataAndCoding[i], 0, blockLength);
         }
         
-        byte[][] codingBlocks = new byte[m][blockSize];
-        for (int i = 0; i < m; i++)
-            codingBlocks[i] = new byte[blockSize];
-
-        int[] matrix = getCodingMatrix(k, m);
-        Jerasure.jerasure_matrix_encode(k, m, WORD_SIZE, matrix, dataBlocks, codingBlocks, blockSize);
-        
-        byte[][] dataAndCoding = new byte[k+m][blockSize]; 
-        for (int i=0; i<k; i++)
-            dataAndCoding[i] = dataBlocks[i];
-        for (int i=0; i<m; i++)
-            dataAndCoding[k+i] = codingBlocks[i];
+        byte[][] dataBlocks = Arrays.copyOfRange(dataAndCoding, 0, k);
+        byte[][] codingBlocks = Arrays.copyOfRange(dataAndCoding, k, k+m);
+        codec.encode(k, m, dataBlocks, codingBlocks, blockSize);
         
         return dataAndCoding;
     }
     
     public byte[] decode(byte[][] dataBlocks, byte[][] codingBlocks, int[] erasures, int k, int m, int originalSize) throws HybrisException {
+        return this.decode(dataBlocks, codingBlocks, erasures, k, m, originalSize, CodingScheme.REED_SOL_VAN);
+    }
+    
+    public byte[] decode(byte[][] dataBlocks, byte[][] codingBlocks, int[] erasures, int k, int m, 
+            int originalSize, CodingScheme scheme) throws HybrisException {
+        byte[] data = new byte[originalSize];
+        this.decode(this.getCodec(scheme), dataBlocks, codingBlocks, erasures, k, m, data, 0, originalSize);
+        return data;
+    }
+    
+    /**
+     * Decodes length bytes into data, starting at offset.
+     */
+    private void decode(ErasureCodec codec, byte[][] dataBlocks, byte[][] codingBlocks, int[] erasures, 
+            int k, int m, byte[] data, int offset, int length) throws HybrisException {
         
-        int paddedSize = getPaddedSize(originalSize, k);
-        int blockSize = paddedSize / k;
+        int blockSize = getPaddedSize(codec, length, k, m) / k;
         
-        int[] matrix = getCodingMatrix(k, m);
-        boolean res = Jerasure.jerasure_matrix_decode(k, m, WORD_SIZE, matrix, true, erasures, dataBlocks, codingBlocks, blockSize);
+        boolean res = codec.decode(k, m, erasures, dataBlocks, codingBlocks, blockSize);
         
         if (!res) {
             logger.error("Error while decoding");
             throw new HybrisException("Error while decoding");
         }
         
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(originalSize)) {
+        for (int i = 0, total = 0; i < k && total < length; i++) {
+            int blockLength = Math.min(blockSize, length - total);
+            System.arraycopy(dataBlocks[i], 0, data, offset + total, blockLength);
+            total += blockLength;
+        }
+    }
+    
+    /**
+     * Identifies a chunk retrieved from a cloud store by its hash.
+     * @param chunk
+     * @param chunksHashes - the hashes of all chunks of the value
+     * @param chunks - the chunks already retrieved (null if missing)
+     * @return the index of the chunk, or -1 if it does not match any missing chunk
+     */
+    public static int getChunkIndex(byte[] chunk, byte[][] chunksHashes, byte[][] chunks) {
+        byte[] hash = Utils.getHash(chunk);
+        for (int j=0; j<chunksHashes.length; j++)
+            if (chunks[j] == null && Arrays.equals(chunksHashes[j], hash))
+                return j;
+        return -1;
+    }
+    
+    /**
+     * Recomputes all the chunks of a value from at least k available ones.
+     * @param chunks - the chunks of the value, null if missing
+     * @param k
+     * @param originalSize
+     * @param stripeSize - as recorded in the metadata (0 if not striped)
+     * @param scheme
+     * @return the k+m chunks
+     * @throws HybrisException
+     */
+    public byte[][] rebuild(byte[][] chunks, int k, int originalSize, int stripeSize, 
+            CodingScheme scheme) throws HybrisException {
         
-            int total = 0;
-            for (int i = 0; i < k; i++) {
-                if (total + blockSize <= originalSize) {
-                    bos.write(dataBlocks[i]);
-                    total+= blockSize;
-                }
-                else {
-                    for (int j = 0; j < blockSize; j++) {
-                        if (total < originalSize) {
-                            bos.write(dataBlocks[i][j]);
-                            total++;
-                        } else 
-                            break;
-                    }
-                }
+        int n = chunks.length, m = n - k;
+        int chunkLen = 0;
+        for (byte[] chunk : chunks)
+            if (chunk != null) {
+                chunkLen = chunk.length;
+                break;
+            }
+        byte[][] dataBlocks = new byte[k][], codingBlocks = new byte[m][];
+        int[] erasures = new int[n + 1];
+        int idxEr = 0;
+        for (int j=0; j<n; j++) {
+            byte[] chunk = chunks[j];
+            if (chunk == null) {
+                erasures[idxEr++] = j;
+                chunk = new byte[chunkLen];
             }
+            if (j < k)  dataBlocks[j] = chunk;
+            else        codingBlocks[j - k] = chunk;
+        }
+        erasures[idxEr] = -1;
+        
+        if (stripeSize > 0) {
+            byte[] value = this.decodeStriped(dataBlocks, codingBlocks, erasures, k, m, 
+                    originalSize, stripeSize, scheme);
+            return this.encodeStriped(value, k, m, stripeSize, scheme);
+        } else {
+            byte[] value = this.decode(dataBlocks, codingBlocks, erasures, k, m, originalSize, scheme);
+            return this.encode(value, value.length, k, m, scheme);
+        }
+    }
+    
+    /* ------------------------------------- Striped coding ------------------------------------- */
+    
+    /**
+     * Rounds the stripe size up to the coding alignment, so that
+     * only the last stripe of an object needs padding.
+     */
+    public int getStripeSize(int stripeSize, int k, int m, CodingScheme scheme) throws HybrisException {
+        return getPaddedSize(this.getCodec(scheme), stripeSize, k, m);
+    }
+    
+    /**
+     * Returns the size of each chunk of a striped object: chunk i is the
+     * concatenation of the i-th block of every stripe.
+     * @param originalSize
+     * @param k
+     * @param stripeSize - as returned by getStripeSize
+     */
+    public int getStripedChunkSize(int originalSize, int k, int m, int stripeSize, 
+            CodingScheme scheme) throws HybrisException {
+        int fullStripes = originalSize / stripeSize;
+        int lastStripe = originalSize % stripeSize;
+        return fullStripes * (stripeSize / k) + getPaddedSize(this.getCodec(scheme), lastStripe, k, m) / k;
+    }
+    
+    /**
+     * Encodes a whole value stripe by stripe, as streamed by Hybris.
+     * @return the k+m chunks, chunk i being the concatenation of the i-th block of every stripe
+     * @throws HybrisException if the scheme is not available
+     */
+    public byte[][] encodeStriped(byte[] data, int k, int m, int stripeSize, 
+            CodingScheme scheme) throws HybrisException {
+        
+        byte[][] chunks = new byte[k+m][this.getStripedChunkSize(data.length, k, m, stripeSize, scheme)];
+        int chunkOffset = 0;
+        for (int offset = 0; offset < data.length; offset += stripeSize) {
+            int length = Math.min(stripeSize, data.length - offset);
+            byte[][] blocks = this.encode(Arrays.copyOfRange(data, offset, offset + length), length, k, m, scheme);
+            for (int i = 0; i < k + m; i++)
+                System.arraycopy(blocks[i], 0, chunks[i], chunkOffset, blocks[i].length);
+            chunkOffset += blocks[0].length;
+        }
+        return chunks;
+    }
+    
+    /**
+     * Decodes a striped object, stripe by stripe.
+     * Erased chunks must be allocated and are rebuilt in place.
+     * @see #decode(byte[][], byte[][], int[], int, int, int, CodingScheme)
+     */
+    public byte[] decodeStriped(byte[][] dataBlocks, byte[][] codingBlocks, int[] erasures, 
+            int k, int m, int originalSize, int stripeSize, CodingScheme scheme) throws HybrisException {
+        
+        ErasureCodec codec = this.getCodec(scheme);
+        byte[] data = new byte[originalSize];
+        byte[][] stripeData = new byte[k][], stripeCoding = new byte[m][];
+        int chunkOffset = 0;
+        for (int offset = 0; offset < originalSize; offset += stripeSize) {
+            int length = Math.min(stripeSize, originalSize - offset);
+            int blockSize = getPaddedSize(codec, length, k, m) / k;
+            for (int i = 0; i < k; i++)
+                stripeData[i] = Arrays.copyOfRange(dataBlocks[i], chunkOffset, chunkOffset + blockSize);
+            for (int i = 0; i < m; i++)
+                stripeCoding[i] = Arrays.copyOfRange(codingBlocks[i], chunkOffset, chunkOffset + blockSize);
             
-            return bos.toByteArray();
-        } catch (Exception e) {
-            logger.error("I/O Error while writing decoded data to byte array");
-            throw new HybrisException("I/O Error while writing decoded data to byte array");
+            this.decode(codec, stripeData, stripeCoding, erasures, k, m, data, offset, length);
+            chunkOffset += blockSize;
         }
+        return data;
     }
 }
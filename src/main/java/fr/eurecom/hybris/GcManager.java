@@ -16,14 +16,27 @@
 package fr.eurecom.hybris;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.RateLimiter;
+
 import fr.eurecom.hybris.kvs.KvsManager;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 import fr.eurecom.hybris.mds.Metadata;
@@ -38,12 +51,33 @@ public class GcManager {
     
     private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
     
+    private static int DELETE_BATCH_SIZE = 1000;     // keys per batch delete request
+    private static String BATCHGC_CHECKPOINT_PREFIX = "batchgc-";
+    
     private final KvsManager kvs;
     private final Rmds mds;
+    private final int parallelism;      // batch deletes running at the same time on each Kvs
+    private final int pageSize;         // keys listed at a time by batchGc
+    private final Map<Kvs, RateLimiter> rateLimiters;   // [deletions/s] on each Kvs
+    
+    /* progress counters */
+    private final AtomicLong collectedMarkers = new AtomicLong();
+    private final AtomicLong deletedKeys = new AtomicLong();
+    private final AtomicLong failedDeletions = new AtomicLong();
+    private volatile int backlog;       // markers found by the last gc()
        
     public GcManager(Hybris hybris) {
         this.kvs = hybris.kvs;
         this.mds = hybris.mds;
+        
+        Config conf = Config.getInstance();
+        this.parallelism = Math.max(1, Integer.parseInt(conf.getProperty(Config.HS_GC_PARALLELISM, "4")));
+        this.pageSize = Math.max(1, Integer.parseInt(conf.getProperty(Config.HS_GC_PAGESIZE, "1000")));
+        double rate = Double.parseDouble(conf.getProperty(Config.HS_GC_RATE, "100"));
+        this.rateLimiters = new IdentityHashMap<Kvs, RateLimiter>();
+        if (rate > 0)
+            for (Kvs kvStore : this.kvs.getKvsList())
+                this.rateLimiters.put(kvStore, RateLimiter.create(rate));
     }
     
     /**
@@ -51,41 +85,23 @@ public class GcManager {
      * @throws HybrisException
      */
     public void gc() throws HybrisException {
-
-        // Orphans
         Map<String, Metadata> orphans = mds.getOrphans();
-        Set<String> orphanKeys = orphans.keySet();
-        for (Iterator<String> it = orphanKeys.iterator(); it.hasNext();) {
-            String kvsKey = it.next();
-            Metadata md = orphans.get(kvsKey);
-            boolean error = false;
-
-            for (Kvs kvStore : kvs.getKvsList()) {
-
-                if (!md.getReplicasLst().contains(kvStore))
-                    continue;
-
-                try {
-                    kvs.delete(kvStore, kvsKey);
-                } catch (IOException e) {
-                    error = true;
-                    logger.warn("GC: could not delete {} from {}", kvsKey, kvStore);
-                }
-            }
-
-            if (error) it.remove();
-        }
-        mds.removeOrphanKeys(orphanKeys);
-
-        // Stale
-        List<String> staleKeys = mds.getStaleKeys();
-        for (String key : staleKeys)
-            try {
-                this.gc(key);
-            } catch (HybrisException e) {
-                logger.warn("GC: could not gc key {}", key);
-            }
+        Map<String, Metadata> stale = mds.getStale();
+        this.backlog = orphans.size() + stale.size();
+        mds.removeOrphanKeys(this.delete(orphans));
+        mds.removeStaleKeys(this.delete(stale));
     }
+    
+    /** @return the number of GC markers whose data has been deleted */
+    public long getCollectedMarkers()   { return this.collectedMarkers.get(); }
+    /** @return the number of keys deleted from KVSs */
+    public long getDeletedKeys()        { return this.deletedKeys.get(); }
+    /** @return the number of KVS deletions which failed */
+    public long getFailedDeletions()    { return this.failedDeletions.get(); }
+    /** @return the number of GC markers found by the last {@link #gc()} */
+    public int getBacklog()             { return this.backlog; }
+    /** @return the number of GC markers lost by the MDS, whose data only {@link #batchGc()} collects */
+    public long getDroppedMarkers()     { return mds.getDroppedGcMarkers(); }
 
 
     /**
@@ -95,69 +111,148 @@ public class GcManager {
      */
     public void gc(String key) throws HybrisException {
 
-        Metadata md = mds.tsRead(key, null);
-        if (md == null) {
-            logger.debug("GC: could not find the metadata associated with key {}.", key);
-            return;
+        mds.removeStaleKeys(this.delete(mds.getStale(key)));
+    }
+
+
+    /**
+     * Deletes from KVSs the values indexed by GC markers, i.e. each Kvs key
+     * from the replicas recorded in its metadata, without listing any container.
+     * Legacy markers, which do not record the replicas, are deleted from all
+     * the KVSs. A marker of the current value (e.g. the replicas dropped by a 
+     * repair) is never deleted from the KVSs its metadata still references.
+     * @param markers - map of Kvs keys and metadata holding their replicas
+     * @return the set of Kvs keys deleted from all their replicas
+     */
+    private Set<String> delete(Map<String, Metadata> markers) {
+
+        Map<String, List<Kvs>> replicas = new HashMap<String, List<Kvs>>();
+        Map<String, Metadata> current = new HashMap<String, Metadata>();    // metadata read, by key
+        for (Entry<String, Metadata> marker : markers.entrySet()) {
+            List<Kvs> replicasLst = this.getGarbageReplicas(marker.getKey(), marker.getValue(), current);
+            if (replicasLst != null)
+                replicas.put(marker.getKey(), replicasLst);
         }
 
+        Map<Kvs, List<String>> keys = new IdentityHashMap<Kvs, List<String>>();
         for (Kvs kvStore : kvs.getKvsList()) {
+            List<String> kvsKeys = new ArrayList<String>();
+            for (Entry<String, List<Kvs>> marker : replicas.entrySet())
+                if (marker.getValue().contains(kvStore))
+                    kvsKeys.add(marker.getKey());
+            if (!kvsKeys.isEmpty())
+                keys.put(kvStore, kvsKeys);
+        }
+
+        Set<String> deleted = new HashSet<String>(replicas.keySet());
+        for (Set<String> failed : this.deleteBatches(keys).values())
+            deleted.removeAll(failed);
+        this.collectedMarkers.addAndGet(deleted.size());
+        return deleted;
+    }
+
 
-            List<String> kvsKeys;
+    /**
+     * @param current - the metadata already read, by key
+     * @return the KVSs to delete the Kvs key of a marker from, or null if 
+     *          the current metadata of its key could not be read
+     */
+    private List<Kvs> getGarbageReplicas(String kvsKey, Metadata marker, Map<String, Metadata> current) {
+        String key = Utils.getKeyFromKvsKey(kvsKey);
+        if (!current.containsKey(key))
             try {
-                kvsKeys = kvs.list(kvStore);
-            } catch (IOException e) {
-                logger.warn("GC: could not list {} container", kvStore);
-                continue;
+                current.put(key, mds.tsRead(key, null));
+            } catch (HybrisException e) {
+                logger.warn("GC: could not read the metadata of {}", key, e);
+                return null;
             }
+        Metadata md = current.get(key);
+        
+        List<Kvs> replicas = new ArrayList<Kvs>(marker.getReplicasLst() != null ? 
+                marker.getReplicasLst() : kvs.getKvsList());
+        if (md != null && md.getReplicasLst() != null && md.getTs().equals(marker.getTs()))
+            replicas.removeAll(md.getReplicasLst());
+        return replicas;
+    }
 
-            for (String kvsKey : kvsKeys) {
-                String prefixKey = ""; Timestamp kvTs = null;
-                boolean malformedKey = false;
-                try {
-                    prefixKey = Utils.getKeyFromKvsKey(kvsKey);
-                    kvTs = Utils.getTimestampfromKvsKey(kvsKey);
-                } catch(IndexOutOfBoundsException e) {
-                    malformedKey = true;
-                }
 
-                if ( malformedKey ||
-                        key.equals(prefixKey) && md.getTs().isGreater(kvTs) )  {
-                    try {
-                        kvs.delete(kvStore, kvsKey);
-                    } catch (IOException e) {
-                        logger.warn("GC: could not delete {} from {}", kvsKey, kvStore);
-                        continue;
-                    }
-                    logger.debug("GC: deleted {} from {}", kvsKey, kvStore);
-                }
-            }
+    /**
+     * Deletes keys from KVSs in batches of at most DELETE_BATCH_SIZE keys.
+     * Each Kvs runs at most <parallelism> batches at a time and its deletions
+     * are throttled by its token bucket, so that GC does not starve foreground traffic.
+     * @param keys - map of Kvs and keys to delete
+     * @return the keys which could not be deleted, by Kvs
+     */
+    private Map<Kvs, Set<String>> deleteBatches(Map<Kvs, List<String>> keys) {
+
+        Map<Kvs, List<Future<List<String>>>> futures = new IdentityHashMap<Kvs, List<Future<List<String>>>>();
+        for (Entry<Kvs, List<String>> entry : keys.entrySet()) {
+            ExecutorService executor = Executors.newFixedThreadPool(this.parallelism);
+            List<Future<List<String>>> kvsFutures = new ArrayList<Future<List<String>>>();
+            List<String> kvsKeys = entry.getValue();
+            for (int i=0; i<kvsKeys.size(); i+=DELETE_BATCH_SIZE)
+                kvsFutures.add(executor.submit(kvs.new KvsDeleteBatchWorker(entry.getKey(),
+                        kvsKeys.subList(i, Math.min(i + DELETE_BATCH_SIZE, kvsKeys.size())),
+                        this.rateLimiters.get(entry.getKey()))));
+            executor.shutdown();
+            futures.put(entry.getKey(), kvsFutures);
         }
 
-        mds.removeStaleKey(key);
+        Map<Kvs, Set<String>> failed = new IdentityHashMap<Kvs, Set<String>>();
+        for (Entry<Kvs, List<Future<List<String>>>> entry : futures.entrySet()) {
+            Set<String> kvsFailed = new HashSet<String>();
+            try {
+                for (Future<List<String>> future : entry.getValue())
+                    kvsFailed.addAll(future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                logger.warn("GC: could not complete deletions on {}", entry.getKey(), e);
+                kvsFailed.addAll(keys.get(entry.getKey()));
+            }
+            logger.debug("GC: deleted {} keys from {}", 
+                    keys.get(entry.getKey()).size() - kvsFailed.size(), entry.getKey());
+            this.deletedKeys.addAndGet(keys.get(entry.getKey()).size() - kvsFailed.size());
+            this.failedDeletions.addAndGet(kvsFailed.size());
+            failed.put(entry.getKey(), kvsFailed);
+        }
+        return failed;
     }
 
 
     /**
      * Deletes from KVSs all the keys which are not present on MDS or obsolete or malformed.
-     * Heads up: this function does a complete MDS dump and a complete KVS listing,
-     * so it can be very slow and resource consuming.
+     * Each KVS container is listed page by page, in key order, and merged with
+     * an ordered scan of the MDS, so that values are read one page at a time.
+     * The MDS scan still holds the names of all the keys (see Rmds.list), 
+     * as do the KVS drivers which cannot paginate their listings.
+     * The last key processed on each KVS is checkpointed on MDS: an interrupted run
+     * is resumed from there by the following one.
+     * Heads up: this function still lists all KVS and MDS keys, so it can be slow.
      * @throws HybrisException
      */
     public void batchGc() throws HybrisException {
+        for (Kvs kvStore : kvs.getKvsList())
+            this.batchGc(kvStore);
+    }
 
-        Map<String, Metadata> mdMap = mds.getAll();     // !! heavy operation
 
-        for (Kvs kvStore : kvs.getKvsList()) {
+    private void batchGc(Kvs kvStore) throws HybrisException {
+
+        String checkpointId = BATCHGC_CHECKPOINT_PREFIX + kvStore.getId();
+        String marker = mds.getGcCheckpoint(checkpointId);
+        if (marker != null)
+            logger.info("GC: resuming the collection of {} after {}", kvStore, marker);
 
-            List<String> kvsKeys;
+        MdsCursor mdsCursor = new MdsCursor();
+        List<String> kvsKeys;
+        do {
             try {
-                kvsKeys = kvs.list(kvStore);
+                kvsKeys = kvs.list(kvStore, marker, this.pageSize);
             } catch (IOException e) {
                 logger.warn("GC: could not list {} container", kvStore);
-                continue;
+                return;
             }
 
+            List<String> garbage = new ArrayList<String>();
             for (String kvsKey : kvsKeys) {
 
                 String key = ""; Timestamp kvTs = null;
@@ -169,19 +264,68 @@ public class GcManager {
                     malformedKey = true;
                 }
 
-                if ( malformedKey || !mdMap.keySet().contains(key) ||
-                        mdMap.get(key).getTs().isGreater(kvTs) ) {
-                    try {
-                        kvs.delete(kvStore, kvsKey);
-                    } catch (IOException e) {
-                        logger.warn("GC: could not delete {} from {}", kvsKey, kvStore);
-                        continue;
-                    }
-                    logger.debug("GC: deleted {} from {}", kvsKey, kvStore);
+                Metadata md = malformedKey ? null : mdsCursor.seek(key);
+                if ( malformedKey || md == null || md.getTs().isGreater(kvTs) )
+                    garbage.add(kvsKey);
+            }
+
+            if (!garbage.isEmpty()) {
+                Map<Kvs, List<String>> keys = new IdentityHashMap<Kvs, List<String>>();
+                keys.put(kvStore, garbage);
+                this.deleteBatches(keys);
+            }
+
+            if (!kvsKeys.isEmpty()) {
+                marker = kvsKeys.get(kvsKeys.size() - 1);
+                mds.setGcCheckpoint(checkpointId, marker);
+            }
+        } while (!kvsKeys.isEmpty());
+
+        mds.setGcCheckpoint(checkpointId, null);
+    }
+
+
+    /**
+     * Ordered scan of the metadata keys, fetched one page at a time.
+     */
+    private class MdsCursor {
+
+        private Iterator<Entry<String, Metadata>> page;
+        private Entry<String, Metadata> current;
+        private String marker;
+        private boolean exhausted = false;
+
+        /**
+         * Advances the cursor up to key.
+         * Keys not found by the merge (e.g. written after the scan passed them, or
+         * out of order because they contain characters sorting before the KVS key 
+         * separator) are read directly, so that live values are never taken for garbage.
+         * @return the metadata of key, or null if it does not exist
+         * @throws HybrisException
+         */
+        Metadata seek(String key) throws HybrisException {
+
+            while (!this.exhausted && (this.current == null || this.current.getKey().compareTo(key) < 0))
+                this.next();
+
+            if (this.current != null && this.current.getKey().equals(key))
+                return this.current.getValue();
+            return mds.tsRead(key, null);
+        }
+
+        private void next() throws HybrisException {
+            if (this.page == null || !this.page.hasNext()) {
+                SortedMap<String, Metadata> mdPage = mds.list(this.marker, pageSize);
+                if (mdPage.isEmpty()) {
+                    this.current = null;
+                    this.exhausted = true;
+                    return;
                 }
+                this.marker = mdPage.lastKey();
+                this.page = mdPage.entrySet().iterator();
             }
+            this.current = this.page.next();
         }
-        //mds.emptyStaleAndOrphansContainers();
     }
 
 
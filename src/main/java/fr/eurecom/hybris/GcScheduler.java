@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.eurecom.hybris.kvs.KvsManager;
+import fr.eurecom.hybris.mds.Rmds;
+
+/**
+ * Background GC daemon. Hybris clients sharing a metadata store elect 
+ * a GC leader, which is the only one to collect stale and orphan markers.
+ * Collections are scheduled adaptively: they are brought forward while 
+ * the marker backlog is large, and deferred while the cloud stores 
+ * are busy serving foreground requests.
+ * @author P. Viotti
+ */
+public class GcScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+
+    private static int BACKLOG_HIGH = 1000;     // markers above which the next run is brought forward
+    private static int MAX_DEFERRALS = 4;       // consecutive runs deferred because of load
+
+    private final GcManager gc;
+    private final KvsManager kvs;
+    private final Rmds mds;
+    private final String clientId;
+    private final long interval;        // [s] between two runs
+    private final double maxLoad;       // [KVS requests/s] above which runs are deferred (0 = never)
+    private final ScheduledExecutorService executor;
+
+    private long lastRequests;
+    private long lastTick;
+    private int deferrals;
+
+    /* progress counters */
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong deferredRuns = new AtomicLong();
+    private volatile boolean leader;
+
+    /**
+     * @param hybris
+     * @param gc
+     * @param interval - [s] between two runs
+     * @param maxLoad - [KVS requests/s] above which runs are deferred (0 = never)
+     */
+    public GcScheduler(Hybris hybris, GcManager gc, long interval, double maxLoad) {
+        this.gc = gc;
+        this.kvs = hybris.kvs;
+        this.mds = hybris.mds;
+        this.clientId = hybris.clientId;
+        this.interval = interval;
+        this.maxLoad = maxLoad;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hybris-gc-%d").build());
+    }
+
+    public void start() {
+        this.lastRequests = this.kvs.getRequestCount();
+        this.lastTick = System.currentTimeMillis();
+        this.schedule(this.interval);
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.leader)
+            this.mds.releaseGcLeadership();
+    }
+
+    /** @return true if this client is currently the GC leader */
+    public boolean isLeader()           { return this.leader; }
+    /** @return the number of completed GC runs */
+    public long getRuns()               { return this.runs.get(); }
+    /** @return the number of GC runs deferred because of foreground load */
+    public long getDeferredRuns()       { return this.deferredRuns.get(); }
+    public GcManager getGcManager()     { return this.gc; }
+
+    private void schedule(long delay) {
+        try {
+            this.executor.schedule(new Runnable() {
+                public void run() {
+                    GcScheduler.this.tick();
+                }
+            }, delay, TimeUnit.SECONDS);
+        } catch (RuntimeException e) {     // shut down
+            logger.debug("GC: scheduler stopped");
+        }
+    }
+
+    private void tick() {
+
+        long now = System.currentTimeMillis();
+        long requests = this.kvs.getRequestCount();
+        double load = (requests - this.lastRequests) * 1000.0 / Math.max(1, now - this.lastTick);
+        this.lastRequests = requests;
+        this.lastTick = now;
+
+        this.leader = this.mds.acquireGcLeadership(this.clientId);
+        if (!this.leader) {
+            this.schedule(this.interval);
+            return;
+        }
+
+        if (this.maxLoad > 0 && load > this.maxLoad && this.deferrals < MAX_DEFERRALS) {
+            logger.debug("GC: deferring collection, foreground load {} req/s", load);
+            this.deferrals++;
+            this.deferredRuns.incrementAndGet();
+            this.schedule(this.interval);
+            return;
+        }
+        this.deferrals = 0;
+
+        long next = this.interval;
+        try {
+            this.gc.gc();
+            this.runs.incrementAndGet();
+            if (this.gc.getBacklog() >= BACKLOG_HIGH)
+                next = Math.max(1, this.interval / 4);
+            logger.debug("GC: processed {} markers in {} ms", this.gc.getBacklog(), 
+                    System.currentTimeMillis() - now);
+        } catch (HybrisException | RuntimeException e) {
+            logger.warn("GC: background collection failed", e);
+        }
+        this.schedule(next);
+    }
+}
@@ -15,28 +15,45 @@
  */
 package fr.eurecom.hybris;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DataFormatException;
 
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
 
 import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.zookeeper.WatchedEvent;
@@ -44,8 +61,19 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import fr.eurecom.hybris.EcManager.ChunkState;
 import fr.eurecom.hybris.EcManager.EcChunk;
+import fr.eurecom.hybris.Utils.CompressionCodec;
+import fr.eurecom.hybris.cache.CacheAdmission;
+import fr.eurecom.hybris.cache.DiskCache;
+import fr.eurecom.hybris.cache.NearCache;
+import fr.eurecom.hybris.cache.NegativeCache;
+import fr.eurecom.hybris.cache.OffHeapCache;
+import fr.eurecom.hybris.ec.CodingScheme;
+import fr.eurecom.hybris.kvs.BlockPipe;
 import fr.eurecom.hybris.kvs.KvsManager;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 import fr.eurecom.hybris.mds.ZkRmds;
@@ -67,9 +95,13 @@ public class Hybris {
     protected KvsManager kvs;
     
     /* erasure coding */
-    private EcManager ec;
-    private int k;
-    private int m;
+    protected EcManager ec;
+    protected int k;
+    protected int m;
+    private int ecStripeSize;   // [B] values larger than this are coded and streamed in stripes (0 = disabled)
+    private int ecOverfetch;    // chunks requested on top of the k needed for decoding
+    private int ecWriteQuorum;  // chunks stored before committing a write (0 = k+m), the others are repaired later
+    protected RepairManager repair;
 
     /* caching */
     private MemcachedClient cache;
@@ -77,6 +109,14 @@ public class Hybris {
     private boolean cacheEnabled;
     private enum CachePolicy { ONREAD, ONWRITE };
     private CachePolicy cachePolicy;
+    private long cacheTimeout;      // [ms] to wait for bulk cache reads
+    private Semaphore cacheWindow;  // in-flight cache writes
+    private CacheAdmission cacheAdmission;
+    private ExecutorService cacheExecutor;  // cloud reads raced against cache reads
+    private NearCache nearCache;    // in-process cache of verified values, if enabled
+    private OffHeapCache offHeapCache;  // off-heap cache of verified values, if enabled
+    private DiskCache diskCache;        // local disk cache of verified values, if enabled
+    private NegativeCache negativeCache;    // keys found missing, if enabled
 
     private int quorum;
 
@@ -86,10 +126,18 @@ public class Hybris {
 
     /* GC */
     private GcManager gc;
+    private GcScheduler gcScheduler;    // background GC, if enabled
     private boolean gcEnabled;
 
+    /* integrity: leaf size for parallel tree hashing [B] (0 = sequential hashing) */
+    private int hashLeafSize;
+
     /* confidentiality */
     private boolean cryptoEnabled;
+    private int cryptoSegmentSize;  // [B] (0 = legacy AES/CFB with a shared IV)
+
+    private CompressionCodec compressionCodec;
+    private double compressionMaxRatio;     // compressed/original ratio above which values are stored as is
     private byte[] IV;
     
     /* erasure coding */
@@ -193,10 +241,42 @@ public class Hybris {
                         AddrUtil.getAddresses(memcachedAddrs));
                 this.cacheExp = cacheExp;
                 this.cachePolicy = CachePolicy.valueOf(cachePolicy.toUpperCase());
+                this.cacheTimeout = Long.parseLong(Config.getInstance().getProperty(Config.CACHE_TIMEOUT, "100"));
+                this.cacheAdmission = new CacheAdmission(
+                        Long.parseLong(Config.getInstance().getProperty(Config.CACHE_MAXITEMSIZE, "1000000")),
+                        Integer.parseInt(Config.getInstance().getProperty(Config.CACHE_MINFREQUENCY, "1")),
+                        Config.getInstance().getProperty(Config.CACHE_RULES, ""));
+                this.cacheWindow = new Semaphore(
+                        Integer.parseInt(Config.getInstance().getProperty(Config.CACHE_WINDOW, "256")));
+                this.cacheExecutor = Executors.newCachedThreadPool(
+                        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hybris-cache-%d").build());
             } catch (Exception e) {
                 logger.warn("Could not initialize the caching client. Please check its settings.", e);
                 this.cacheEnabled = false;
             }
+        long nearCacheSize = Long.parseLong(Config.getInstance().getProperty(Config.CACHE_NEARSIZE, "0"));
+        if (nearCacheSize > 0)
+            this.nearCache = new NearCache(nearCacheSize);
+        long offHeapCacheSize = Long.parseLong(Config.getInstance().getProperty(Config.CACHE_OFFHEAPSIZE, "0"));
+        if (offHeapCacheSize > 0)
+            try {
+                String offHeapFile = Config.getInstance().getProperty(Config.CACHE_OFFHEAPFILE, "");
+                this.offHeapCache = new OffHeapCache(offHeapCacheSize, offHeapFile.isEmpty() ? null : offHeapFile);
+            } catch (IOException e) {
+                logger.warn("Could not initialize the off-heap cache. Please check its settings.", e);
+            }
+        String diskCacheDir = Config.getInstance().getProperty(Config.CACHE_DISKDIR, "");
+        if (!diskCacheDir.isEmpty())
+            try {
+                this.diskCache = new DiskCache(diskCacheDir, 
+                        Long.parseLong(Config.getInstance().getProperty(Config.CACHE_DISKSIZE, "1073741824")));
+            } catch (IOException e) {
+                logger.warn("Could not initialize the disk cache. Please check its settings.", e);
+            }
+        int negativeCacheSize = Integer.parseInt(Config.getInstance().getProperty(Config.CACHE_NEGATIVESIZE, "0"));
+        if (negativeCacheSize > 0)
+            this.negativeCache = new NegativeCache(negativeCacheSize,
+                    Long.parseLong(Config.getInstance().getProperty(Config.CACHE_NEGATIVETTL, "60000")));
 
         this.quorum = t + 1;
         this.TIMEOUT_WRITE = writeTimeout;
@@ -205,19 +285,34 @@ public class Hybris {
         if (gcEnabled)
             gc = new GcManager(this);
         this.cryptoEnabled = cryptoEnabled;
-        if (this.cryptoEnabled)
+        if (this.cryptoEnabled) {
             this.IV = this.mds.getOrCreateIv();
+            this.cryptoSegmentSize = Integer.parseInt(
+                    Config.getInstance().getProperty(Config.HS_CRYPTO_SEGMENTSIZE, "0"));
+        }
+        this.hashLeafSize = Integer.parseInt(Config.getInstance().getProperty(Config.HS_HASH_LEAFSIZE, "0"));
+        this.compressionCodec = CompressionCodec.valueOf(
+                Config.getInstance().getProperty(Config.HS_COMPRESSION, "none").toUpperCase());
+        this.compressionMaxRatio = Double.parseDouble(
+                Config.getInstance().getProperty(Config.HS_COMPRESSION_MAXRATIO, "0.9"));
         
         this.ecEnabled = ecEnabled;
+        this.ecStripeSize = Integer.parseInt(Config.getInstance().getProperty(Config.ECODING_STRIPESIZE, "0"));
+        this.ecOverfetch = Integer.parseInt(Config.getInstance().getProperty(Config.ECODING_OVERFETCH, "1"));
+        this.ecWriteQuorum = Integer.parseInt(Config.getInstance().getProperty(Config.ECODING_WRITEQUORUM, "0"));
+        this.repair = new RepairManager(this, this.gcEnabled, this.quorum);
         if (this.ecEnabled) 
             try {
-                ec = new EcManager();
+                ec = new EcManager(Config.getInstance().getProperty(Config.ECODING_CODEC,
+                        EcManager.CODEC_JERASURE), CodingScheme.valueOf(Config.getInstance().getProperty(
+                        Config.ECODING_SCHEME, "reed_sol_van").toUpperCase()));
                 if (ecK <=0) {
                     logger.error("Wrong value for k (<=0), disabling erasure coding.");
                     this.ecEnabled = false;
                 } else {
                     this.k = ecK;
                     this.m = t;
+                    this.checkEcWriteQuorum();
                 }
             } catch (Exception e) {
                 this.ecEnabled = false;
@@ -225,6 +320,13 @@ public class Hybris {
 
         if (clientId != null)   this.clientId = clientId;
         else                    this.clientId = Utils.generateClientId();
+        
+        long gcInterval = Long.parseLong(Config.getInstance().getProperty(Config.HS_GC_INTERVAL, "0"));
+        if (gcEnabled && gcInterval > 0) {
+            this.gcScheduler = new GcScheduler(this, this.gc, gcInterval, 
+                    Double.parseDouble(Config.getInstance().getProperty(Config.HS_GC_MAXLOAD, "0")));
+            this.gcScheduler.start();
+        }
     }
 
 
@@ -241,19 +343,79 @@ public class Hybris {
         int ecK = Integer.parseInt(Config.getInstance().getProperty(Config.ECODING_K));
         if (this.ecEnabled) 
             try {
-                ec = new EcManager();
+                ec = new EcManager(Config.getInstance().getProperty(Config.ECODING_CODEC,
+                        EcManager.CODEC_JERASURE), CodingScheme.valueOf(Config.getInstance().getProperty(
+                        Config.ECODING_SCHEME, "reed_sol_van").toUpperCase()));
                 if (ecK <=0) {
                     logger.error("Wrong value for k (<=0), disabling erasure coding.");
                     this.ecEnabled = false;
                 } else {
                     this.k = ecK;
                     this.m = this.quorum -1;
+                    this.checkEcWriteQuorum();
                 }
             } catch (Exception e) {
                 this.ecEnabled = false;
             }
     }
     
+    /**
+     * Sets the number of erasure coded chunks which must be stored before
+     * a write completes; the missing ones are uploaded in background.
+     * @param writeQuorum - between k+1 and k+m (0 = k+m)
+     * @throws IllegalArgumentException if writeQuorum < k+m and 
+     *          k+m exceeds Metadata.MAX_MISSING_CHUNKS
+     */
+    public void setEcWriteQuorum(int writeQuorum) {
+        this.ecWriteQuorum = writeQuorum;
+        if (this.ecEnabled && !this.checkEcWriteQuorum())
+            throw new IllegalArgumentException("Write quorum not supported with more than " + 
+                    Metadata.MAX_MISSING_CHUNKS + " chunks");
+    }
+    
+    /**
+     * @return the manager restoring missing chunks and replicas, 
+     *          e.g. to run a re-replication job after a cloud outage
+     */
+    public RepairManager getRepairManager() {
+        return this.repair;
+    }
+    
+    /**
+     * @return the background GC scheduler, or null if background GC is disabled
+     */
+    public GcScheduler getGcScheduler() {
+        return this.gcScheduler;
+    }
+
+    /**
+     * @return the in-process cache of values, or null if disabled
+     */
+    public NearCache getNearCache() {
+        return this.nearCache;
+    }
+
+    /**
+     * @return the off-heap cache of values, or null if disabled
+     */
+    public OffHeapCache getOffHeapCache() {
+        return this.offHeapCache;
+    }
+
+    /**
+     * @return the local disk cache of values, or null if disabled
+     */
+    public DiskCache getDiskCache() {
+        return this.diskCache;
+    }
+
+    /**
+     * @return the cache of missing keys, or null if disabled
+     */
+    public NegativeCache getNegativeCache() {
+        return this.negativeCache;
+    }
+    
     
     /**
      * Writes a byte array associated with a key.
@@ -264,6 +426,8 @@ public class Hybris {
      */
     public List<Kvs> put(String key, byte[] value) throws HybrisException {
 
+        if (this.cacheEnabled)
+            this.cacheAdmission.record(key);
         Timestamp ts;
         Stat stat = new Stat();
         Metadata md = this.mds.tsRead(key, stat);
@@ -271,11 +435,23 @@ public class Hybris {
             ts = new Timestamp(0, this.clientId);
             stat.setVersion(ZkRmds.NONODE);
         } else {
-            ts = md.getTs();
+            ts = new Timestamp(md.getTs().getNum(), md.getTs().getCid());
             ts.inc( this.clientId );
         }
 
+        CompressionCodec compression = CompressionCodec.NONE;
+        if (this.compressionCodec != CompressionCodec.NONE &&
+                Utils.isCompressible(value, this.compressionMaxRatio)) {
+            byte[] compressed = Utils.compress(value);
+            if (compressed.length < value.length) {
+                logger.debug("Compressed data for key {}: {} B -> {} B", key, value.length, compressed.length);
+                value = compressed;
+                compression = this.compressionCodec;
+            }
+        }
+
         byte[] cryptoKey = null;
+        int cryptoSegmentSize = 0;
         if (this.cryptoEnabled) {
             if (md == null || md.getCryptoKey() == null) {
                 logger.debug("Generating new encryption key for key {}", key);
@@ -286,7 +462,11 @@ public class Hybris {
 
             try {
                 logger.debug("Encrypting data for key {}", key);
-                value = Utils.encrypt(value, cryptoKey, this.IV);
+                if (this.cryptoSegmentSize > 0) {
+                    value = Utils.encryptSegmented(value, cryptoKey, this.cryptoSegmentSize);
+                    cryptoSegmentSize = this.cryptoSegmentSize;
+                } else
+                    value = Utils.encrypt(value, cryptoKey, this.IV);
             } catch(GeneralSecurityException e) {
                 logger.error("Could not encrypt data", e);
                 cryptoKey = null;
@@ -297,22 +477,31 @@ public class Hybris {
         String kvsKey = Utils.getKvsKey(key, ts);
         int idxFrom = 0; long start; Future<Kvs> future;
         byte[][] chunkHashes = null;
+        Map<Integer, EcChunk> missingChunks = null;
+        int stripeSize = 0;
+        CodingScheme scheme = this.ecEnabled ? this.ec.getScheme(k, m) : CodingScheme.REED_SOL_VAN;
         
-        if (this.ecEnabled) {   // Erasure coding
+        if (this.ecEnabled && this.ecStripeSize > 0 && value.length > this.ecStripeSize) {  // Striped erasure coding
+            
+            stripeSize = this.ec.getStripeSize(this.ecStripeSize, k, m, scheme);
+            missingChunks = new HashMap<Integer, EcChunk>();
+            chunkHashes = this.putStriped(key, ts, new ByteArrayInputStream(value), value.length, 
+                    stripeSize, scheme, savedReplicasLst, missingChunks);
+            
+        } else if (this.ecEnabled) {   // Erasure coding
             
             // TODO storing chunks' hashes in md
-            // XXX caching with ec?
             ExecutorService executor = Executors.newFixedThreadPool(m + k);
             CompletionService<Kvs> compServ = new ExecutorCompletionService<Kvs>(executor);
             
-            byte[][] encoded = ec.encode(value, k, m);
+            byte[][] encoded = ec.encode(value, value.length, k, m, scheme);
             EcChunk[] chunks = new EcChunk[encoded.length];
             for (int i=0; i<encoded.length; i++)
                 chunks[i] = this.ec.new EcChunk(encoded[i], Utils.getHash(encoded[i]), null, ChunkState.KO);
             int idxTo = k + m;
+            int writeQuorum = this.getEcWriteQuorum(), stored = 0;
             boolean completed;
             do {
-                completed = true;
                 List<Kvs> kvsSublst = this.kvs.getKvsSortedByWriteLatency().subList(idxFrom, idxTo);
                 int pending = 0;
                 start = System.currentTimeMillis();
@@ -327,7 +516,7 @@ public class Hybris {
                         }
 
                 Kvs savedReplica = null;
-                for (int i=0; i<pending; i++)
+                for (int i=0; i<pending && stored<writeQuorum; i++)
                     try {
                         future =  compServ.poll(this.TIMEOUT_WRITE, TimeUnit.SECONDS);
                         if (future != null && 
@@ -340,20 +529,22 @@ public class Hybris {
                                             chunks[j].data.length, savedReplica,
                                             System.currentTimeMillis() - start);
                                     chunks[j].state = ChunkState.OK;
+                                    stored++;
                                     break;
                                 }
                             }
                         else if (savedReplica != null)
                                 for (int j=0; j<chunks.length; j++)
-                                    if (savedReplica.getId().contains(chunks[i].kvs.getId()))
-                                        chunks[i].state = ChunkState.KO;
+                                    if (ChunkState.PENDING.equals(chunks[j].state) 
+                                            && savedReplica.getId().contains(chunks[j].kvs.getId())) {
+                                        chunks[j].state = ChunkState.KO;
+                                        break;
+                                    }
                     } catch (InterruptedException | ExecutionException e) {
                         logger.warn("Exception on write task execution", e);
                     }
                 
-                for (int j=0; j<chunks.length; j++) 
-                    if (!ChunkState.OK.equals(chunks[j].state)) 
-                        completed = false;
+                completed = stored >= writeQuorum;
                 
                 idxFrom = idxTo;
                 idxTo = this.kvs.getKvsList().size() > idxTo + k + m?
@@ -370,11 +561,32 @@ public class Hybris {
                 }
             
             if (!completed) {
-                if (this.gcEnabled) mds.markOrphanKey(key, ts, savedReplicasLst);
+                if (this.gcEnabled) {
+                    List<Kvs> orphans = new ArrayList<Kvs>(savedReplicasLst);
+                    for (EcChunk chunk : chunks)    // uploads still running
+                        if (ChunkState.PENDING.equals(chunk.state))
+                            orphans.add(chunk.kvs);
+                    mds.markOrphanKey(key, ts, orphans);
+                }
                 logger.warn("Could not store data in cloud stores for key {}.", key);
                 throw new HybrisException("Could not store data in cloud stores");
             }
             
+            if (this.cacheEnabled && CachePolicy.ONWRITE.equals(this.cachePolicy))
+                for (int j=0; j<k; j++)     // data chunks are enough for decoding
+                    this.cacheSet(key, getChunkCacheKey(kvsKey, j), chunks[j].data);
+            
+            /* Chunks still pending or failed are recorded as missing, with their hash
+             * so that they can be verified once repaired. */
+            missingChunks = new HashMap<Integer, EcChunk>();
+            for (int j=0; j<chunks.length; j++)
+                if (!chunks[j].state.equals(ChunkState.OK)) {
+                    chunkHashes[j] = chunks[j].hash;
+                    if (chunks[j].state.equals(ChunkState.KO))
+                        chunks[j].kvs = null;
+                    missingChunks.put(j, chunks[j]);
+                }
+            
         } else {    // Replication
             
             ExecutorService executor = Executors.newFixedThreadPool(this.quorum);
@@ -416,28 +628,104 @@ public class Hybris {
             }
     
             if (this.cacheEnabled && CachePolicy.ONWRITE.equals(this.cachePolicy))
-                this.cache.set(kvsKey, this.cacheExp, value);
+                this.cacheSet(key, kvsKey, value);
         }
 
-        boolean overwritten = false;
-        try {
-            Metadata newMd;
-            if (this.ecEnabled)
-                newMd = new Metadata(ts, chunkHashes, savedReplicasLst, value.length, cryptoKey);
-            else
-                newMd = new Metadata(ts, Utils.getHash(value), value.length, savedReplicasLst, cryptoKey);
-            overwritten = this.mds.tsWrite(key, newMd, stat.getVersion());
-        } catch (HybrisException e) {
-            if (this.gcEnabled) mds.markOrphanKey(key, ts, savedReplicasLst);
-            logger.warn("Could not store metadata on Zookeeper for key {}.", key);
-            throw new HybrisException("Could not store the metadata on Zookeeper");
+        Metadata newMd;
+        if (this.ecEnabled)
+            newMd = new Metadata(ts, chunkHashes, savedReplicasLst, value.length, cryptoKey);
+        else {
+            int leafSize = this.getHashLeafSize(value);
+            newMd = new Metadata(ts, Utils.getHash(value, leafSize), value.length, savedReplicasLst, cryptoKey);
+            newMd.setHashLeafSize(leafSize);
+        }
+        newMd.setCryptoSegmentSize(cryptoSegmentSize);
+        newMd.setCompression(compression.getId());
+        newMd.setStripeSize(stripeSize);
+        newMd.setEcScheme(scheme.getId());
+        if (missingChunks != null && !missingChunks.isEmpty()) {
+            int mask = 0;
+            for (int j : missingChunks.keySet())
+                mask |= 1 << j;
+            newMd.setMissingChunks(mask);
+        }
+        this.writeMetadata(key, newMd, stat, md, missingChunks);
+        this.cacheLocally(kvsKey, value);   // local caches never replace the value of a Kvs key
+        
+        if (missingChunks != null && !missingChunks.isEmpty()) {
+            logger.info("Chunks {} of {} queued for repair", missingChunks.keySet(), key);
+            this.repair.repairChunks(key, ts, missingChunks);
         }
-
-        if (this.gcEnabled && overwritten) mds.markStaleKey(key);
 
         logger.info("Data stored on: {}", savedReplicasLst);
         return savedReplicasLst;
     }
+    
+    
+    /**
+     * Writes size bytes read from a stream, associated with a key.
+     * With erasure coding, the value is encoded stripe by stripe and each chunk
+     * is streamed to its cloud store while the following stripes are read,
+     * so that memory use does not depend on the value size.
+     * Otherwise, or if compression or encryption are enabled, 
+     * the value is read in memory and written as by {@link #put(String, byte[])}.
+     * @param key
+     * @param value
+     * @param size - number of bytes to read from value
+     * @return the list of Kvs on which Hybris stored the data
+     * @throws HybrisException
+     */
+    public List<Kvs> put(String key, InputStream value, int size) throws HybrisException {
+        
+        if (!this.ecEnabled || this.ecStripeSize <= 0 || this.cryptoEnabled 
+                || this.compressionCodec != CompressionCodec.NONE) {
+            byte[] buffer = new byte[size];
+            try {
+                ByteStreams.readFully(value, buffer);
+            } catch (IOException e) {
+                logger.error("Could not read the value of key {}", key, e);
+                throw new HybrisException("Could not read the value of key " + key, e);
+            }
+            return this.put(key, buffer);
+        }
+        
+        Timestamp ts;
+        Stat stat = new Stat();
+        Metadata md = this.mds.tsRead(key, stat);
+        if (md == null) {
+            ts = new Timestamp(0, this.clientId);
+            stat.setVersion(ZkRmds.NONODE);
+        } else {
+            ts = new Timestamp(md.getTs().getNum(), md.getTs().getCid());
+            ts.inc( this.clientId );
+        }
+        
+        List<Kvs> savedReplicasLst = new ArrayList<Kvs>();
+        CodingScheme scheme = this.ec.getScheme(k, m);
+        int stripeSize = this.ec.getStripeSize(this.ecStripeSize, k, m, scheme);
+        Map<Integer, EcChunk> missingChunks = new HashMap<Integer, EcChunk>();
+        byte[][] chunkHashes = this.putStriped(key, ts, value, size, stripeSize, scheme, 
+                savedReplicasLst, missingChunks);
+        
+        Metadata newMd = new Metadata(ts, chunkHashes, savedReplicasLst, size, null);
+        newMd.setStripeSize(stripeSize);
+        newMd.setEcScheme(scheme.getId());
+        if (!missingChunks.isEmpty()) {
+            int mask = 0;
+            for (int j : missingChunks.keySet())
+                mask |= 1 << j;
+            newMd.setMissingChunks(mask);
+        }
+        this.writeMetadata(key, newMd, stat, md, missingChunks);
+        
+        if (!missingChunks.isEmpty()) {
+            logger.info("Chunks {} of {} queued for repair", missingChunks.keySet(), key);
+            this.repair.repairChunks(key, ts, missingChunks);
+        }
+        
+        logger.info("Data stored on: {}", savedReplicasLst);
+        return savedReplicasLst;
+    }
 
     
     /**
@@ -449,11 +737,19 @@ public class Hybris {
     public boolean put(LinkedHashMap<String, byte[]> map) throws HybrisException {
 
         LinkedHashMap<String, Stat> statMap = new LinkedHashMap<String, Stat>();
-        for (Entry<String, byte[]> entry : map.entrySet())
+        for (Entry<String, byte[]> entry : map.entrySet()) {
             statMap.put(entry.getKey(), new Stat());
+            if (this.cacheEnabled)
+                this.cacheAdmission.record(entry.getKey());
+        }
         
         LinkedHashMap<String, Metadata> mdMap = this.mds.tsMultiRead(statMap);
+        Map<String, Metadata> overwritten = new HashMap<String, Metadata>();
         for (Entry<String, Metadata> entry : mdMap.entrySet()) {
+            if (entry.getValue() != null && !entry.getValue().isTombstone())
+                overwritten.put(entry.getKey(), new Metadata(
+                        new Timestamp(entry.getValue().getTs().getNum(), entry.getValue().getTs().getCid()), 
+                        null, 0, entry.getValue().getReplicasLst(), null));
             if (entry.getValue() == null) {
                 Stat st = new Stat();
                 st.setVersion(ZkRmds.NONODE);
@@ -518,17 +814,22 @@ public class Hybris {
             mdMap.get(entry.getKey()).setReplicasLst(savedReplicasLst);
     
             if (this.cacheEnabled && CachePolicy.ONWRITE.equals(this.cachePolicy))
-                this.cache.set(kvsKey, this.cacheExp, entry.getValue());
+                this.cacheSet(entry.getKey(), kvsKey, entry.getValue());
         }
         
         for (Entry<String, Metadata> entry : mdMap.entrySet()) {
-            mdMap.get(entry.getKey()).setHash(Utils.getHash(map.get(entry.getKey())));
+            int leafSize = this.getHashLeafSize(map.get(entry.getKey()));
+            mdMap.get(entry.getKey()).setHash(Utils.getHash(map.get(entry.getKey()), leafSize));
+            mdMap.get(entry.getKey()).setHashLeafSize(leafSize);
             mdMap.get(entry.getKey()).setSize(map.get(entry.getKey()).length);
             mdMap.get(entry.getKey()).setCryptoKey(null);
         }
         
         try {
             mds.tsMultiWrite(mdMap, statMap);
+            if (this.negativeCache != null)
+                for (String key : mdMap.keySet())
+                    this.negativeCache.remove(key);
         } catch (HybrisException e) {
             if (this.gcEnabled)
                 for (Entry<String, byte[]> entry: map.entrySet())
@@ -537,8 +838,12 @@ public class Hybris {
             logger.warn("Could not transactionally write metadata on ZooKeeper");
             throw new HybrisException("Could not store the metadata on Zookeeper");
         }
+        for (Entry<String, byte[]> entry : map.entrySet())
+            this.cacheLocally(Utils.getKvsKey(entry.getKey(), mdMap.get(entry.getKey()).getTs()), entry.getValue());
 
-        // XXX if (this.gcEnabled && overwritten) this.mds.new GcMarker(key).start();
+        if (this.gcEnabled)
+            for (Entry<String, Metadata> entry : overwritten.entrySet())
+                mds.markStaleKey(entry.getKey(), entry.getValue().getTs(), entry.getValue().getReplicasLst());
         logger.info("Data successfully stored.");
         return true;
     }
@@ -551,9 +856,18 @@ public class Hybris {
      */
     public byte[] get(String key) throws HybrisException {
 
-        Metadata md = this.mds.tsRead(key, null);
+        if (this.cacheEnabled)
+            this.cacheAdmission.record(key);
+        if (this.negativeCache != null && this.negativeCache.contains(key)) {
+            logger.debug("Key {} known to be missing.", key);
+            return null;
+        }
+        Stat stat = new Stat();
+        Metadata md = this.mds.tsRead(key, stat);
         if (md == null || md.isTombstone()) {
             logger.warn("Could not find metadata associated with key {}.", key);
+            if (this.negativeCache != null)
+                this.cacheMissing(key, md == null ? ZkRmds.NONODE : stat.getVersion());
             return null;
         }
 
@@ -562,141 +876,197 @@ public class Hybris {
         
         if (this.ecEnabled) {   // Erasure coding
             
-            ExecutorService executor = Executors.newFixedThreadPool(k);
+            value = this.getCachedLocally(kvsKey);
+            if (value != null) {    // decoded and verified when cached
+                logger.debug("Value of {} retrieved from local cache", key);
+                return this.restoreValue(key, md, value);
+            }
+            
+            /* Chunks are requested to the k+overfetch fastest cloud stores at once, and the
+             * next ones are asked only when a request fails, times out or returns
+             * an invalid chunk. Chunks are identified by their hash, so that no 
+             * assumption is made on which store holds which chunk. 
+             * The cache is read at the same time: the first k valid chunks 
+             * are used, whether they come from the cache or from clouds. */
+            List<Kvs> kvsLst = new ArrayList<Kvs>(this.kvs.getKvsSortedByReadLatency());
+            kvsLst.retainAll(md.getReplicasLst());
+            byte[][] chunksHashes = md.getChunksHashes();
+            byte[][] chunksData = new byte[chunksHashes.length][];
+            boolean[] cachedChunks = new boolean[chunksHashes.length];
+            int retrieved = 0;
+            BulkFuture<Map<String, Object>> bulk = this.cacheEnabled ? 
+                    this.getCachedChunksAsync(kvsKey, chunksHashes.length) : null;
+            long cacheDeadline = System.currentTimeMillis() + this.cacheTimeout;
+            
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(kvsLst.size(), 1));
             CompletionService<Entry<Kvs, byte[]>> compServ = 
                     new ExecutorCompletionService<Entry<Kvs, byte[]>>(executor);
-            List<Kvs> kvsLst = this.kvs.getKvsSortedByReadLatency();
-            kvsLst.retainAll(md.getReplicasLst());
-            @SuppressWarnings("unchecked")
-            Future<Entry<Kvs, byte[]>>[] futuresArray = new Future[kvsLst.size()];
-            Future<Entry<Kvs, byte[]>> futureResult;
-            Entry<Kvs, byte[]> chunk = new AbstractMap.SimpleEntry<Kvs, byte[]>(null, null);
-            EcChunk[] chunks = new EcChunk[md.getReplicasLst().size()];
-            for (int i=0; i<chunks.length; i++)
-                chunks[i] = this.ec.new EcChunk(null, md.getChunksHashes()[i], 
-                                                md.getReplicasLst().get(i), ChunkState.KO);
+            List<Future<Entry<Kvs, byte[]>>> futures = new ArrayList<Future<Entry<Kvs, byte[]>>>();
+            int next = 0, pending = 0;
+            for (; next < Math.min(k + this.ecOverfetch, kvsLst.size()); next++, pending++)
+                futures.add(compServ.submit(this.kvs.new KvsGetWorker(kvsLst.get(next), kvsKey)));
             
-            int idxFrom = 0, idxTo = k;
-            boolean completed = true;
-            int retrieved = 0;
-            do {
-                List<Kvs> kvsSublst = kvsLst.subList(idxFrom, idxTo);
-                for (Kvs kvStore : kvsSublst) {
-                    futuresArray[kvsSublst.indexOf(kvStore)] = compServ.submit(this.kvs.new KvsGetWorker(kvStore, kvsKey));
-                    for (int j=0; j<chunks.length; j++)
-                        if (kvStore.equals(chunks[j].kvs) && 
-                                ChunkState.KO.equals(chunks[j].state)) {
-                            chunks[j].state = ChunkState.PENDING;
-                            break;
-                        }
+            while (retrieved < k && (pending > 0 || bulk != null)) {
+                if (bulk != null && (bulk.isDone() || System.currentTimeMillis() >= cacheDeadline)) {
+                    int cached = this.getCachedChunks(kvsKey, bulk, chunksHashes, chunksData, cachedChunks);
+                    if (cached > 0)
+                        logger.debug("{} chunks of {} retrieved from cache", cached, key);
+                    retrieved += cached;
+                    bulk = null;
+                    continue;
                 }
                 
-                for (int i=0; i<kvsSublst.size(); i++)
+                Future<Entry<Kvs, byte[]>> futureResult;
+                try {
+                    if (bulk != null)   // late cached chunks are fetched from clouds
+                        futureResult = compServ.poll(Math.max(1, cacheDeadline - System.currentTimeMillis()), 
+                                TimeUnit.MILLISECONDS);
+                    else
+                        futureResult = compServ.poll(this.TIMEOUT_READ, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted while retrieving chunks", e);
+                    break;
+                }
+                if (futureResult == null && bulk != null)
+                    continue;
+                
+                boolean useful = false;
+                if (futureResult != null) {
+                    pending--;
                     try {
-                        futureResult =  compServ.poll(this.TIMEOUT_READ, TimeUnit.SECONDS);
-                        if (futureResult != null && 
-                                !(chunk = futureResult.get()).getKey().getId().startsWith(KvsManager.FAIL_PREFIX)) {
-                            
-                            for (int j=0; j<chunks.length; j++) {
-                                if (chunk.getKey().equals(chunks[j].kvs) && 
-                                        ChunkState.PENDING.equals(chunks[j].state)) {
-                                    if (Arrays.equals(chunks[j].hash, Utils.getHash(chunk.getValue()))) {
-                                        chunks[j].state = ChunkState.OK;
-                                        chunks[j].data = chunk.getValue();
-                                        retrieved++;
-                                        logger.debug("Chunk {} retrieved from {}", j, chunks[j].kvs);
-                                    } else {
-                                        chunks[j].state = ChunkState.KO;
-                                        logger.warn("Tampered chunk {} retrieved from {}", j, chunks[j].kvs);
-                                    }
-                                    break;
-                                }
-                            }
-                         } else if (chunk != null)
-                                 for (int j=0; j<chunks.length; j++)
-                                     if (chunk.getKey().getId().contains(chunks[i].kvs.getId()))
-                                         chunks[i].state = ChunkState.KO;
-
+                        Entry<Kvs, byte[]> chunk = futureResult.get();
+                        if (!chunk.getKey().getId().startsWith(KvsManager.FAIL_PREFIX)) {
+                            int idx = EcManager.getChunkIndex(chunk.getValue(), chunksHashes, chunksData);
+                            if (idx >= 0) {
+                                chunksData[idx] = chunk.getValue();
+                                retrieved++;
+                                useful = true;
+                                logger.debug("Chunk {} retrieved from {}", idx, chunk.getKey());
+                            } else
+                                logger.warn("Tampered, unexpected or already cached chunk retrieved from {}", 
+                                        chunk.getKey());
+                        }
                     } catch (InterruptedException | ExecutionException e) {
-                        logger.warn("Exception on write task execution", e);
+                        logger.warn("Exception on read task execution", e);
                     }
+                } else if (next >= kvsLst.size())
+                    break;
                 
-                if (retrieved < k) { 
-                    completed = false;
-                    idxFrom = idxTo;
-                    idxTo = kvsLst.size() > idxTo + (k - retrieved)?
-                            idxTo + (k - retrieved) : kvsLst.size();
-                } else
-                    completed = true;
-            } while (!completed && idxFrom < idxTo);
-            executor.shutdown();
+                if (!useful && next < kvsLst.size()) {
+                    futures.add(compServ.submit(this.kvs.new KvsGetWorker(kvsLst.get(next), kvsKey)));
+                    next++;
+                    pending++;
+                }
+            }
+            for (Future<Entry<Kvs, byte[]>> future : futures)
+                future.cancel(true);
+            executor.shutdownNow();
+            if (bulk != null)
+                bulk.cancel(false);
             
             if (retrieved < k) {
                 logger.error("Could not retrieve enough chunks for decoding data.");
                 return null;
             }
             
+            if (this.cacheEnabled && CachePolicy.ONREAD.equals(this.cachePolicy))
+                for (int j=0; j<chunksData.length; j++)
+                    if (chunksData[j] != null && !cachedChunks[j])
+                        this.cacheSet(key, getChunkCacheKey(kvsKey, j), chunksData[j]);
+            
             byte[][] dataBlocks = new byte[k][], 
                     codingBlocks = new byte[m][];
             int chunkLen = 0;
-            int[] erasures = new int[k+m];
-            int idxEr = 0;
-            for (int j=0; j<k; j++)
-                if (chunks[j].state.equals(ChunkState.OK)){
-                    dataBlocks[j] = chunks[j].data;
-                    if (chunkLen == 0) chunkLen = chunks[j].data.length;
-                } else {
-                    erasures[idxEr] = j;
-                    idxEr++;
+            for (byte[] chunk : chunksData)
+                if (chunk != null) {
+                    chunkLen = chunk.length;
+                    break;
                 }
-            for (int j=0; j<m; j++)
-                if (chunks[k + j].state.equals(ChunkState.OK)) {
-                    codingBlocks[j] = chunks[k + j].data;
-                    if (chunkLen == 0) chunkLen = chunks[k + j].data.length;
-                } else {
-                    erasures[idxEr] = k + j;
-                    idxEr++;
+            int[] erasures = new int[k+m+1];
+            int idxEr = 0;
+            for (int j=0; j<k+m; j++) {
+                byte[] chunk = chunksData[j];
+                if (chunk == null) {
+                    erasures[idxEr++] = j;
+                    chunk = new byte[chunkLen];
                 }
-            
-            for (int i = 0; i < idxEr; i++)
-                if (erasures[i] < k)
-                    dataBlocks[erasures[i]] = new byte[chunkLen];
-                else 
-                    codingBlocks[erasures[i]-k] = new byte[chunkLen];
+                if (j < k)  dataBlocks[j] = chunk;
+                else        codingBlocks[j - k] = chunk;
+            }
             erasures[idxEr] = -1;
             
-            value = ec.decode(dataBlocks, codingBlocks, erasures, k, m, md.getSize());
+            CodingScheme scheme = CodingScheme.fromId(md.getEcScheme());
+            if (md.getStripeSize() > 0)
+                value = ec.decodeStriped(dataBlocks, codingBlocks, erasures, k, m, md.getSize(), 
+                        md.getStripeSize(), scheme);
+            else
+                value = ec.decode(dataBlocks, codingBlocks, erasures, k, m, md.getSize(), scheme);
             
-            if (md.getCryptoKey() != null)
-                try {
-                    logger.debug("Decrypting data for key {}", key);
-                    value = Utils.decrypt(value, md.getCryptoKey(), this.IV);
-                } catch (GeneralSecurityException | UnsupportedEncodingException e) {
-                    logger.error("Could not decrypt data", e);
-                    throw new HybrisException("Could not decrypt data", e);
-                }
+            this.cacheLocally(kvsKey, value);
+            value = this.restoreValue(key, md, value);
             return value;
             
         } else {    // Replication
 
+            value = this.getCachedLocally(kvsKey);
+            if (value != null) {    // verified when cached
+                logger.debug("Value of {} retrieved from local cache", key);
+                return this.restoreValue(key, md, value);
+            }
+
+            /* The cache lookup is raced against the read from the first cloud store,
+             * so that a slow or missing cache entry does not delay the read. */
+            Kvs prefetched = null;
+            Future<byte[]> prefetch = null;
             if (this.cacheEnabled) {
-                value = (byte[]) this.cache.get(kvsKey);
-                if (value != null && Arrays.equals(md.getHash(), Utils.getHash(value))) {
-    
-                    if (md.getCryptoKey() != null)
-                        try {
-                            logger.debug("Decrypting data for key {}", key);
-                            value = Utils.decrypt(value, md.getCryptoKey(), this.IV);
-                        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
-                            logger.error("Could not decrypt data", e);
-                            throw new HybrisException("Could not decrypt data", e);
+                for (Kvs kvStore : this.kvs.getKvsSortedByReadLatency())
+                    if (md.getReplicasLst().contains(kvStore)) {
+                        prefetched = kvStore;
+                        break;
+                    }
+                GetFuture<Object> cached = this.cache.asyncGet(kvsKey);
+                final CountDownLatch firstDone = new CountDownLatch(1);
+                cached.addListener(new GetCompletionListener() {
+                    public void onComplete(GetFuture<?> future) {
+                        firstDone.countDown();
+                    }
+                });
+                if (prefetched != null) {
+                    final Kvs kvStore = prefetched;
+                    final String kvsKeyPrefetched = kvsKey;
+                    FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return Hybris.this.kvs.get(kvStore, kvsKeyPrefetched);
+                        }
+                    }) {
+                        protected void done() {
+                            firstDone.countDown();
                         }
+                    };
+                    this.cacheExecutor.execute(task);
+                    prefetch = task;
+                }
+                
+                try {
+                    firstDone.await(this.TIMEOUT_READ, TimeUnit.SECONDS);
+                    value = cached.isDone() ? (byte[]) cached.get() : null;
+                } catch (InterruptedException | ExecutionException | RuntimeException e) {
+                    logger.warn("Could not retrieve {} from cache", kvsKey, e);
+                    value = null;
+                }
+                if (value != null && Arrays.equals(md.getHash(), Utils.getHash(value, md.getHashLeafSize()))) {
+                    if (prefetch != null)
+                        prefetch.cancel(true);
+                    this.cacheLocally(kvsKey, value);
+                    value = this.restoreValue(key, md, value);
     
                     logger.debug("Value of {} retrieved from cache", key);
                     return value;
                 }
+                cached.cancel(false);
             }
     
+            List<Kvs> faulty = new ArrayList<Kvs>();     // replicas to rewrite once the value is retrieved
             for (Kvs kvStore : this.kvs.getKvsSortedByReadLatency()) {
     
                 if (!md.getReplicasLst().contains(kvStore))
@@ -704,40 +1074,46 @@ public class Hybris {
     
                 try {
                     // XXX check file size to prevent DOS
-                    value = this.kvs.get(kvStore, kvsKey);
+                    if (kvStore == prefetched)
+                        try {
+                            value = prefetch.get();
+                        } catch (InterruptedException | ExecutionException e) {
+                            continue;
+                        }
+                    else
+                        value = this.kvs.get(kvStore, kvsKey);
                 } catch (IOException e) {
                     continue;
                 }
     
                 if (value != null) {
-                    if (Arrays.equals(md.getHash(), Utils.getHash(value))) {
+                    if (Arrays.equals(md.getHash(), Utils.getHash(value, md.getHashLeafSize()))) {
                         logger.info("Value of {} retrieved from kvStore {}", key, kvStore);
                         if (this.cacheEnabled && CachePolicy.ONREAD.equals(this.cachePolicy))
-                            this.cache.set(kvsKey, this.cacheExp, value);
-    
-                        if (md.getCryptoKey() != null)
-                            try {
-                                logger.debug("Decrypting data for key {}", key);
-                                value = Utils.decrypt(value, md.getCryptoKey(), this.IV);
-                            } catch (GeneralSecurityException | UnsupportedEncodingException e) {
-                                logger.error("Could not decrypt data", e);
-                                throw new HybrisException("Could not decrypt data", e);
-                            }
+                            this.cacheSet(key, kvsKey, value);
+                        this.cacheLocally(kvsKey, value);
+                        if (!faulty.isEmpty())
+                            this.repair.repairReplicas(key, md.getTs(), value, faulty);
+    
+                        value = this.restoreValue(key, md, value);
     
                         return value;
                     } else {     // The hash doesn't match: Byzantine fault: let's try with the other clouds
                         logger.warn("Tampered data retrieved from {}", kvStore);
+                        faulty.add(kvStore);
                         continue;
                     }
-                } else
+                } else {
                     /* This could be due to:
                      * a. Byzantine replicas
                      * b. concurrent gc
                      */
-                    return this.parallelGet(key);
+                    faulty.add(kvStore);
+                    return this.parallelGet(key, faulty);
+                }
             }
     
-            return this.parallelGet(key);
+            return this.parallelGet(key, faulty);
         }
     }
 
@@ -747,10 +1123,12 @@ public class Hybris {
      * This function gets called whenever the main GET API fails
      * due to Byzantine faults or concurrent GC.
      * @param key
+     * @param faulty - replicas found missing or tampered so far, rewritten
+     *          in background once the value is retrieved
      * @return a byte array containing the value associated with <key>.
      * @throws HybrisException
      */
-    private byte[] parallelGet(String key) throws HybrisException {
+    private byte[] parallelGet(String key, List<Kvs> faulty) throws HybrisException {
 
         HybrisWatcher hwatcher = this.new HybrisWatcher();
         Metadata md = this.mds.tsRead(key, null, hwatcher);
@@ -766,21 +1144,25 @@ public class Hybris {
         byte[] value = null;
         boolean keepRetrieving = true;
 
-        List<Kvs> kvsSublst = this.kvs.getKvsSortedByReadLatency();
+        List<Kvs> kvsSublst = new ArrayList<Kvs>(this.kvs.getKvsSortedByReadLatency());
         kvsSublst.retainAll(md.getReplicasLst());
+        if (kvsSublst.isEmpty()) {
+            logger.error("No cloud store holds the value of key {}.", key);
+            return null;
+        }
         @SuppressWarnings("unchecked")
 		Future<Entry<Kvs, byte[]>>[] futuresArray = new Future[kvsSublst.size()];
 
         do {
-            for (Kvs kvStore : kvsSublst)
-                futuresArray[kvsSublst.indexOf(kvStore)] = compServ.submit(this.kvs.new KvsGetWorker(kvStore, kvsKey));
+            for (int i=0; i<kvsSublst.size(); i++)
+                futuresArray[i] = compServ.submit(this.kvs.new KvsGetWorker(kvsSublst.get(i), kvsKey));
 
             for (int i=0; i<kvsSublst.size(); i++)
                 try {
                     if (hwatcher.isChanged()) {
                         for (Future<Entry<Kvs, byte[]>> future : futuresArray)
                             future.cancel(true);
-                        return this.parallelGet(key);
+                        return this.parallelGet(key, new ArrayList<Kvs>());
                     }
 
                     futureResult =  compServ.poll(this.TIMEOUT_READ, TimeUnit.SECONDS);
@@ -788,25 +1170,25 @@ public class Hybris {
                             !futureResult.get().getKey().getId().startsWith(KvsManager.FAIL_PREFIX)) {
                         
                             value = futureResult.get().getValue();
-                            if (Arrays.equals(md.getHash(), Utils.getHash(value))) {
+                            if (Arrays.equals(md.getHash(), Utils.getHash(value, md.getHashLeafSize()))) {
 
                                 if (this.cacheEnabled && CachePolicy.ONREAD.equals(this.cachePolicy))
-                                    this.cache.set(kvsKey, this.cacheExp, value);
-    
-                                if (md.getCryptoKey() != null)
-                                    try {
-                                        logger.debug("Decrypting data for key {}", key);
-                                        value = Utils.decrypt(value, md.getCryptoKey(), this.IV);
-                                    } catch (GeneralSecurityException | UnsupportedEncodingException e) {
-                                        logger.error("Could not decrypt data", e);
-                                        throw new HybrisException("Could not decrypt data", e);
-                                    }
+                                    this.cacheSet(key, kvsKey, value);
+                                this.cacheLocally(kvsKey, value);
+                                faulty.retainAll(kvsSublst);
+                                if (!faulty.isEmpty())
+                                    this.repair.repairReplicas(key, md.getTs(), value, faulty);
+    
+                                value = this.restoreValue(key, md, value);
                                 
                                 logger.info("Value of {} retrieved from kvStore {}", key, futureResult.get().getKey().getId());
                                 keepRetrieving = false;
                                 for (Future<Entry<Kvs, byte[]>> future : futuresArray)
                                     future.cancel(true);
                                 break;
+                        } else {
+                            logger.warn("Tampered data retrieved from {}", futureResult.get().getKey());
+                            faulty.add(futureResult.get().getKey());
                         }
                     }
                 } catch (InterruptedException | ExecutionException e) {
@@ -849,10 +1231,13 @@ public class Hybris {
             }
         }
         
-        Timestamp ts = md.getTs();
+        Timestamp ts = new Timestamp(md.getTs().getNum(), md.getTs().getCid());
         ts.inc( this.clientId );
         Metadata tombstone = Metadata.getTombstone(ts);
         this.mds.delete(key, tombstone, stat.getVersion());
+        
+        if (this.gcEnabled && !md.isTombstone())
+            mds.markStaleKey(key, md.getTs(), md.getReplicasLst());
     }
 
 
@@ -891,11 +1276,428 @@ public class Hybris {
      * Closes connections and shuts off thread pools.
      */
     public void shutdown() {
+        if (this.gcScheduler != null)
+            this.gcScheduler.shutdown();
+        this.repair.shutdown(this.TIMEOUT_WRITE);
         for (Kvs kvStore : this.kvs.getKvsList())
             this.kvs.shutdown(kvStore);
         this.mds.shutdown();
-        if (this.cacheEnabled)
+        if (this.cacheEnabled) {
+            this.cacheExecutor.shutdownNow();
             this.cache.shutdown();
+        }
+        if (this.offHeapCache != null)
+            this.offHeapCache.close();
+        if (this.diskCache != null)
+            this.diskCache.close();
+    }
+
+
+    /* ---------------------------------------------------------------------------------------
+                                        Private methods
+       --------------------------------------------------------------------------------------- */
+
+    /**
+     * Writes a value in the cache, if admitted and unless too many writes are in flight:
+     * cache writes are asynchronous and never delay nor fail Hybris operations.
+     * @param key - the user key
+     * @param cacheKey
+     * @param value
+     */
+    private void cacheSet(String key, String cacheKey, byte[] value) {
+        if (!this.cacheAdmission.admit(key, value.length)) {
+            logger.debug("{} ({} B) not admitted in cache", cacheKey, value.length);
+            return;
+        }
+        if (!this.cacheWindow.tryAcquire()) {
+            logger.debug("Too many cache writes in flight: {} not cached", cacheKey);
+            return;
+        }
+        try {
+            this.cache.set(cacheKey, this.cacheExp, value).addListener(new OperationCompletionListener() {
+                public void onComplete(OperationFuture<?> future) {
+                    Hybris.this.cacheWindow.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            this.cacheWindow.release();
+            logger.warn("Could not write {} in cache", cacheKey, e);
+        }
+    }
+
+    /**
+     * Returns the cache key of the erasure coded chunk <idx> of a value.
+     */
+    private static String getChunkCacheKey(String kvsKey, int idx) {
+        return kvsKey + "#" + idx;
+    }
+
+    /**
+     * Starts retrieving from the cache the chunks of an erasure coded value.
+     * @param kvsKey
+     * @param count - the number of chunks
+     * @return the pending bulk read, or null if it could not be started
+     */
+    private BulkFuture<Map<String, Object>> getCachedChunksAsync(String kvsKey, int count) {
+        List<String> cacheKeys = new ArrayList<String>();
+        for (int j=0; j<count; j++)
+            cacheKeys.add(getChunkCacheKey(kvsKey, j));
+        try {
+            return this.cache.asyncGetBulk(cacheKeys);
+        } catch (RuntimeException e) {
+            logger.warn("Could not retrieve chunks from cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Collects the chunks of an erasure coded value returned so far by a bulk 
+     * cache read, keeping those matching their hash and not retrieved yet.
+     * @param kvsKey
+     * @param bulk - the bulk read, cancelled if not completed
+     * @param chunksHashes
+     * @param chunks - filled with the chunks found, by position
+     * @param cached - flags the chunks found
+     * @return the number of chunks found
+     */
+    private int getCachedChunks(String kvsKey, BulkFuture<Map<String, Object>> bulk, 
+            byte[][] chunksHashes, byte[][] chunks, boolean[] cached) {
+        Map<String, Object> found;
+        try {
+            found = bulk.getSome(0, TimeUnit.MILLISECONDS);     // late chunks are fetched from clouds
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            logger.warn("Could not retrieve chunks from cache", e);
+            bulk.cancel(false);
+            return 0;
+        }
+        if (!bulk.isDone())
+            bulk.cancel(false);
+        int retrieved = 0;
+        for (int j=0; j<chunksHashes.length; j++) {
+            byte[] chunk = (byte[]) found.get(getChunkCacheKey(kvsKey, j));
+            if (chunk != null && chunks[j] == null && Arrays.equals(chunksHashes[j], Utils.getHash(chunk))) {
+                chunks[j] = chunk;
+                cached[j] = true;
+                retrieved++;
+            }
+        }
+        return retrieved;
+    }
+
+    /**
+     * Caches a verified value in the local cache tiers.
+     * @param kvsKey
+     * @param value - the value as stored on KVSs
+     */
+    private void cacheLocally(String kvsKey, byte[] value) {
+        if (this.nearCache != null)
+            this.nearCache.put(kvsKey, value);
+        if (this.offHeapCache != null)
+            this.offHeapCache.put(kvsKey, value);
+        if (this.diskCache != null)
+            this.diskCache.put(kvsKey, value);
+    }
+
+    /**
+     * Looks a value up in the local cache tiers, from the fastest one;
+     * values found in a slower tier are promoted to the faster ones.
+     * @param kvsKey
+     * @return the value as stored on KVSs, or null if not cached
+     */
+    private byte[] getCachedLocally(String kvsKey) {
+        byte[] value;
+        if (this.nearCache != null && (value = this.nearCache.get(kvsKey)) != null)
+            return value;
+        if (this.offHeapCache != null && (value = this.offHeapCache.getBytes(kvsKey)) != null) {
+            if (this.nearCache != null)
+                this.nearCache.put(kvsKey, value);
+            return value;
+        }
+        if (this.diskCache != null && (value = this.diskCache.get(kvsKey)) != null) {
+            if (this.nearCache != null)
+                this.nearCache.put(kvsKey, value);
+            if (this.offHeapCache != null)
+                this.offHeapCache.put(kvsKey, value);
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the leaf size to adopt for hashing <value>:
+     * values fitting in a single leaf are hashed sequentially.
+     * @param value
+     * @return the leaf size [B], or 0 for sequential hashing
+     */
+    private int getHashLeafSize(byte[] value) {
+        return value.length > this.hashLeafSize ? this.hashLeafSize : 0;
+    }
+
+    /**
+     * Disables the erasure coding write quorum if the chunks left 
+     * for repair could not be recorded in the metadata bitmask.
+     * @return false if the write quorum was disabled
+     */
+    private boolean checkEcWriteQuorum() {
+        if (this.ecWriteQuorum <= 0 || this.ecWriteQuorum >= k + m 
+                || k + m <= Metadata.MAX_MISSING_CHUNKS)
+            return true;
+        logger.error("Write quorum not supported with more than {} chunks, disabling it.", 
+                Metadata.MAX_MISSING_CHUNKS);
+        this.ecWriteQuorum = 0;
+        return false;
+    }
+
+    /**
+     * @return the number of erasure coded chunks to store before committing a write
+     */
+    private int getEcWriteQuorum() {
+        if (this.ecWriteQuorum <= 0)
+            return k + m;
+        return Math.max(k + 1, Math.min(this.ecWriteQuorum, k + m));
+    }
+
+    /**
+     * Caches <key> as missing, and watches its metadata so that
+     * the entry is dropped as soon as it gets written by any client.
+     * @param key
+     * @param version - the version of the metadata read (NONODE if not found)
+     */
+    private void cacheMissing(final String key, int version) {
+        if (!this.negativeCache.add(key))
+            return;
+        boolean watched = false;
+        try {
+            watched = this.mds.watch(key, version, new Runnable() {
+                public void run() {
+                    Hybris.this.negativeCache.invalidate(key);
+                }
+            });
+        } catch (HybrisException e) {
+            logger.warn("Could not watch the metadata of key {}.", key);
+        }
+        if (!watched)
+            this.negativeCache.invalidate(key);
+    }
+
+    /**
+     * Writes the metadata of a value stored on KVSs and marks
+     * the data it overwrites as stale.
+     * Should a concurrent write slip in between, the value it stored is not 
+     * marked: such leftovers are only reclaimed by {@link GcManager#batchGc()}.
+     * @param key
+     * @param md
+     * @param stat - the stat of the metadata read before storing the value
+     * @param previous - the metadata read before storing the value (can be null)
+     * @param missingChunks - the chunks not stored yet (can be null): should the write
+     *          fail, the cloud stores they are being uploaded to are marked as orphan too
+     * @throws HybrisException
+     */
+    private void writeMetadata(String key, Metadata md, Stat stat, Metadata previous, 
+            Map<Integer, EcChunk> missingChunks) throws HybrisException {
+        boolean overwritten = false;
+        try {
+            overwritten = this.mds.tsWrite(key, md, stat.getVersion());
+            if (this.negativeCache != null)
+                this.negativeCache.remove(key);
+        } catch (HybrisException e) {
+            if (this.gcEnabled) {
+                List<Kvs> orphans = new ArrayList<Kvs>(md.getReplicasLst());
+                if (missingChunks != null)
+                    for (EcChunk chunk : missingChunks.values())
+                        if (chunk.kvs != null)
+                            orphans.add(chunk.kvs);
+                mds.markOrphanKey(key, md.getTs(), orphans);
+            }
+            logger.warn("Could not store metadata on Zookeeper for key {}.", key);
+            throw new HybrisException("Could not store the metadata on Zookeeper");
+        }
+
+        if (this.gcEnabled && overwritten && previous != null && !previous.isTombstone())
+            mds.markStaleKey(key, previous.getTs(), previous.getReplicasLst());
+    }
+
+    /**
+     * Erasure codes a value stripe by stripe and streams chunk i, made of the 
+     * i-th block of every stripe, to the i-th of the k+m fastest cloud stores.
+     * Each chunk is written into a pipe drained by its upload worker, so that 
+     * encoding overlaps network transfers and at most one stripe and 
+     * two blocks per chunk are buffered.
+     * A chunk whose upload fails or does not accept a block within the write
+     * timeout is dropped, while the others keep streaming. Dropped chunks are
+     * returned as missing, without their data, so that the RepairManager 
+     * rebuilds them from the stored ones in background; the write fails 
+     * if fewer chunks than the write quorum are stored.
+     * @param key
+     * @param ts
+     * @param value
+     * @param size - number of bytes to read from value
+     * @param stripeSize - aligned stripe size, as returned by EcManager.getStripeSize
+     * @param scheme - erasure coding scheme
+     * @param savedReplicasLst - filled with the Kvs storing each chunk
+     * @param missingChunks - filled with the chunks dropped, by position
+     * @return the hashes of the chunks
+     * @throws HybrisException
+     */
+    private byte[][] putStriped(String key, Timestamp ts, InputStream value, int size, 
+            int stripeSize, CodingScheme scheme, List<Kvs> savedReplicasLst, 
+            Map<Integer, EcChunk> missingChunks) throws HybrisException {
+        
+        List<Kvs> kvsLst = this.kvs.getKvsSortedByWriteLatency();
+        if (kvsLst.size() < k + m) {
+            logger.warn("Not enough cloud stores to store {} chunks for key {}.", k + m, key);
+            throw new HybrisException("Not enough cloud stores for erasure coding");
+        }
+        List<Kvs> targets = new ArrayList<Kvs>(kvsLst.subList(0, k + m));
+        String kvsKey = Utils.getKvsKey(key, ts);
+        int chunkSize = this.ec.getStripedChunkSize(size, k, m, stripeSize, scheme);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(k + m);
+        List<Future<Kvs>> futures = new ArrayList<Future<Kvs>>(k + m);
+        BlockPipe[] pipes = new BlockPipe[k + m];
+        MessageDigest[] digests = new MessageDigest[k + m];
+        boolean[] dropped = new boolean[k + m];
+        long start = System.currentTimeMillis();
+        try {
+            for (int i=0; i<k+m; i++) {
+                pipes[i] = new BlockPipe(1);
+                digests[i] = Utils.getHashDigest();
+                futures.add(executor.submit(this.kvs.new KvsStreamPutWorker(targets.get(i), kvsKey, 
+                        pipes[i].getInputStream(), chunkSize)));
+            }
+            
+            byte[] stripe = new byte[stripeSize];
+            for (int offset=0; offset<size; offset+=stripeSize) {
+                int length = Math.min(stripeSize, size - offset);
+                ByteStreams.readFully(value, stripe, 0, length);
+                byte[][] blocks = this.ec.encode(stripe, length, k, m, scheme);
+                for (int i=0; i<k+m; i++) {
+                    digests[i].update(blocks[i]);
+                    if (!dropped[i])
+                        try {
+                            pipes[i].write(blocks[i], this.TIMEOUT_WRITE, TimeUnit.SECONDS);
+                        } catch (InterruptedIOException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            this.dropChunk(i, pipes, futures, dropped, targets, key, e);
+                        }
+                }
+            }
+            for (int i=0; i<k+m; i++)
+                if (!dropped[i])
+                    try {
+                        pipes[i].close(this.TIMEOUT_WRITE, TimeUnit.SECONDS);
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        this.dropChunk(i, pipes, futures, dropped, targets, key, e);
+                    }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            for (BlockPipe pipe : pipes)
+                if (pipe != null) pipe.abort();
+            executor.shutdownNow();
+            if (this.gcEnabled) mds.markOrphanKey(key, ts, targets);
+            logger.warn("Could not stream chunks to cloud stores for key {}.", key, e);
+            throw new HybrisException("Could not store data in cloud stores", e);
+        }
+        
+        byte[][] chunkHashes = new byte[k + m][];
+        int stored = 0;
+        for (int i=0; i<k+m; i++) {
+            chunkHashes[i] = digests[i].digest();
+            if (dropped[i])
+                continue;
+            Kvs savedReplica = null;
+            try {
+                savedReplica = futures.get(i).get(this.TIMEOUT_WRITE, TimeUnit.SECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                logger.warn("Exception on write task execution", e);
+            }
+            if (savedReplica == null || savedReplica.getId().startsWith(KvsManager.FAIL_PREFIX)) {
+                futures.get(i).cancel(true);
+                dropped[i] = true;
+                logger.warn("Could not stream chunk {} of {} to {}", i, key, targets.get(i));
+                continue;
+            }
+            logger.debug("Chunk {}, {} B, stored on {}, {} ms", i, chunkSize, savedReplica,
+                    System.currentTimeMillis() - start);
+            stored++;
+        }
+        
+        executor.shutdownNow();
+        
+        if (stored < this.getEcWriteQuorum()) {
+            if (this.gcEnabled) mds.markOrphanKey(key, ts, targets);
+            logger.warn("Could not store data in cloud stores for key {}.", key);
+            throw new HybrisException("Could not store data in cloud stores");
+        }
+        
+        /* The target of a dropped chunk comes first for its repair, 
+         * so that a partial upload is overwritten rather than leaked. */
+        for (int i=0; i<k+m; i++)
+            if (dropped[i])
+                missingChunks.put(i, this.ec.new EcChunk(null, chunkHashes[i], targets.get(i), 
+                        ChunkState.PENDING));
+            else
+                savedReplicasLst.add(targets.get(i));
+        return chunkHashes;
+    }
+    
+    private void dropChunk(int i, BlockPipe[] pipes, List<Future<Kvs>> futures, boolean[] dropped, 
+            List<Kvs> targets, String key, IOException cause) throws IOException {
+        pipes[i].abort();
+        futures.get(i).cancel(true);
+        dropped[i] = true;
+        logger.warn("Could not stream chunk {} of {} to {}", i, key, targets.get(i), cause);
+        
+        int count = 0;
+        for (boolean d : dropped)
+            if (d) count++;
+        if (count > m)
+            throw new IOException("Too many chunks could not be streamed");
+    }
+    
+    /**
+     * Restores the original value from the one stored on KVSs,
+     * decrypting and decompressing it if needed.
+     * @param key
+     * @param md - the metadata associated with <key>
+     * @param value - the verified value retrieved from KVSs or cache
+     * @return the original value
+     * @throws HybrisException
+     */
+    private byte[] restoreValue(String key, Metadata md, byte[] value) throws HybrisException {
+        if (md.getCryptoKey() != null)
+            try {
+                logger.debug("Decrypting data for key {}", key);
+                if (md.getCryptoSegmentSize() > 0)
+                    value = Utils.decryptSegmented(value, md.getCryptoKey(), md.getCryptoSegmentSize());
+                else
+                    value = Utils.decrypt(value, md.getCryptoKey(), this.IV);
+            } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+                logger.error("Could not decrypt data", e);
+                throw new HybrisException("Could not decrypt data", e);
+            }
+        CompressionCodec compression;
+        try {
+            compression = CompressionCodec.fromId(md.getCompression());
+        } catch (IllegalArgumentException e) {     // e.g. written by a newer client
+            logger.error("Could not decompress data for key {}: unknown codec {}", key, md.getCompression());
+            throw new HybrisException("Could not decompress data: unknown codec " + md.getCompression(), e);
+        }
+        switch (compression) {
+            case DEFLATE:
+                try {
+                    value = Utils.decompress(value);
+                } catch (DataFormatException e) {
+                    logger.error("Could not decompress data", e);
+                    throw new HybrisException("Could not decompress data", e);
+                }
+                break;
+            case NONE:
+                break;
+        }
+        return value;
     }
 
 
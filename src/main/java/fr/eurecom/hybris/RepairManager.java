@@ -0,0 +1,485 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.eurecom.hybris.EcManager.EcChunk;
+import fr.eurecom.hybris.ec.CodingScheme;
+import fr.eurecom.hybris.kvs.KvsManager;
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+import fr.eurecom.hybris.mds.Metadata;
+import fr.eurecom.hybris.mds.Metadata.Timestamp;
+import fr.eurecom.hybris.mds.Rmds;
+
+/**
+ * Class in charge of restoring the redundancy of stored values:
+ * it uploads in background the erasure coded chunks which were not yet 
+ * durable when the metadata of a value was written, rewrites the replicas 
+ * found missing or corrupted by reads, and re-replicates values 
+ * which lost copies, e.g. after a cloud outage.
+ * @author P. Viotti
+ */
+public class RepairManager {
+    
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+    
+    private static int MD_UPDATE_ATTEMPTS = 3;
+    private static int REREPLICATION_BATCH = 64;     // values listed and uploaded before their metadata is updated
+    
+    private final Hybris hybris;
+    private final KvsManager kvs;
+    private final Rmds mds;
+    private final boolean gcEnabled;
+    private final int quorum;
+    private final RateLimiter rateLimiter;     // [B/s] of data read and written by re-replication
+    private final ExecutorService executor;
+    
+    /**
+     * @param hybris
+     * @param gcEnabled - mark the data uploaded for overwritten values as orphan
+     * @param quorum - number of replicas of replicated values
+     */
+    public RepairManager(Hybris hybris, boolean gcEnabled, int quorum) {
+        this.hybris = hybris;
+        this.kvs = hybris.kvs;
+        this.mds = hybris.mds;
+        this.gcEnabled = gcEnabled;
+        this.quorum = quorum;
+        this.rateLimiter = RateLimiter.create(
+                Long.parseLong(Config.getInstance().getProperty(Config.HS_REPAIR_RATE, "10485760")));
+        this.executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hybris-repair-%d").build());
+    }
+    
+    /**
+     * Queues the upload of the missing chunks of a value.
+     * @param key
+     * @param ts - timestamp of the value
+     * @param missing - missing chunks, by position; chunk.kvs, if any, is 
+     *          the cloud store the chunk was originally sent to; chunks without 
+     *          data (e.g. dropped while streaming) are first rebuilt from the stored ones
+     * @return a future holding true if all the chunks were stored and recorded in the metadata
+     */
+    public Future<Boolean> repairChunks(String key, Timestamp ts, Map<Integer, EcChunk> missing) {
+        return this.repairChunks(key, ts, missing, new ArrayList<Kvs>());
+    }
+    
+    /**
+     * Queues the upload of the missing chunks of a value, replacing faulty cloud stores.
+     * @param faulty - cloud stores which lost their chunk, removed from 
+     *          the metadata once the missing chunks are stored elsewhere
+     * @see #repairChunks(String, Timestamp, Map)
+     */
+    public Future<Boolean> repairChunks(final String key, final Timestamp ts, final Map<Integer, EcChunk> missing,
+            final List<Kvs> faulty) {
+        return this.executor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return RepairManager.this.repair(key, ts, missing, faulty);
+            }
+        });
+    }
+    
+    /**
+     * Queues the rewrite of the replicas of a value found missing or corrupted.
+     * Each faulty cloud store is rewritten in place or, if that fails, 
+     * replaced in the metadata by another one.
+     * @param key
+     * @param ts - timestamp of the value
+     * @param value - the stored value, verified against its hash
+     * @param faulty
+     * @return a future holding true if all the replicas were restored
+     */
+    public Future<Boolean> repairReplicas(final String key, final Timestamp ts, final byte[] value, 
+            final List<Kvs> faulty) {
+        return this.executor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return RepairManager.this.repair(key, ts, value, faulty);
+            }
+        });
+    }
+    
+    /**
+     * Restores quorum replicas of every replicated value, e.g. after a cloud outage.
+     * The replicas of each value are read and verified against its hash, then the 
+     * value is copied to the fastest cloud stores not holding it (or else rewritten
+     * on the faulty ones) and the missing or corrupted replicas are dropped from
+     * the metadata. Uploads run in parallel on one thread per cloud store; reads
+     * and uploads are throttled to hybris.repair.rate.
+     * Erasure coded values are left to the {@link Scrubber}.
+     * @return the number of replicas restored
+     * @throws HybrisException if the metadata could not be listed
+     */
+    public int rereplicate() throws HybrisException {
+        
+        Map<Kvs, ExecutorService> uploaders = new IdentityHashMap<Kvs, ExecutorService>();
+        for (Kvs kvStore : this.kvs.getKvsList())
+            uploaders.put(kvStore, Executors.newSingleThreadExecutor());
+        
+        List<PendingReplicas> batch = new ArrayList<PendingReplicas>();
+        int restored = 0;
+        try {
+            SortedMap<String, Metadata> page = this.mds.list(null, REREPLICATION_BATCH);
+            while (!page.isEmpty()) {
+                for (Entry<String, Metadata> entry : page.entrySet()) {
+                    PendingReplicas pending = this.rereplicate(entry.getKey(), entry.getValue(), uploaders);
+                    if (pending != null)
+                        batch.add(pending);
+                }
+                restored += this.complete(batch);
+                batch.clear();
+                page = this.mds.list(page.lastKey(), REREPLICATION_BATCH);
+            }
+        } finally {
+            for (ExecutorService uploader : uploaders.values())
+                uploader.shutdownNow();
+        }
+        logger.info("Re-replication: {} replicas restored", restored);
+        return restored;
+    }
+    
+    /**
+     * Uploads of the replicas of a value, to be recorded in its metadata once completed.
+     */
+    private static class PendingReplicas {
+        String key;
+        Timestamp ts;
+        List<Kvs> faulty = new ArrayList<Kvs>();
+        List<Future<Kvs>> uploads = new ArrayList<Future<Kvs>>();
+    }
+    
+    private PendingReplicas rereplicate(String key, Metadata md, Map<Kvs, ExecutorService> uploaders) {
+        
+        if (md == null || md.isTombstone() || md.getChunksHashes() != null || md.getHash() == null)
+            return null;
+        
+        PendingReplicas pending = new PendingReplicas();
+        pending.key = key;
+        pending.ts = md.getTs();
+        final String kvsKey = Utils.getKvsKey(key, md.getTs());
+        Set<Kvs> replicas = this.getReplicas(md);
+        byte[] value = null;
+        for (Kvs kvStore : replicas) {
+            byte[] replica = null;
+            try {
+                replica = this.kvs.get(kvStore, kvsKey);
+            } catch (IOException e) { }
+            if (replica != null)
+                this.rateLimiter.acquire(Math.max(replica.length, 1));
+            if (replica != null && Arrays.equals(md.getHash(), Utils.getHash(replica, md.getHashLeafSize()))) {
+                if (value == null)
+                    value = replica;
+            } else
+                pending.faulty.add(kvStore);
+        }
+        if (value == null) {
+            logger.error("Re-replication: no valid replica of {} left", key);
+            return null;
+        }
+        
+        int missing = this.quorum - (replicas.size() - pending.faulty.size());
+        if (missing <= 0 && pending.faulty.isEmpty())
+            return null;
+        
+        List<Kvs> targets = new ArrayList<Kvs>();
+        for (Kvs kvStore : this.kvs.getKvsSortedByWriteLatency())
+            if (!replicas.contains(kvStore))
+                targets.add(kvStore);
+        targets.addAll(pending.faulty);
+        
+        final byte[] data = value;
+        for (final Kvs kvStore : targets.subList(0, Math.max(0, Math.min(missing, targets.size()))))
+            pending.uploads.add(uploaders.get(kvStore).submit(new Callable<Kvs>() {
+                public Kvs call() {
+                    RepairManager.this.rateLimiter.acquire(Math.max(data.length, 1));
+                    try {
+                        RepairManager.this.kvs.put(kvStore, kvsKey, data);
+                        return kvStore;
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+            }));
+        return pending;
+    }
+    
+    /**
+     * @return the cloud stores holding the replicas of a value, 
+     *          each entry of the metadata being matched to a distinct instance
+     */
+    private Set<Kvs> getReplicas(Metadata md) {
+        Set<Kvs> replicas = Collections.newSetFromMap(new IdentityHashMap<Kvs, Boolean>());
+        for (Kvs replica : md.getReplicasLst())
+            for (Kvs kvStore : this.kvs.getKvsList())
+                if (kvStore.equals(replica) && replicas.add(kvStore))
+                    break;
+        return replicas;
+    }
+    
+    /**
+     * Waits for the uploads of a batch of values and updates their metadata.
+     * @return the number of replicas restored
+     */
+    private int complete(List<PendingReplicas> batch) {
+        int restored = 0;
+        for (PendingReplicas pending : batch) {
+            List<Kvs> added = new ArrayList<Kvs>();
+            List<Kvs> removed = new ArrayList<Kvs>(pending.faulty);
+            for (Future<Kvs> upload : pending.uploads) {
+                Kvs kvStore = null;
+                try {
+                    kvStore = upload.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    logger.warn("Re-replication: upload of {} failed", pending.key, e);
+                }
+                if (kvStore == null)
+                    continue;
+                restored++;
+                if (!removed.remove(kvStore))   // a faulty replica rewritten in place stays
+                    added.add(kvStore);
+            }
+            if (!added.isEmpty() || !removed.isEmpty())
+                this.updateMetadata(pending.key, pending.ts, added, removed, 0);
+        }
+        return restored;
+    }
+    
+    /**
+     * Stops accepting repairs and waits for the queued ones to complete.
+     * Chunks which are still missing stay recorded in the metadata.
+     * @param timeout - [s]
+     */
+    public void shutdown(int timeout) {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(timeout, TimeUnit.SECONDS))
+                logger.warn("Repair: pending chunk uploads interrupted by shutdown");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.executor.shutdownNow();
+    }
+    
+    private boolean repair(String key, Timestamp ts, Map<Integer, EcChunk> missing, List<Kvs> faulty) {
+        
+        Metadata md = this.readCurrent(key, ts, null);
+        if (md == null)
+            return false;
+        
+        String kvsKey = Utils.getKvsKey(key, ts);
+        if (!this.rebuild(kvsKey, md, missing))
+            return false;
+        List<Kvs> used = new ArrayList<Kvs>(md.getReplicasLst());
+        List<Kvs> added = new ArrayList<Kvs>();
+        int repairedMask = 0;
+        for (Entry<Integer, EcChunk> entry : missing.entrySet()) {
+            /* The original target comes first, so that a late upload is overwritten 
+             * rather than leaked; other candidates must not already hold a chunk. */
+            Kvs kvStore = this.store(kvsKey, entry.getValue().data, entry.getValue().kvs, used);
+            if (kvStore != null) {
+                added.add(kvStore);
+                used.add(kvStore);
+                repairedMask |= 1 << entry.getKey();
+            }
+        }
+        if (added.isEmpty())
+            return false;
+        
+        return this.updateMetadata(key, ts, added, faulty, repairedMask) && added.size() == missing.size();
+    }
+    
+    private boolean repair(String key, Timestamp ts, byte[] value, List<Kvs> faulty) {
+        
+        Metadata md = this.readCurrent(key, ts, null);
+        if (md == null)
+            return false;
+        
+        String kvsKey = Utils.getKvsKey(key, ts);
+        List<Kvs> used = new ArrayList<Kvs>(md.getReplicasLst());
+        List<Kvs> added = new ArrayList<Kvs>(), removed = new ArrayList<Kvs>();
+        int restored = 0;
+        for (Kvs kvStore : faulty) {
+            Kvs target = this.store(kvsKey, value, kvStore, used);
+            if (target == null)
+                continue;
+            restored++;
+            if (target != kvStore) {
+                added.add(target);
+                removed.add(kvStore);
+                used.add(target);
+            }
+        }
+        if (!added.isEmpty() && !this.updateMetadata(key, ts, added, removed, 0))
+            return false;
+        return restored == faulty.size();
+    }
+    
+    /**
+     * Fills in the data of the missing chunks which have none, 
+     * rebuilding them from k chunks read back from the cloud stores.
+     * Heads up: the whole value is read back and decoded in memory.
+     * @return false if the chunks could not be rebuilt
+     */
+    private boolean rebuild(String kvsKey, Metadata md, Map<Integer, EcChunk> missing) {
+        
+        boolean rebuild = false;
+        for (EcChunk chunk : missing.values())
+            rebuild |= chunk.data == null;
+        if (!rebuild)
+            return true;
+        
+        int k = this.hybris.k;
+        byte[][] chunksHashes = md.getChunksHashes();
+        byte[][] chunks = new byte[chunksHashes.length][];
+        List<Kvs> kvsLst = new ArrayList<Kvs>(this.kvs.getKvsSortedByReadLatency());
+        kvsLst.retainAll(md.getReplicasLst());
+        int available = 0;
+        for (Kvs kvStore : kvsLst) {
+            if (available >= k)
+                break;
+            try {
+                byte[] chunk = this.kvs.get(kvStore, kvsKey);
+                int idx = chunk == null ? -1 : EcManager.getChunkIndex(chunk, chunksHashes, chunks);
+                if (idx >= 0) {
+                    chunks[idx] = chunk;
+                    available++;
+                }
+            } catch (IOException e) {
+                logger.warn("Repair: could not read back a chunk of {} from {}", kvsKey, kvStore);
+            }
+        }
+        
+        try {
+            if (available < k)
+                throw new HybrisException("Only " + available + " chunks could be read back");
+            byte[][] rebuilt = this.hybris.ec.rebuild(chunks, k, md.getSize(), md.getStripeSize(), 
+                    CodingScheme.fromId(md.getEcScheme()));
+            for (Entry<Integer, EcChunk> entry : missing.entrySet()) {
+                int j = entry.getKey();
+                if (entry.getValue().data != null)
+                    continue;
+                if (!Arrays.equals(chunksHashes[j], Utils.getHash(rebuilt[j])))
+                    throw new HybrisException("Rebuilt chunk " + j + " does not match its hash");
+                entry.getValue().data = rebuilt[j];
+            }
+        } catch (HybrisException e) {
+            logger.warn("Repair: could not rebuild the missing chunks of {}", kvsKey, e);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Stores data on the preferred cloud store or else on the fastest one
+     * among those not excluded.
+     * @return the cloud store holding data, or null if none could store it
+     */
+    private Kvs store(String kvsKey, byte[] data, Kvs preferred, List<Kvs> excluded) {
+        List<Kvs> candidates = new ArrayList<Kvs>();
+        if (preferred != null)
+            candidates.add(preferred);
+        for (Kvs kvStore : this.kvs.getKvsSortedByWriteLatency())
+            if (kvStore != preferred && !excluded.contains(kvStore))
+                candidates.add(kvStore);
+        
+        for (Kvs kvStore : candidates)
+            try {
+                this.kvs.put(kvStore, kvsKey, data);
+                logger.debug("Repair: {} stored on {}", kvsKey, kvStore);
+                return kvStore;
+            } catch (IOException e) {
+                logger.warn("Repair: could not store {} on {}", kvsKey, kvStore);
+            }
+        return null;
+    }
+    
+    /**
+     * Records the cloud stores added and removed by a repair in the metadata,
+     * unless the value was overwritten or deleted in the meantime.
+     * The copies left on the removed cloud stores are then marked as orphan,
+     * as they share the timestamp of the current value.
+     * @param repairedMask - chunks no longer missing
+     * @return true if the metadata was updated
+     */
+    private boolean updateMetadata(String key, Timestamp ts, List<Kvs> added, List<Kvs> removed, 
+            int repairedMask) {
+        for (int i=0; i<MD_UPDATE_ATTEMPTS; i++) {
+            Stat stat = new Stat();
+            Metadata md = this.readCurrent(key, ts, stat);
+            if (md == null) {
+                if (this.gcEnabled && !added.isEmpty())
+                    this.mds.markOrphanKey(key, ts, added);
+                return false;
+            }
+            for (Kvs kvStore : removed)
+                md.getReplicasLst().remove(kvStore);
+            md.getReplicasLst().addAll(added);
+            md.setMissingChunks(md.getMissingChunks() & ~repairedMask);
+            try {
+                if (this.mds.tsWrite(key, md, stat.getVersion())) {
+                    logger.info("Repair: {} now stored on {}", key, md.getReplicasLst());
+                    if (this.gcEnabled && !removed.isEmpty())
+                        this.mds.markOrphanKey(key, ts, removed);
+                    return true;
+                }
+            } catch (HybrisException e) {
+                logger.warn("Repair: could not update the metadata of {}", key, e);
+            }
+        }
+        logger.warn("Repair: gave up updating the metadata of {}", key);
+        return false;
+    }
+    
+    /**
+     * @return the metadata of key if its timestamp is still ts, null otherwise
+     */
+    private Metadata readCurrent(String key, Timestamp ts, Stat stat) {
+        Metadata md;
+        try {
+            md = this.mds.tsRead(key, stat);
+        } catch (HybrisException e) {
+            logger.warn("Repair: could not read the metadata of {}", key, e);
+            return null;
+        }
+        if (md == null || md.isTombstone() || !ts.equals(md.getTs())) {
+            logger.debug("Repair: {} was overwritten or deleted, skipping", key);
+            return null;
+        }
+        return md;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.eurecom.hybris.EcManager.ChunkState;
+import fr.eurecom.hybris.EcManager.EcChunk;
+import fr.eurecom.hybris.ec.CodingScheme;
+import fr.eurecom.hybris.kvs.KvsManager;
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+import fr.eurecom.hybris.mds.Metadata;
+import fr.eurecom.hybris.mds.Rmds;
+
+/**
+ * Class in charge of verifying the erasure coded chunks stored on KVSs.
+ * Keys are scrubbed in lexicographic order, a batch at a time, and 
+ * chunk reads are throttled to a configured bandwidth.
+ * Lost or corrupted chunks are rebuilt from the surviving ones and 
+ * written back to the cloud store which lost them, or handed to
+ * the RepairManager if that store is not available. Chunks recorded
+ * as missing in the metadata are left to the RepairManager uploading them.
+ * @author P. Viotti
+ */
+public class Scrubber {
+    
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+    
+    private final KvsManager kvs;
+    private final Rmds mds;
+    private final EcManager ec;
+    private final RepairManager repair;
+    private final int k;
+    private final RateLimiter rateLimiter;     // [B/s] of chunks read
+    
+    private String cursor;      // last key scrubbed in the current pass
+    private ScheduledExecutorService scheduler;
+    
+    private final AtomicLong checkedChunks = new AtomicLong();
+    private final AtomicLong repairedChunks = new AtomicLong();
+    
+    public Scrubber(Hybris hybris) {
+        this(hybris, Long.parseLong(Config.getInstance().getProperty(Config.HS_SCRUB_RATE, "10485760")));
+    }
+    
+    /**
+     * @param hybris - a client with erasure coding enabled
+     * @param bytesPerSecond - maximum rate of chunk reads
+     */
+    public Scrubber(Hybris hybris, long bytesPerSecond) {
+        if (hybris.ec == null)
+            throw new IllegalStateException("Scrubbing requires erasure coding");
+        this.kvs = hybris.kvs;
+        this.mds = hybris.mds;
+        this.ec = hybris.ec;
+        this.repair = hybris.repair;
+        this.k = hybris.k;
+        this.rateLimiter = RateLimiter.create(bytesPerSecond);
+    }
+    
+    /**
+     * Periodically scrubs a batch of keys in background.
+     * @param batchSize - number of keys per run
+     * @param period - delay between the end of a run and the start of the next one
+     * @param unit
+     */
+    public synchronized void start(final int batchSize, long period, TimeUnit unit) {
+        if (this.scheduler != null)
+            return;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hybris-scrubber-%d").build());
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    Scrubber.this.scrub(batchSize);
+                } catch (HybrisException e) {
+                    logger.warn("Scrub: could not list the metadata", e);
+                }
+            }
+        }, 0, period, unit);
+    }
+    
+    public synchronized void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+    
+    public long getCheckedChunks() { return this.checkedChunks.get(); }
+    public long getRepairedChunks() { return this.repairedChunks.get(); }
+    
+    /**
+     * Scrubs the next batch of keys of the current pass.
+     * @param batchSize - maximum number of keys to scrub
+     * @return true if the pass is completed, so that the next call starts a new one
+     * @throws HybrisException if the metadata could not be listed
+     */
+    public synchronized boolean scrub(int batchSize) throws HybrisException {
+        
+        SortedMap<String, Metadata> page = this.mds.list(this.cursor, batchSize);
+        for (Entry<String, Metadata> entry : page.entrySet()) {
+            try {
+                this.scrub(entry.getKey(), entry.getValue());
+            } catch (HybrisException e) {
+                logger.warn("Scrub: could not scrub key {}", entry.getKey(), e);
+            }
+            this.cursor = entry.getKey();
+        }
+        
+        if (page.size() >= batchSize)
+            return false;
+        logger.info("Scrub: pass completed, {} chunks checked, {} repaired", 
+                this.checkedChunks.get(), this.repairedChunks.get());
+        this.cursor = null;
+        return true;
+    }
+    
+    /**
+     * Verifies the chunks of the value associated with key and rebuilds the missing ones.
+     * @param key
+     * @return the number of chunks rebuilt
+     * @throws HybrisException
+     */
+    public int scrub(String key) throws HybrisException {
+        return this.scrub(key, this.mds.tsRead(key, null));
+    }
+    
+    private int scrub(String key, Metadata md) throws HybrisException {
+        
+        if (md == null || md.isTombstone() || md.getChunksHashes() == null)
+            return 0;
+        
+        byte[][] chunksHashes = md.getChunksHashes();
+        int n = chunksHashes.length, m = n - this.k;
+        if (m <= 0) {
+            logger.warn("Scrub: {} has {} chunks, which does not match k={}", key, n, this.k);
+            return 0;
+        }
+        String kvsKey = Utils.getKvsKey(key, md.getTs());
+        int pending = md.getMissingChunks();   // still being uploaded by the RepairManager
+        int chunkSize = Math.max(md.getSize() / this.k, 1);
+        
+        List<Kvs> kvsLst = new ArrayList<Kvs>(this.kvs.getKvsList());
+        kvsLst.retainAll(md.getReplicasLst());
+        byte[][] chunks = new byte[n][];
+        List<Kvs> faulty = new ArrayList<Kvs>();
+        int available = 0;
+        for (Kvs kvStore : kvsLst) {
+            this.rateLimiter.acquire(chunkSize);
+            byte[] chunk = null;
+            try {
+                chunk = this.kvs.get(kvStore, kvsKey);
+            } catch (IOException e) { }
+            int idx = -1;
+            if (chunk != null)
+                idx = EcManager.getChunkIndex(chunk, chunksHashes, chunks);
+            this.checkedChunks.incrementAndGet();
+            if (idx >= 0) {
+                chunks[idx] = chunk;
+                available++;
+            } else {
+                logger.warn("Scrub: missing or corrupted chunk of {} on {}", kvsKey, kvStore);
+                faulty.add(kvStore);
+            }
+        }
+        
+        if (available + Integer.bitCount(pending) >= n)
+            return 0;
+        if (available < this.k) {
+            logger.error("Scrub: only {} chunks of {} left, it cannot be rebuilt", available, kvsKey);
+            return 0;
+        }
+        
+        byte[][] rebuilt = this.rebuild(chunks, md);
+        Map<Integer, EcChunk> missing = new HashMap<Integer, EcChunk>();
+        for (int j=0; j<n; j++)
+            if (chunks[j] == null && (pending & (1 << j)) == 0)
+                missing.put(j, this.ec.new EcChunk(rebuilt[j], chunksHashes[j], null, ChunkState.KO));
+        
+        /* Rebuilt chunks are written back in place; those left over
+         * (e.g. the store is down) are placed elsewhere by the RepairManager. */
+        int repaired = 0;
+        for (Iterator<Entry<Integer, EcChunk>> it = missing.entrySet().iterator(); 
+                it.hasNext() && !faulty.isEmpty(); ) {
+            Entry<Integer, EcChunk> entry = it.next();
+            Kvs kvStore = faulty.get(0);
+            try {
+                this.kvs.put(kvStore, kvsKey, entry.getValue().data);
+                faulty.remove(0);
+                it.remove();
+                repaired++;
+                logger.info("Scrub: chunk {} of {} rebuilt on {}", entry.getKey(), kvsKey, kvStore);
+            } catch (IOException e) {
+                logger.warn("Scrub: could not write back chunk {} of {} to {}", entry.getKey(), kvsKey, kvStore);
+                break;
+            }
+        }
+        if (!missing.isEmpty())
+            this.repair.repairChunks(key, md.getTs(), missing, faulty);
+        
+        this.repairedChunks.addAndGet(repaired);
+        return repaired + missing.size();
+    }
+    
+    /**
+     * @return all the chunks of a value, recomputed from the (at least k) available ones
+     */
+    private byte[][] rebuild(byte[][] chunks, Metadata md) throws HybrisException {
+        
+        byte[][] rebuilt = this.ec.rebuild(chunks, this.k, md.getSize(), md.getStripeSize(), 
+                CodingScheme.fromId(md.getEcScheme()));
+        for (int j=0; j<chunks.length; j++)
+            if (chunks[j] == null && !Arrays.equals(md.getChunksHashes()[j], Utils.getHash(rebuilt[j]))) {
+                logger.error("Scrub: rebuilt chunk {} does not match its hash", j);
+                throw new HybrisException("Rebuilt chunk " + j + " does not match its hash");
+            }
+        return rebuilt;
+    }
+}
@@ -15,16 +15,20 @@
  */
 package fr.eurecom.hybris;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -33,14 +37,20 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import fr.eurecom.hybris.mds.Metadata.Timestamp;
 
 public class Utils {
 
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+
     /** KVS key separator */
     private final static String KVS_KEY_SEPARATOR = "#";
 
@@ -49,12 +59,31 @@ public class Utils {
     private final static String ENC_ALGORITHM_MODE = "AES/CFB/NoPadding";
     public final static int CRYPTO_KEY_LENGTH = 16; // length of AES key (16,24,32)
 
+    /** segmented encryption: independent AES-GCM segments */
+    private final static String ENC_SEGMENT_MODE = "AES/GCM/NoPadding";
+    private final static int ENC_NONCE_PREFIX_LENGTH = 8;  // random, per value
+    private final static int ENC_TAG_LENGTH = 16;          // GCM tag appended to each segment
+    private final static byte[] ENC_AAD_SEGMENT = { 0x00 };
+    private final static byte[] ENC_AAD_LAST_SEGMENT = { 0x01 };
+
     /** hashing algorithm */
     private final static String HASH_ALGORITHM = "SHA-224";
     public final static int HASH_LENGTH = 28;
 
+    /** tree hashing: prefixes separating leaf and inner node digests */
+    private final static byte TREE_LEAF_PREFIX = 0x00;
+    private final static byte TREE_NODE_PREFIX = 0x01;
+
     private final static SecureRandom random = new SecureRandom();
 
+    /**
+     * Returns a digest for hashing data incrementally,
+     * consistently with getHash(byte[]).
+     */
+    public static MessageDigest getHashDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(HASH_ALGORITHM);
+    }
+
     public static byte[] getHash(byte[] inputBytes) {
         MessageDigest hash;
         try {
@@ -68,6 +97,69 @@ public class Utils {
         }
     }
 
+    /**
+     * Computes the hash of the given value, either sequentially
+     * or as the root of a Merkle tree whose leaves are hashed in parallel.
+     * @param inputBytes
+     * @param leafSize - size of the tree leaves [B];
+     *          if <= 0 the value is hashed sequentially as in {@link #getHash(byte[])}
+     * @return byte[]
+     */
+    public static byte[] getHash(byte[] inputBytes, int leafSize) {
+        if (leafSize <= 0)
+            return getHash(inputBytes);
+        int leaves = Math.max(1, (int) ((inputBytes.length + (long) leafSize - 1) / leafSize));
+        return ForkJoinPool.commonPool().invoke(new TreeHashTask(inputBytes, leafSize, 0, leaves));
+    }
+
+    /**
+     * Fork/join task computing the Merkle tree hash of the leaves in [from, to).
+     * Leaves are hashed as H(0x00 || leaf), inner nodes as H(0x01 || left || right).
+     */
+    private static class TreeHashTask extends RecursiveTask<byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final int leafSize;
+        private final int from, to;
+
+        private TreeHashTask(byte[] data, int leafSize, int from, int to) {
+            this.data = data;
+            this.leafSize = leafSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected byte[] compute() {
+            MessageDigest hash;
+            try {
+                hash = MessageDigest.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("Could not compute the tree hash: {} not available", HASH_ALGORITHM, e);
+                throw new IllegalStateException(e);
+            }
+
+            if (this.to - this.from == 1) {
+                int offset = this.from * this.leafSize;
+                hash.update(TREE_LEAF_PREFIX);
+                hash.update(this.data, offset, Math.min(this.leafSize, this.data.length - offset));
+                return hash.digest();
+            }
+
+            int mid = (this.from + this.to) >>> 1;
+            TreeHashTask left = new TreeHashTask(this.data, this.leafSize, this.from, mid);
+            left.fork();
+            byte[] rightHash = new TreeHashTask(this.data, this.leafSize, mid, this.to).compute();
+            byte[] leftHash = left.join();
+
+            hash.update(TREE_NODE_PREFIX);
+            hash.update(leftHash);
+            hash.update(rightHash);
+            return hash.digest();
+        }
+    }
+
     public static String bytesToHexStr(byte[] array) {
         if (array == null)
             return null;
@@ -158,46 +250,242 @@ public class Utils {
         return cipher.doFinal(cipherText);
     }
 
-    /* -------------------------------------- Data compression functions -------------------------------------- */
+    /**
+     * Encrypts the given plaintext as a sequence of independently
+     * authenticated AES-GCM segments, processed in parallel.
+     * Layout: nonce prefix (8 B) || segment_0 || tag_0 || ... || segment_n || tag_n.
+     * The nonce of each segment is the value's random prefix followed by the segment index,
+     * and the last segment is authenticated as such to detect truncations.
+     * Hence each segment can be decrypted on its own (see {@link #getSegmentOffset(int, int)}).
+     * @param plainValue
+     * @param encKey - byte array containing the encryption key
+     * @param segmentSize - size of the plaintext segments [B]
+     * @return byte[]
+     * @throws GeneralSecurityException
+     */
+    public static byte[] encryptSegmented(byte[] plainValue, byte[] encKey, int segmentSize)
+            throws GeneralSecurityException {
+        int segments = getSegmentsNumber(plainValue.length, segmentSize);
+        byte[] cipherValue = new byte[ENC_NONCE_PREFIX_LENGTH + plainValue.length + segments * ENC_TAG_LENGTH];
+        byte[] noncePrefix = generateRandomBytes(new byte[ENC_NONCE_PREFIX_LENGTH]);
+        System.arraycopy(noncePrefix, 0, cipherValue, 0, ENC_NONCE_PREFIX_LENGTH);
+
+        invokeSegmentTask(new SegmentCryptoTask(Cipher.ENCRYPT_MODE, new SecretKeySpec(encKey, ENC_ALGORITHM),
+                noncePrefix, plainValue, plainValue.length, cipherValue, segmentSize, 0, segments, segments));
+        return cipherValue;
+    }
+
+    /**
+     * Decrypts and authenticates a value encrypted with {@link #encryptSegmented(byte[], byte[], int)}.
+     * @param cipherValue
+     * @param encKey - byte array containing the encryption key
+     * @param segmentSize - size of the plaintext segments [B]
+     * @return byte[]
+     * @throws GeneralSecurityException if the value is malformed or has been tampered with
+     */
+    public static byte[] decryptSegmented(byte[] cipherValue, byte[] encKey, int segmentSize)
+            throws GeneralSecurityException {
+        int cipherLength = cipherValue.length - ENC_NONCE_PREFIX_LENGTH;
+        if (cipherLength < ENC_TAG_LENGTH)
+            throw new GeneralSecurityException("Malformed encrypted value");
+        int segments = (cipherLength + segmentSize + ENC_TAG_LENGTH - 1) / (segmentSize + ENC_TAG_LENGTH);
+        int plainLength = cipherLength - segments * ENC_TAG_LENGTH;
+        if (plainLength < 0 || segments != getSegmentsNumber(plainLength, segmentSize))
+            throw new GeneralSecurityException("Malformed encrypted value");
+        byte[] plainValue = new byte[plainLength];
+        byte[] noncePrefix = Arrays.copyOf(cipherValue, ENC_NONCE_PREFIX_LENGTH);
+
+        invokeSegmentTask(new SegmentCryptoTask(Cipher.DECRYPT_MODE, new SecretKeySpec(encKey, ENC_ALGORITHM),
+                noncePrefix, cipherValue, plainLength, plainValue, segmentSize, 0, segments, segments));
+        return plainValue;
+    }
+
+    /**
+     * Returns the offset of the given segment within a value encrypted
+     * with {@link #encryptSegmented(byte[], byte[], int)}.
+     * @param segment - segment index
+     * @param segmentSize - size of the plaintext segments [B]
+     * @return the offset [B]
+     */
+    public static long getSegmentOffset(int segment, int segmentSize) {
+        return ENC_NONCE_PREFIX_LENGTH + (long) segment * (segmentSize + ENC_TAG_LENGTH);
+    }
 
-    public static byte[] compress(byte[] data) {    // XXX
-        ByteArrayOutputStream baos = null;
-        Deflater dfl = new Deflater(Deflater.BEST_COMPRESSION, true);
-        dfl.setInput(data);
-        dfl.finish();
-        baos = new ByteArrayOutputStream();
-        byte[] tmp = new byte[4*1024];
-        try{
-            while(!dfl.finished()){
-                int size = dfl.deflate(tmp);
-                baos.write(tmp, 0, size);
+    private static int getSegmentsNumber(int plainLength, int segmentSize) {
+        return Math.max(1, (int) ((plainLength + (long) segmentSize - 1) / segmentSize));
+    }
+
+    private static void invokeSegmentTask(SegmentCryptoTask task) throws GeneralSecurityException {
+        try {
+            ForkJoinPool.commonPool().invoke(task);
+        } catch (SegmentCryptoException e) {
+            throw (GeneralSecurityException) e.getCause();
+        }
+    }
+
+    private static class SegmentCryptoException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private SegmentCryptoException(GeneralSecurityException e) {
+            super(e);
+        }
+    }
+
+    /**
+     * Fork/join task encrypting or decrypting the segments in [from, to).
+     * Offsets are expressed in plaintext segments: the ciphertext ones
+     * are shifted by the nonce prefix and by the tags of the preceding segments.
+     */
+    private static class SegmentCryptoTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mode;
+        private final SecretKeySpec key;
+        private final byte[] noncePrefix;
+        private final byte[] input, output;
+        private final int plainLength, segmentSize;
+        private final int from, to, segments;
+
+        private SegmentCryptoTask(int mode, SecretKeySpec key, byte[] noncePrefix,
+                byte[] input, int plainLength, byte[] output, int segmentSize,
+                int from, int to, int segments) {
+            this.mode = mode;
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.input = input;
+            this.plainLength = plainLength;
+            this.output = output;
+            this.segmentSize = segmentSize;
+            this.from = from;
+            this.to = to;
+            this.segments = segments;
+        }
+
+        protected void compute() {
+            if (this.to - this.from > 1) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new SegmentCryptoTask(this.mode, this.key, this.noncePrefix, this.input, this.plainLength,
+                                this.output, this.segmentSize, this.from, mid, this.segments),
+                        new SegmentCryptoTask(this.mode, this.key, this.noncePrefix, this.input, this.plainLength,
+                                this.output, this.segmentSize, mid, this.to, this.segments));
+                return;
+            }
+
+            int plainOffset = this.from * this.segmentSize;
+            int plainLen = Math.min(this.segmentSize, this.plainLength - plainOffset);
+            int cipherOffset = (int) getSegmentOffset(this.from, this.segmentSize);
+            byte[] nonce = ByteBuffer.allocate(ENC_NONCE_PREFIX_LENGTH + 4)
+                    .put(this.noncePrefix).putInt(this.from).array();
+            try {
+                Cipher cipher = Cipher.getInstance(ENC_SEGMENT_MODE);
+                cipher.init(this.mode, this.key, new GCMParameterSpec(ENC_TAG_LENGTH * 8, nonce));
+                cipher.updateAAD(this.from == this.segments - 1 ? ENC_AAD_LAST_SEGMENT : ENC_AAD_SEGMENT);
+                if (this.mode == Cipher.ENCRYPT_MODE)
+                    cipher.doFinal(this.input, plainOffset, plainLen, this.output, cipherOffset);
+                else
+                    cipher.doFinal(this.input, cipherOffset, plainLen + ENC_TAG_LENGTH, this.output, plainOffset);
+            } catch (GeneralSecurityException e) {
+                throw new SegmentCryptoException(e);
             }
-        } catch (Exception ex){
-            ex.printStackTrace();
-            return data;
-        } finally {
-            try{
-                if(baos != null) baos.close();
-            } catch(Exception ex){}
         }
-        return baos.toByteArray();
     }
 
-    public static byte[] decompress(byte[] data) throws IOException, DataFormatException {  // XXX
-        Inflater inflater = new Inflater(true);
-        inflater.setInput(data);
+    /* -------------------------------------- Data compression functions -------------------------------------- */
+
+    /**
+     * Compression codecs. The id is persisted in the metadata,
+     * so existing values must never be renumbered.
+     */
+    public enum CompressionCodec {
+        NONE(0), DEFLATE(1);
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        byte[] buffer = new byte[1024];
-        while (!inflater.finished()) {
-            int count = inflater.inflate(buffer);
-            outputStream.write(buffer, 0, count);
+        private final int id;
+        private CompressionCodec(int id) { this.id = id; }
+        public int getId() { return this.id; }
+
+        public static CompressionCodec fromId(int id) {
+            for (CompressionCodec codec : values())
+                if (codec.id == id)
+                    return codec;
+            throw new IllegalArgumentException("Unknown compression codec " + id);
+        }
+    }
+
+    private static final int COMPRESSION_SAMPLES = 4;
+    private static final int COMPRESSION_SAMPLE_SIZE = 4 * 1024;
+
+    /**
+     * Estimates whether data is worth compressing by deflating a few
+     * samples spread across it, instead of the whole array.
+     * @param data
+     * @param maxRatio - the compressed/original ratio above which compression is skipped
+     * @return true if the sampled compression ratio is lower than maxRatio
+     */
+    public static boolean isCompressible(byte[] data, double maxRatio) {
+        if (data.length == 0)
+            return false;
+
+        int sampleSize = Math.min(data.length, COMPRESSION_SAMPLE_SIZE);
+        int samples = data.length > COMPRESSION_SAMPLES * sampleSize ? COMPRESSION_SAMPLES : 1;
+        byte[] buf = new byte[sampleSize + 64];
+        Deflater dfl = new Deflater(Deflater.BEST_SPEED, true);
+        long sampled = 0, compressed = 0;
+        try {
+            for (int i=0; i<samples; i++) {
+                int offset = samples == 1 ? 0 :
+                    (int) ((long) (data.length - sampleSize) * i / (samples - 1));
+                dfl.reset();
+                dfl.setInput(data, offset, sampleSize);
+                dfl.finish();
+                while (!dfl.finished())
+                    compressed += dfl.deflate(buf);
+                sampled += sampleSize;
+            }
+        } finally {
+            dfl.end();
         }
-        outputStream.close();
-        byte[] output = outputStream.toByteArray();
+        return compressed < maxRatio * sampled;
+    }
 
-        inflater.end();
+    /**
+     * Compresses data with raw deflate at the fastest level.
+     */
+    public static byte[] compress(byte[] data) {
+        Deflater dfl = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            dfl.setInput(data);
+            dfl.finish();
+            byte[] output = new byte[data.length / 2 + 64];
+            int length = 0;
+            while (!dfl.finished()) {
+                if (length == output.length)
+                    output = Arrays.copyOf(output, output.length * 2);
+                length += dfl.deflate(output, length, output.length - length);
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            dfl.end();
+        }
+    }
 
-        return output;
+    public static byte[] decompress(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] output = new byte[Math.max(data.length * 2, 64)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == output.length)
+                    output = Arrays.copyOf(output, output.length * 2);
+                int count = inflater.inflate(output, length, output.length - length);
+                if (count == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Truncated compressed data");
+                length += count;
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            inflater.end();
+        }
     }
 }
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission policy of the shared cache: values are cached only if
+ * they are not larger than the maximum size set for their key prefix,
+ * and if their key was accessed recently enough, as estimated by
+ * a FrequencySketch (TinyLFU doorkeeper).
+ * Frequencies are tracked by user key, so that the popularity of
+ * a key is kept across its versions.
+ * @author P. Viotti
+ */
+public class CacheAdmission {
+
+    private static int SKETCH_ENTRIES = 1 << 16;
+
+    private final long maxSize;         // [B]
+    private final int minFrequency;
+    private final List<String> prefixes;    // from the longest
+    private final List<Long> prefixesMaxSize;
+    private final FrequencySketch sketch;
+
+    /* statistics */
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxSize - [B] size of the largest value cached
+     * @param minFrequency - recent accesses of a key required to cache its values
+     * @param rules - comma separated list of <prefix>:<maxSize> rules, overriding
+     *          the maximum size for the keys starting with <prefix> (0 = never cached)
+     */
+    public CacheAdmission(long maxSize, int minFrequency, String rules) {
+        this.maxSize = maxSize;
+        this.minFrequency = minFrequency;
+        this.sketch = new FrequencySketch(SKETCH_ENTRIES);
+
+        List<String[]> parsed = new ArrayList<String[]>();
+        for (String rule : rules.split(",")) {
+            if (rule.trim().isEmpty())
+                continue;
+            int sep = rule.lastIndexOf(':');
+            if (sep < 0)
+                throw new IllegalArgumentException("Invalid cache admission rule: " + rule);
+            parsed.add(new String[] { rule.substring(0, sep).trim(), rule.substring(sep + 1).trim() });
+        }
+        Collections.sort(parsed, new Comparator<String[]>() {
+            public int compare(String[] r1, String[] r2) {
+                return r2[0].length() - r1[0].length();
+            }
+        });
+        this.prefixes = new ArrayList<String>();
+        this.prefixesMaxSize = new ArrayList<Long>();
+        for (String[] rule : parsed) {
+            this.prefixes.add(rule[0]);
+            this.prefixesMaxSize.add(Long.parseLong(rule[1]));
+        }
+    }
+
+    /**
+     * Records an access of <key>.
+     * @param key
+     */
+    public void record(String key) {
+        synchronized (this.sketch) {
+            this.sketch.increment(key);
+        }
+    }
+
+    /**
+     * Tells whether a value (or a chunk of it) of <size> bytes
+     * associated with <key> should be cached.
+     * @param key
+     * @param size - [B]
+     */
+    public boolean admit(String key, long size) {
+        long max = this.maxSize;
+        for (int i=0; i<this.prefixes.size(); i++)
+            if (key.startsWith(this.prefixes.get(i))) {
+                max = this.prefixesMaxSize.get(i);
+                break;
+            }
+
+        boolean admit = size <= max;
+        if (admit && this.minFrequency > 1)
+            synchronized (this.sketch) {
+                admit = this.sketch.frequency(key) >= this.minFrequency;
+            }
+        if (admit)  this.admitted.incrementAndGet();
+        else        this.rejected.incrementAndGet();
+        return admit;
+    }
+
+    public long getAdmitted() { return this.admitted.get(); }
+    public long getRejected() { return this.rejected.get(); }
+}
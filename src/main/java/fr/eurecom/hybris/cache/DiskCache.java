@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import fr.eurecom.hybris.Config;
+
+/**
+ * Cache of values stored as files in a local directory, e.g. on SSD,
+ * evicting the least recently used values above a quota of bytes.
+ * The index is persisted as a journal of insertions and removals,
+ * compacted in LRU order, so that the cache survives restarts.
+ * Insertions are written in background and dropped when the disk
+ * cannot keep up. As for NearCache, only verified values must be inserted.
+ * @author P. Viotti
+ */
+public class DiskCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+
+    private static String JOURNAL = "journal";
+    private static String TMP_SUFFIX = ".tmp";
+    private static int PENDING_WRITES = 64;     // queued insertions above which new ones are dropped
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final File dir;
+    private final long quota;       // [B]
+    private final LinkedHashMap<String, Long> index;    // key -> size [B], in LRU order
+    private long size;              // [B]
+    private DataOutputStream journal;
+    private int journalRecords;
+    private final ThreadPoolExecutor writer;
+
+    /* statistics */
+    private long hits, misses;
+
+    /**
+     * @param path - directory of the cache, created if not existing
+     * @param quota - [B] sum of the sizes of the cached values
+     * @throws IOException
+     */
+    public DiskCache(String path, long quota) throws IOException {
+        this.dir = new File(path);
+        if (!this.dir.isDirectory() && !this.dir.mkdirs())
+            throw new IOException("Could not create the cache directory " + path);
+        this.quota = quota;
+        this.index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        this.load();
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(PENDING_WRITES),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hybris-diskcache-%d").build(),
+                new ThreadPoolExecutor.DiscardPolicy());
+        logger.info("Disk cache on {}: {} values reused, {} B", path, this.index.size(), this.size);
+    }
+
+    /**
+     * Returns the value cached for <key>.
+     * @param key
+     * @return the value, or null if not cached
+     */
+    public byte[] get(String key) {
+        Long length;
+        synchronized (this) {
+            length = this.index.get(key);
+            if (length == null) {
+                this.misses++;
+                return null;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(this.fileOf(key).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer value = ByteBuffer.allocate((int) (long) length);
+            while (value.hasRemaining() && channel.read(value) >= 0);
+            if (value.hasRemaining())
+                throw new EOFException();
+            synchronized (this) { this.hits++; }
+            return value.array();
+        } catch (IOException e) {     // e.g. evicted meanwhile
+            synchronized (this) { this.misses++; }
+            return null;
+        }
+    }
+
+    /**
+     * Transfers the value cached for <key> to <target>, without
+     * copying it through the Java heap.
+     * @param key
+     * @param target
+     * @return the number of bytes transferred, or -1 if not cached
+     * @throws IOException
+     */
+    public long transferTo(String key, WritableByteChannel target) throws IOException {
+        Long length;
+        synchronized (this) {
+            length = this.index.get(key);
+        }
+        if (length == null)
+            return -1;
+        try (FileChannel channel = FileChannel.open(this.fileOf(key).toPath(), StandardOpenOption.READ)) {
+            long transferred = 0;
+            while (transferred < length)
+                transferred += channel.transferTo(transferred, length - transferred, target);
+            return transferred;
+        }
+    }
+
+    /**
+     * Queues the insertion of <value>; values larger than
+     * the quota are ignored.
+     * @param key
+     * @param value - a value verified against its metadata
+     */
+    public void put(final String key, byte[] value) {
+        if (value.length > this.quota)
+            return;
+        synchronized (this) {
+            if (this.index.containsKey(key))
+                return;
+        }
+        final byte[] copy = Arrays.copyOf(value, value.length);
+        this.writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    DiskCache.this.write(key, copy);
+                } catch (IOException e) {
+                    logger.warn("Could not write " + key + " in the disk cache", e);
+                }
+            }
+        });
+    }
+
+    public synchronized long getHits() { return this.hits; }
+    public synchronized long getMisses() { return this.misses; }
+    public synchronized int getCount() { return this.index.size(); }
+
+    /**
+     * @return [B] sum of the sizes of the cached values
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Completes the pending insertions and persists the LRU order.
+     */
+    public void close() {
+        this.writer.shutdown();
+        try {
+            this.writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                this.compact();
+                this.journal.close();
+            } catch (IOException e) {
+                logger.warn("Could not persist the disk cache index", e);
+            }
+        }
+    }
+
+    /* Writes the value in a temporary file, then moves it in place. */
+    private void write(String key, byte[] value) throws IOException {
+        File tmp = new File(this.dir, this.fileOf(key).getName() + TMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer src = ByteBuffer.wrap(value);
+            while (src.hasRemaining())
+                channel.write(src);
+        }
+        Files.move(tmp.toPath(), this.fileOf(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            if (this.index.put(key, (long) value.length) == null)
+                this.size += value.length;
+            this.append(OP_PUT, key, value.length);
+
+            Iterator<Entry<String, Long>> it = this.index.entrySet().iterator();
+            while (this.size > this.quota && it.hasNext()) {
+                Entry<String, Long> eldest = it.next();
+                it.remove();
+                this.size -= eldest.getValue();
+                this.fileOf(eldest.getKey()).delete();
+                this.append(OP_REMOVE, eldest.getKey(), 0);
+            }
+            if (this.journalRecords > 2 * this.index.size() + PENDING_WRITES)
+                this.compact();
+        }
+    }
+
+    private void append(byte op, String key, long length) throws IOException {
+        this.journal.writeByte(op);
+        this.journal.writeUTF(key);
+        this.journal.writeLong(length);
+        this.journal.flush();
+        this.journalRecords++;
+    }
+
+    /* Rewrites the journal with the current entries, from the least recently used. */
+    private void compact() throws IOException {
+        if (this.journal != null)
+            this.journal.close();
+        File tmp = new File(this.dir, JOURNAL + TMP_SUFFIX);
+        this.journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        this.journalRecords = 0;
+        for (Entry<String, Long> entry : this.index.entrySet())
+            this.append(OP_PUT, entry.getKey(), entry.getValue());
+        this.journal.close();
+        Files.move(tmp.toPath(), new File(this.dir, JOURNAL).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.journal = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(this.dir, JOURNAL), true)));
+    }
+
+    /* Replays the journal, keeping only the entries whose file is intact,
+     * and deletes the files which are not indexed. */
+    private void load() throws IOException {
+        File journalFile = new File(this.dir, JOURNAL);
+        if (journalFile.exists())
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                while (true) {
+                    byte op = in.readByte();
+                    String key = in.readUTF();
+                    long length = in.readLong();
+                    if (op == OP_PUT)
+                        this.index.put(key, length);
+                    else
+                        this.index.remove(key);
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // end of the journal, possibly truncated by a crash
+            }
+
+        Set<String> indexed = new HashSet<String>();
+        Iterator<Entry<String, Long>> it = this.index.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<String, Long> entry = it.next();
+            File file = this.fileOf(entry.getKey());
+            if (file.length() != entry.getValue())
+                it.remove();
+            else {
+                this.size += entry.getValue();
+                indexed.add(file.getName());
+            }
+        }
+        for (File file : this.dir.listFiles())
+            if (!file.getName().equals(JOURNAL) && !indexed.contains(file.getName()))
+                file.delete();
+
+        it = this.index.entrySet().iterator();
+        while (this.size > this.quota && it.hasNext()) {
+            Entry<String, Long> eldest = it.next();
+            it.remove();
+            this.size -= eldest.getValue();
+            this.fileOf(eldest.getKey()).delete();
+        }
+        this.compact();
+    }
+
+    private File fileOf(String key) {
+        return new File(this.dir, Hashing.sha1().hashString(key, StandardCharsets.UTF_8).toString());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.cache;
+
+/**
+ * Count-min sketch with 4-bit counters estimating the recent access
+ * frequency of keys (TinyLFU). Counters are halved every 10 * width
+ * increments, so that old popularity fades away.
+ * This class is not thread-safe.
+ * @author P. Viotti
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                                          0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;         // 16 counters per word
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries - number of distinct keys expected to be tracked
+     */
+    public FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+        this.table = new long[width];
+        this.tableMask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of <key>, from 0 to 15.
+     * @param key
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i=0; i<SEEDS.length; i++) {
+            long count = (this.table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 0xfL;
+            frequency = Math.min(frequency, (int) count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of <key>.
+     * @param key
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i=0; i<SEEDS.length; i++) {
+            int index = indexOf(hash, i), offset = offsetOf(hash, i);
+            if (((this.table[index] >>> offset) & 0xfL) < MAX_COUNT) {
+                this.table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++this.additions == this.sampleSize)
+            this.reset();
+    }
+
+    private void reset() {
+        for (int i=0; i<this.table.length; i++)
+            this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+        this.additions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & this.tableMask;
+    }
+
+    /* each hash function uses its own group of 4 counters within a word */
+    private static int offsetOf(int hash, int i) {
+        return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+    }
+
+    private static int spread(int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.cache;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * In-process cache of values, bounded in bytes and evicting according
+ * to W-TinyLFU: new entries go through a small LRU window, and then
+ * compete for the main segmented LRU area with its least recently used
+ * entry, the one accessed more frequently according to a
+ * FrequencySketch being kept.
+ * Values are cached by KVS key, which is unique for each version, hence
+ * entries never need to be invalidated; only values verified against
+ * their metadata must be inserted, so that hits can be returned as is.
+ * @author P. Viotti
+ */
+public class NearCache {
+
+    private static double WINDOW_RATIO = 0.01;      // of the capacity
+    private static double PROTECTED_RATIO = 0.8;    // of the main area
+    private static int AVG_ENTRY_SIZE = 1024;       // [B] to size the frequency sketch
+
+    private final long mainMax;         // [B]
+    private final long windowMax;       // [B]
+    private final long protectedMax;    // [B]
+
+    private final LinkedHashMap<String, byte[]> window;
+    private final LinkedHashMap<String, byte[]> probation;
+    private final LinkedHashMap<String, byte[]> protectd;
+    private long windowBytes, probationBytes, protectedBytes;
+    private final FrequencySketch sketch;
+
+    /* statistics */
+    private long hits, misses, evictions;
+
+    /**
+     * @param capacity - [B] sum of the sizes of the cached values
+     */
+    public NearCache(long capacity) {
+        this.windowMax = (long) (capacity * WINDOW_RATIO);
+        this.mainMax = capacity - this.windowMax;
+        this.protectedMax = (long) (this.mainMax * PROTECTED_RATIO);
+        this.window = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        this.probation = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        this.protectd = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        this.sketch = new FrequencySketch((int) Math.min(capacity / AVG_ENTRY_SIZE, 1 << 24));
+    }
+
+    /**
+     * Returns a copy of the value cached for <key>.
+     * @param key
+     * @return the value, or null if not cached
+     */
+    public byte[] get(String key) {
+        byte[] value;
+        synchronized (this) {
+            this.sketch.increment(key);
+            value = this.window.get(key);
+            if (value == null)
+                value = this.protectd.get(key);
+            if (value == null) {
+                value = this.probation.remove(key);
+                if (value != null) {    // promotion
+                    this.probationBytes -= value.length;
+                    this.protectd.put(key, value);
+                    this.protectedBytes += value.length;
+                    while (this.protectedBytes > this.protectedMax) {
+                        Entry<String, byte[]> eldest = this.protectd.entrySet().iterator().next();
+                        this.protectd.remove(eldest.getKey());
+                        this.protectedBytes -= eldest.getValue().length;
+                        this.probation.put(eldest.getKey(), eldest.getValue());
+                        this.probationBytes += eldest.getValue().length;
+                    }
+                }
+            }
+            if (value == null) {
+                this.misses++;
+                return null;
+            }
+            this.hits++;
+        }
+        return Arrays.copyOf(value, value.length);
+    }
+
+    /**
+     * Caches a copy of <value>, unless it is larger than the cache.
+     * @param key
+     * @param value - a value verified against its metadata
+     */
+    public void put(String key, byte[] value) {
+        if (value.length > this.mainMax)
+            return;
+        byte[] copy = Arrays.copyOf(value, value.length);
+        synchronized (this) {
+            if (this.window.containsKey(key) || this.probation.containsKey(key) || this.protectd.containsKey(key))
+                return;
+            this.sketch.increment(key);
+            this.window.put(key, copy);
+            this.windowBytes += copy.length;
+            while (this.windowBytes > this.windowMax) {
+                Entry<String, byte[]> candidate = this.window.entrySet().iterator().next();
+                this.window.remove(candidate.getKey());
+                this.windowBytes -= candidate.getValue().length;
+                this.admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+    }
+
+    /**
+     * Moves an entry evicted from the window to the main area,
+     * if it is accessed more frequently than the entries it would evict.
+     */
+    private void admit(String key, byte[] value) {
+        int frequency = this.sketch.frequency(key);
+        while (this.probationBytes + this.protectedBytes + value.length > this.mainMax) {
+            boolean fromProbation = !this.probation.isEmpty();
+            LinkedHashMap<String, byte[]> segment = fromProbation ? this.probation : this.protectd;
+            Entry<String, byte[]> victim = segment.entrySet().iterator().next();
+            this.evictions++;
+            if (frequency <= this.sketch.frequency(victim.getKey()))
+                return;
+            segment.remove(victim.getKey());
+            if (fromProbation)  this.probationBytes -= victim.getValue().length;
+            else                this.protectedBytes -= victim.getValue().length;
+        }
+        this.probation.put(key, value);
+        this.probationBytes += value.length;
+    }
+
+    public synchronized long getHits() { return this.hits; }
+    public synchronized long getMisses() { return this.misses; }
+    public synchronized long getEvictions() { return this.evictions; }
+
+    /**
+     * @return [B] sum of the sizes of the cached values
+     */
+    public synchronized long getSize() {
+        return this.windowBytes + this.probationBytes + this.protectedBytes;
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    public synchronized int getCount() {
+        return this.window.size() + this.probation.size() + this.protectd.size();
+    }
+}
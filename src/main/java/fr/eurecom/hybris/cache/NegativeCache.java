@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.cache;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Bounded LRU cache of the keys found missing or deleted, so that repeated
+ * reads of absent keys do not hit the metadata store.
+ * Entries are meant to be invalidated by watches set on the metadata
+ * store; they also expire after a TTL, in case a notification gets lost.
+ * @author P. Viotti
+ */
+public class NegativeCache {
+
+    private final int maxEntries;
+    private final long ttl;     // [ms]
+    private final LinkedHashMap<String, Long> entries;  // key -> expiration time [ms], in LRU order
+    private final Set<String> watched;      // keys with a pending watch, also when evicted
+
+    /* statistics */
+    private long hits, misses;
+
+    /**
+     * @param maxEntries - number of keys cached, and of watches pending
+     * @param ttl - [ms] time after which an entry expires
+     */
+    public NegativeCache(final int maxEntries, long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Entry<String, Long> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+        this.watched = new HashSet<String>();
+    }
+
+    /**
+     * Tells whether <key> is known to be missing.
+     * @param key
+     */
+    public synchronized boolean contains(String key) {
+        Long expiration = this.entries.get(key);
+        if (expiration != null && expiration < System.currentTimeMillis()) {
+            this.entries.remove(key);
+            expiration = null;
+        }
+        if (expiration == null) {
+            this.misses++;
+            return false;
+        }
+        this.hits++;
+        return true;
+    }
+
+    /**
+     * Caches <key> as missing.
+     * @param key
+     * @return true if the caller must set a watch on <key>, calling
+     *          invalidate(<key>) once notified or if the watch cannot be set
+     */
+    public synchronized boolean add(String key) {
+        if (this.watched.contains(key)) {
+            this.entries.put(key, System.currentTimeMillis() + this.ttl);
+            return false;
+        }
+        if (this.watched.size() >= this.maxEntries)
+            return false;   // too many watches pending: not cached
+        this.watched.add(key);
+        this.entries.put(key, System.currentTimeMillis() + this.ttl);
+        return true;
+    }
+
+    /**
+     * Removes <key> and its watch, e.g. when the watch fires.
+     * @param key
+     */
+    public synchronized void invalidate(String key) {
+        this.entries.remove(key);
+        this.watched.remove(key);
+    }
+
+    /**
+     * Removes <key>, keeping its pending watch, e.g. when <key> gets written.
+     * @param key
+     */
+    public synchronized void remove(String key) {
+        this.entries.remove(key);
+    }
+
+    public synchronized long getHits() { return this.hits; }
+    public synchronized long getMisses() { return this.misses; }
+    public synchronized int getCount() { return this.entries.size(); }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.eurecom.hybris.Config;
+
+/**
+ * Cache of values stored outside of the Java heap, either in direct
+ * memory or in a memory-mapped file, which is reused when restarting.
+ * The space is split in segments, each one managed as a ring buffer
+ * of records evicted in FIFO order, and indexed in memory by key.
+ * As for NearCache, only verified values must be inserted.
+ * @author P. Viotti
+ */
+public class OffHeapCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+
+    private static int MAX_SEGMENT_SIZE = 1 << 30;     // [B]
+
+    private static final int SEGMENT_MAGIC = 0x48594253;
+    private static final int RECORD_MAGIC = 0x48594252;
+    private static final int WRAP_MAGIC = 0x48594257;   // the next record is at the start of the segment
+    private static final int SEGMENT_HEADER = 16;       // magic, head, tail, count
+    private static final int RECORD_HEADER = 16;        // magic, key length, value length, crc
+
+    private final Segment[] segments;
+    private final RandomAccessFile file;
+
+    /**
+     * @param capacity - [B] space reserved for the cache
+     * @param path - file to map, or null to allocate direct memory
+     * @throws IOException
+     */
+    public OffHeapCache(long capacity, String path) throws IOException {
+        int segmentSize = (int) Math.min(capacity, MAX_SEGMENT_SIZE);
+        int count = (int) ((capacity + segmentSize - 1) / segmentSize);
+        this.segments = new Segment[count];
+
+        if (path == null) {
+            this.file = null;
+            for (int i=0; i<count; i++)
+                this.segments[i] = new Segment(ByteBuffer.allocateDirect(segmentSize), false);
+        } else {
+            this.file = new RandomAccessFile(new File(path), "rw");
+            boolean reuse = this.file.length() == (long) count * segmentSize;
+            if (!reuse)
+                this.file.setLength((long) count * segmentSize);
+            FileChannel channel = this.file.getChannel();
+            for (int i=0; i<count; i++)
+                this.segments[i] = new Segment(
+                        channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize, segmentSize), reuse);
+            logger.info("Off-heap cache mapped on {}: {} values reused", path, this.getCount());
+        }
+    }
+
+    /**
+     * Returns a copy of the value cached for <key>.
+     * @param key
+     * @return the value, or null if not cached
+     */
+    public byte[] getBytes(String key) {
+        return this.segmentOf(key).getBytes(key);
+    }
+
+    /**
+     * Caches <value>, evicting the oldest values if needed,
+     * unless it is larger than a segment.
+     * @param key
+     * @param value - a value verified against its metadata
+     */
+    public void put(String key, byte[] value) {
+        this.segmentOf(key).put(key, value);
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for (Segment segment : this.segments)
+            hits += segment.getHits();
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (Segment segment : this.segments)
+            misses += segment.getMisses();
+        return misses;
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    public int getCount() {
+        int count = 0;
+        for (Segment segment : this.segments)
+            count += segment.getCount();
+        return count;
+    }
+
+    /**
+     * Flushes the mapped file, if any, and releases it.
+     */
+    public void close() {
+        if (this.file == null)
+            return;
+        for (Segment segment : this.segments)
+            segment.force();
+        try {
+            this.file.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the off-heap cache file", e);
+        }
+    }
+
+    private Segment segmentOf(String key) {
+        return this.segments[(key.hashCode() & Integer.MAX_VALUE) % this.segments.length];
+    }
+
+
+    /* -------------------------------------- Segment -------------------------------------- */
+
+    private static class Record {
+        final String key;
+        final int offset;
+        final int keyLength;    // [B] of the encoded key
+        final int length;       // [B] of the value
+
+        Record(String key, int offset, int keyLength, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Ring buffer of records: new records are written at head,
+     * and the records found in the way are evicted.
+     */
+    private static class Segment {
+
+        private final ByteBuffer buffer;
+        private final HashMap<String, Record> index = new HashMap<String, Record>();
+        private final ArrayDeque<Record> fifo = new ArrayDeque<Record>();
+        private int head = SEGMENT_HEADER;
+        private long hits, misses;
+
+        Segment(ByteBuffer buffer, boolean reuse) {
+            this.buffer = buffer;
+            if (reuse && buffer.getInt(0) == SEGMENT_MAGIC)
+                this.load();
+            else
+                this.writeHeader();
+        }
+
+        /* Copies the value out while holding the lock, as insertions may reuse its space */
+        synchronized byte[] getBytes(String key) {
+            Record record = this.index.get(key);
+            if (record == null) {
+                this.misses++;
+                return null;
+            }
+            this.hits++;
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(record.offset + RECORD_HEADER + record.keyLength);
+            byte[] value = new byte[record.length];
+            view.get(value);
+            return value;
+        }
+
+        synchronized void put(String key, byte[] value) {
+            if (this.index.containsKey(key))
+                return;
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            int length = RECORD_HEADER + rawKey.length + value.length;
+            if (length > this.buffer.capacity() - SEGMENT_HEADER)
+                return;
+
+            if (this.head + length > this.buffer.capacity()) {     // wrap around
+                while (!this.fifo.isEmpty() && this.fifo.peekFirst().offset >= this.head)
+                    this.evict();
+                if (this.head + 4 <= this.buffer.capacity())
+                    this.buffer.putInt(this.head, WRAP_MAGIC);
+                this.head = SEGMENT_HEADER;
+            }
+            while (!this.fifo.isEmpty() && this.fifo.peekFirst().offset >= this.head
+                    && this.fifo.peekFirst().offset < this.head + length)
+                this.evict();
+            this.writeHeader();     // the tail is moved before overwriting the evicted records
+
+            CRC32 crc = new CRC32();
+            crc.update(rawKey);
+            crc.update(value);
+            ByteBuffer dst = this.buffer.duplicate();
+            dst.position(this.head);
+            dst.putInt(RECORD_MAGIC).putInt(rawKey.length).putInt(value.length).putInt((int) crc.getValue());
+            dst.put(rawKey).put(value);
+
+            this.add(new Record(key, this.head, rawKey.length, value.length));
+            this.head += length;
+            this.writeHeader();
+        }
+
+        synchronized long getHits() { return this.hits; }
+        synchronized long getMisses() { return this.misses; }
+        synchronized int getCount() { return this.index.size(); }
+
+        synchronized void force() {
+            ((MappedByteBuffer) this.buffer).force();
+        }
+
+        private void add(Record record) {
+            this.index.put(record.key, record);
+            this.fifo.addLast(record);
+        }
+
+        private void evict() {
+            this.index.remove(this.fifo.pollFirst().key);
+        }
+
+        private void writeHeader() {
+            this.buffer.putInt(0, SEGMENT_MAGIC);
+            this.buffer.putInt(4, this.head);
+            this.buffer.putInt(8, this.fifo.isEmpty() ? this.head : this.fifo.peekFirst().offset);
+            this.buffer.putInt(12, this.fifo.size());
+        }
+
+        /* Rebuilds the index from the tail, stopping at the first invalid record. */
+        private void load() {
+            int head = this.buffer.getInt(4), pos = this.buffer.getInt(8), count = this.buffer.getInt(12);
+            this.head = pos;
+            for (int i=0; i<count; i++) {
+                if (pos + RECORD_HEADER > this.buffer.capacity() || this.buffer.getInt(pos) == WRAP_MAGIC)
+                    pos = SEGMENT_HEADER;
+                if (this.buffer.getInt(pos) != RECORD_MAGIC)
+                    break;
+                int keyLength = this.buffer.getInt(pos + 4), length = this.buffer.getInt(pos + 8);
+                if (keyLength < 0 || length < 0 ||
+                        (long) pos + RECORD_HEADER + keyLength + length > this.buffer.capacity())
+                    break;
+                byte[] rawKey = new byte[keyLength], value = new byte[length];
+                ByteBuffer src = this.buffer.duplicate();
+                src.position(pos + RECORD_HEADER);
+                src.get(rawKey).get(value);
+                CRC32 crc = new CRC32();
+                crc.update(rawKey);
+                crc.update(value);
+                if ((int) crc.getValue() != this.buffer.getInt(pos + 12))
+                    break;
+                this.add(new Record(new String(rawKey, StandardCharsets.UTF_8), pos, keyLength, length));
+                pos += RECORD_HEADER + keyLength + length;
+                this.head = pos;
+            }
+            if (this.head != head)
+                logger.warn("Off-heap cache segment truncated: {} values reused out of {}", this.fifo.size(), count);
+            this.writeHeader();
+        }
+    }
+}
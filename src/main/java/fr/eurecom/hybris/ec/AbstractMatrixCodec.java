@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.ec;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class for matrix-based codecs over GF(2^w).
+ * Coding matrices are cached per (k, m) and decoding matrices per erasure
+ * pattern, so that repeated encodes and degraded reads do not pay the
+ * matrix generation and inversion cost on every call.
+ * @author P. Viotti
+ */
+public abstract class AbstractMatrixCodec implements ErasureCodec {
+
+    private static final int DECODING_CACHE_SIZE = 256;
+
+    private final Map<String, int[]> codingMatrices = new ConcurrentHashMap<String, int[]>();
+
+    @SuppressWarnings("serial")
+    private final Map<String, DecodingPlan> decodingPlans = Collections.synchronizedMap(
+            new LinkedHashMap<String, DecodingPlan>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, DecodingPlan> eldest) {
+                    return size() > DECODING_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Precomputed rows for rebuilding the blocks erased in a given pattern.
+     */
+    private static class DecodingPlan {
+        int[] survivorIds;          // ids of the k blocks used to rebuild data
+        int[] dataIds;              // ids of the erased data blocks
+        int[] dataMatrix;           // rows of the inverted matrix for dataIds
+        int[] codingIds;            // ids of the erased coding blocks
+        int[] codingMatrix;         // rows of the coding matrix for codingIds
+    }
+
+    /**
+     * @return the number of matrix elements mapping the k data blocks
+     *          to one block (k, or k*w*w for bitmatrices)
+     */
+    protected int getRowSize(int k) {
+        return k;
+    }
+
+    /**
+     * @return the m x k coding matrix of the codec
+     */
+    protected abstract int[] createCodingMatrix(int k, int m);
+
+    /**
+     * Computes the inverse of the k x k matrix made of the rows of the
+     * first k surviving blocks, as jerasure_make_decoding_matrix.
+     * The decoding matrix is made of k rows of getRowSize(k) elements.
+     * @param dmIds - filled with the ids of the surviving blocks used
+     * @return false if the matrix is not invertible
+     */
+    protected abstract boolean makeDecodingMatrix(int k, int m, int[] codingMatrix, boolean[] erased,
+            int[] decodingMatrix, int[] dmIds);
+
+    /**
+     * Computes dst[i] = sum_j matrix[i*k + j] * src[j], for i < rows.
+     */
+    protected abstract void matrixMultiply(int k, int rows, int[] matrix, byte[][] src, byte[][] dst, int blockSize);
+
+    protected int[] getCodingMatrix(int k, int m) {
+        String key = k + ":" + m;
+        int[] matrix = this.codingMatrices.get(key);
+        if (matrix == null) {
+            matrix = this.createCodingMatrix(k, m);
+            this.codingMatrices.put(key, matrix);
+        }
+        return matrix;
+    }
+
+    public void encode(int k, int m, byte[][] dataBlocks, byte[][] codingBlocks, int blockSize) {
+        this.matrixMultiply(k, m, this.getCodingMatrix(k, m), dataBlocks, codingBlocks, blockSize);
+    }
+
+    public boolean decode(int k, int m, int[] erasures, byte[][] dataBlocks, byte[][] codingBlocks, int blockSize) {
+        boolean[] erased = new boolean[k + m];
+        int erasuresNum = 0;
+        for (int i = 0; i < erasures.length && erasures[i] != -1; i++) {
+            if (erasures[i] < 0 || erasures[i] >= k + m)
+                return false;
+            if (!erased[erasures[i]]) {
+                erased[erasures[i]] = true;
+                erasuresNum++;
+            }
+        }
+        if (erasuresNum > m)
+            return false;
+
+        DecodingPlan plan = this.getDecodingPlan(k, m, erased);
+        if (plan == null)
+            return false;
+
+        if (plan.dataIds.length > 0) {
+            byte[][] survivors = new byte[k][];
+            for (int j = 0; j < k; j++)
+                survivors[j] = plan.survivorIds[j] < k ?
+                        dataBlocks[plan.survivorIds[j]] : codingBlocks[plan.survivorIds[j] - k];
+            byte[][] rebuilt = new byte[plan.dataIds.length][];
+            for (int i = 0; i < rebuilt.length; i++) {
+                if (dataBlocks[plan.dataIds[i]] == null)
+                    dataBlocks[plan.dataIds[i]] = new byte[blockSize];
+                rebuilt[i] = dataBlocks[plan.dataIds[i]];
+            }
+            this.matrixMultiply(k, rebuilt.length, plan.dataMatrix, survivors, rebuilt, blockSize);
+        }
+
+        if (plan.codingIds.length > 0) {
+            byte[][] rebuilt = new byte[plan.codingIds.length][];
+            for (int i = 0; i < rebuilt.length; i++) {
+                if (codingBlocks[plan.codingIds[i] - k] == null)
+                    codingBlocks[plan.codingIds[i] - k] = new byte[blockSize];
+                rebuilt[i] = codingBlocks[plan.codingIds[i] - k];
+            }
+            this.matrixMultiply(k, rebuilt.length, plan.codingMatrix, dataBlocks, rebuilt, blockSize);
+        }
+        return true;
+    }
+
+    private DecodingPlan getDecodingPlan(int k, int m, boolean[] erased) {
+        StringBuilder sb = new StringBuilder().append(k).append(':').append(m);
+        for (int i = 0; i < erased.length; i++)
+            if (erased[i])
+                sb.append(':').append(i);
+        String key = sb.toString();
+
+        DecodingPlan plan = this.decodingPlans.get(key);
+        if (plan != null)
+            return plan;
+
+        int[] codingMatrix = this.getCodingMatrix(k, m);
+        int rowSize = this.getRowSize(k);
+        plan = new DecodingPlan();
+        int dataErasures = 0, codingErasures = 0;
+        for (int i = 0; i < k + m; i++)
+            if (erased[i]) {
+                if (i < k)  dataErasures++;
+                else        codingErasures++;
+            }
+
+        plan.dataIds = new int[dataErasures];
+        plan.dataMatrix = new int[dataErasures * rowSize];
+        if (dataErasures > 0) {
+            int[] decodingMatrix = new int[k * rowSize];
+            plan.survivorIds = new int[k];
+            if (!this.makeDecodingMatrix(k, m, codingMatrix, erased, decodingMatrix, plan.survivorIds))
+                return null;
+            for (int i = 0, idx = 0; i < k; i++)
+                if (erased[i]) {
+                    plan.dataIds[idx] = i;
+                    System.arraycopy(decodingMatrix, i * rowSize, plan.dataMatrix, idx * rowSize, rowSize);
+                    idx++;
+                }
+        }
+
+        plan.codingIds = new int[codingErasures];
+        plan.codingMatrix = new int[codingErasures * rowSize];
+        for (int i = 0, idx = 0; i < m; i++)
+            if (erased[k + i]) {
+                plan.codingIds[idx] = k + i;
+                System.arraycopy(codingMatrix, i * rowSize, plan.codingMatrix, idx * rowSize, rowSize);
+                idx++;
+            }
+
+        this.decodingPlans.put(key, plan);
+        return plan;
+    }
+
+    /**
+     * Builds the k x k matrix of the first k surviving blocks:
+     * identity rows for data blocks, coding matrix rows for coding blocks.
+     */
+    protected static int[] getSurvivorsMatrix(int k, int[] codingMatrix, boolean[] erased, int[] dmIds) {
+        int[] mat = new int[k * k];
+        for (int i = 0, j = 0; j < k; i++)
+            if (!erased[i]) {
+                dmIds[j] = i;
+                if (i < k)
+                    mat[j * k + i] = 1;
+                else
+                    System.arraycopy(codingMatrix, (i - k) * k, mat, j * k, k);
+                j++;
+            }
+        return mat;
+    }
+
+    /**
+     * Drops all cached matrices.
+     */
+    public void clearCache() {
+        this.codingMatrices.clear();
+        this.decodingPlans.clear();
+    }
+}
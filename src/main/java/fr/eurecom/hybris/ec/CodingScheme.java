@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.ec;
+
+/**
+ * Erasure coding schemes. The id is persisted in the metadata,
+ * so existing values must never be renumbered.
+ * @author P. Viotti
+ */
+public enum CodingScheme {
+
+    /** Reed-Solomon over GF(2^8) with a Vandermonde-derived coding matrix */
+    REED_SOL_VAN(0),
+    /** Cauchy Reed-Solomon, encoded as a bitmatrix with XORs only */
+    CAUCHY_GOOD(1),
+    /** Liberation RAID-6 bitmatrix codes (m = 2 only) */
+    LIBERATION(2);
+
+    private final int id;
+    private CodingScheme(int id) { this.id = id; }
+    public int getId() { return this.id; }
+
+    public static CodingScheme fromId(int id) {
+        for (CodingScheme scheme : values())
+            if (scheme.id == id)
+                return scheme;
+        throw new IllegalArgumentException("Unknown erasure coding scheme " + id);
+    }
+
+    /**
+     * @return true if the scheme can code k data blocks into m coding blocks
+     */
+    public boolean supports(int k, int m) {
+        if (k <= 0 || m <= 0)
+            return false;
+        switch (this) {
+            case LIBERATION:
+                return m == 2;
+            default:
+                return k + m <= 256;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.ec;
+
+/**
+ * Erasure codec working on equally sized blocks.
+ * Blocks are identified as in Jerasure: ids 0..k-1 are data blocks,
+ * ids k..k+m-1 are coding blocks.
+ * @author P. Viotti
+ */
+public interface ErasureCodec {
+
+    /**
+     * @return the number of bytes block sizes must be a multiple of
+     */
+    public int getBlockAlignment(int k, int m);
+
+    /**
+     * Computes the coding blocks of the given data blocks.
+     * @param k - number of data blocks
+     * @param m - number of coding blocks
+     * @param dataBlocks - k blocks of blockSize bytes
+     * @param codingBlocks - m blocks of blockSize bytes, overwritten
+     * @param blockSize
+     */
+    public void encode(int k, int m, byte[][] dataBlocks, byte[][] codingBlocks, int blockSize);
+
+    /**
+     * Rebuilds the erased data and coding blocks in place.
+     * @param k - number of data blocks
+     * @param m - number of coding blocks
+     * @param erasures - ids of the erased blocks, terminated by -1
+     * @param dataBlocks
+     * @param codingBlocks
+     * @param blockSize
+     * @return false if the blocks could not be decoded (e.g. more than m erasures)
+     */
+    public boolean decode(int k, int m, int[] erasures, byte[][] dataBlocks, byte[][] codingBlocks, int blockSize);
+}
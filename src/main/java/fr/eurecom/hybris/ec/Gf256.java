@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.ec;
+
+/**
+ * Arithmetic in GF(2^8) with the primitive polynomial used by Jerasure
+ * for w = 8 (x^8 + x^4 + x^3 + x^2 + 1), so that coding matrices
+ * and coded blocks are byte-compatible with libJerasure.
+ * @author P. Viotti
+ */
+public final class Gf256 {
+
+    public static final int PRIM_POLY = 0x11d;
+    public static final int FIELD_SIZE = 256;
+
+    private static final int[] LOG = new int[FIELD_SIZE];
+    private static final int[] EXP = new int[2 * FIELD_SIZE];
+
+    /* Full multiplication table: MUL[a] maps each byte b to a*b.
+     * 64 kB, small enough to stay hot in cache while coding a region. */
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int b = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = b;
+            LOG[b] = i;
+            b <<= 1;
+            if ((b & FIELD_SIZE) != 0)
+                b ^= PRIM_POLY;
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++)
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+
+        for (int x = 1; x < FIELD_SIZE; x++)
+            for (int y = 1; y < FIELD_SIZE; y++)
+                MUL[x][y] = (byte) EXP[LOG[x] + LOG[y]];
+    }
+
+    private Gf256() { }
+
+    public static int multiply(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    public static int divide(int a, int b) {
+        if (b == 0)
+            throw new ArithmeticException("Division by zero in GF(2^8)");
+        if (a == 0)
+            return 0;
+        return EXP[LOG[a] + FIELD_SIZE - 1 - LOG[b]];
+    }
+
+    /**
+     * Computes dst = c * src (overwrite) or dst ^= c * src over the first size bytes.
+     * The loops are kept branch-free so that the JIT can unroll and vectorize them.
+     */
+    public static void multiplyRegion(int c, byte[] src, byte[] dst, int size, boolean add) {
+        if (c == 0) {
+            if (!add)
+                for (int i = 0; i < size; i++)
+                    dst[i] = 0;
+        } else if (c == 1) {
+            if (add)
+                for (int i = 0; i < size; i++)
+                    dst[i] ^= src[i];
+            else
+                System.arraycopy(src, 0, dst, 0, size);
+        } else {
+            byte[] table = MUL[c];
+            if (add)
+                for (int i = 0; i < size; i++)
+                    dst[i] ^= table[src[i] & 0xff];
+            else
+                for (int i = 0; i < size; i++)
+                    dst[i] = table[src[i] & 0xff];
+        }
+    }
+
+    /**
+     * Inverts a rows x rows matrix in place by Gauss-Jordan elimination.
+     * @return the inverse, or null if the matrix is singular
+     */
+    public static int[] invertMatrix(int[] mat, int rows) {
+        int[] inv = new int[rows * rows];
+        for (int i = 0; i < rows; i++)
+            inv[i * rows + i] = 1;
+
+        for (int i = 0; i < rows; i++) {
+            int rowStart = i * rows;
+            if (mat[rowStart + i] == 0) {
+                int j = i + 1;
+                while (j < rows && mat[j * rows + i] == 0)
+                    j++;
+                if (j == rows)
+                    return null;
+                swapRows(mat, rows, i, j);
+                swapRows(inv, rows, i, j);
+            }
+
+            int pivot = mat[rowStart + i];
+            if (pivot != 1) {
+                int inverse = divide(1, pivot);
+                for (int x = 0; x < rows; x++) {
+                    mat[rowStart + x] = multiply(mat[rowStart + x], inverse);
+                    inv[rowStart + x] = multiply(inv[rowStart + x], inverse);
+                }
+            }
+
+            for (int j = 0; j < rows; j++) {
+                int factor = mat[j * rows + i];
+                if (j == i || factor == 0)
+                    continue;
+                for (int x = 0; x < rows; x++) {
+                    mat[j * rows + x] ^= multiply(factor, mat[rowStart + x]);
+                    inv[j * rows + x] ^= multiply(factor, inv[rowStart + x]);
+                }
+            }
+        }
+        return inv;
+    }
+
+    private static void swapRows(int[] mat, int cols, int r1, int r2) {
+        for (int x = 0; x < cols; x++) {
+            int tmp = mat[r1 * cols + x];
+            mat[r1 * cols + x] = mat[r2 * cols + x];
+            mat[r2 * cols + x] = tmp;
+        }
+    }
+}
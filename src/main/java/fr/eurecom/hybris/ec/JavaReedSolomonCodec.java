@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.ec;
+
+/**
+ * Pure-Java Reed-Solomon codec over GF(2^8).
+ * Coding matrices are built as in Jerasure's reed_sol_vandermonde_coding_matrix,
+ * so blocks are interchangeable with those produced by {@link JerasureCodec}.
+ * @author P. Viotti
+ */
+public class JavaReedSolomonCodec extends AbstractMatrixCodec {
+
+    private static int BLOCK_ALIGNMENT = 256;   // same as JerasureCodec
+
+    /**
+     * Port of reed_sol_vandermonde_coding_matrix (w = 8): the last m rows
+     * of the systematic (k+m) x k Vandermonde distribution matrix.
+     */
+    public static int[] vandermondeCodingMatrix(int k, int m) {
+        int rows = k + m, cols = k;
+        if (rows > Gf256.FIELD_SIZE)
+            throw new IllegalArgumentException("k + m must not exceed " + Gf256.FIELD_SIZE);
+        int[] dist = getBigVandermondeDistributionMatrix(rows, cols);
+        int[] matrix = new int[m * k];
+        System.arraycopy(dist, k * k, matrix, 0, m * k);
+        return matrix;
+    }
+
+    private static int[] getExtendedVandermondeMatrix(int rows, int cols) {
+        int[] vdm = new int[rows * cols];
+        vdm[0] = 1;
+        if (rows == 1)
+            return vdm;
+        vdm[(rows - 1) * cols + cols - 1] = 1;
+        if (rows == 2)
+            return vdm;
+        for (int i = 1; i < rows - 1; i++) {
+            int e = 1;
+            for (int j = 0; j < cols; j++) {
+                vdm[i * cols + j] = e;
+                e = Gf256.multiply(e, i);
+            }
+        }
+        return vdm;
+    }
+
+    private static int[] getBigVandermondeDistributionMatrix(int rows, int cols) {
+        if (cols >= rows)
+            throw new IllegalArgumentException("m must be greater than 0");
+        int[] dist = getExtendedVandermondeMatrix(rows, cols);
+
+        for (int i = 1; i < cols; i++) {
+            int sindex = i * cols;
+
+            // find a row with a non-zero element in column i, and swap it with row i
+            int j = i;
+            while (j < rows && dist[j * cols + i] == 0)
+                j++;
+            if (j >= rows)
+                throw new IllegalStateException("Could not build the distribution matrix");
+            if (j != i)
+                for (int x = 0; x < cols; x++) {
+                    int tmp = dist[j * cols + x];
+                    dist[j * cols + x] = dist[sindex + x];
+                    dist[sindex + x] = tmp;
+                }
+
+            // make element (i,i) equal to 1 by scaling column i
+            if (dist[sindex + i] != 1) {
+                int tmp = Gf256.divide(1, dist[sindex + i]);
+                for (int r = 0; r < rows; r++)
+                    dist[r * cols + i] = Gf256.multiply(tmp, dist[r * cols + i]);
+            }
+
+            // zero the other elements of row i: col_j += e * col_i
+            for (j = 0; j < cols; j++) {
+                int e = dist[sindex + j];
+                if (j != i && e != 0)
+                    for (int r = 0; r < rows; r++)
+                        dist[r * cols + j] ^= Gf256.multiply(e, dist[r * cols + i]);
+            }
+        }
+
+        // make row k all ones by scaling the columns of the coding rows
+        int sindex = cols * cols;
+        for (int j = 0; j < cols; j++) {
+            int e = dist[sindex + j];
+            if (e != 1) {
+                int tmp = Gf256.divide(1, e);
+                for (int r = cols; r < rows; r++)
+                    dist[r * cols + j] = Gf256.multiply(tmp, dist[r * cols + j]);
+            }
+        }
+
+        // make the first column of each following row all ones
+        for (int i = cols + 1; i < rows; i++) {
+            int e = dist[i * cols];
+            if (e != 1) {
+                int tmp = Gf256.divide(1, e);
+                for (int j = 0; j < cols; j++)
+                    dist[i * cols + j] = Gf256.multiply(dist[i * cols + j], tmp);
+            }
+        }
+        return dist;
+    }
+
+    public int getBlockAlignment(int k, int m) {
+        return BLOCK_ALIGNMENT;
+    }
+
+    protected int[] createCodingMatrix(int k, int m) {
+        return vandermondeCodingMatrix(k, m);
+    }
+
+    protected boolean makeDecodingMatrix(int k, int m, int[] codingMatrix, boolean[] erased,
+            int[] decodingMatrix, int[] dmIds) {
+        int[] inverse = Gf256.invertMatrix(getSurvivorsMatrix(k, codingMatrix, erased, dmIds), k);
+        if (inverse == null)
+            return false;
+        System.arraycopy(inverse, 0, decodingMatrix, 0, k * k);
+        return true;
+    }
+
+    protected void matrixMultiply(int k, int rows, int[] matrix, byte[][] src, byte[][] dst, int blockSize) {
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < k; j++)
+                Gf256.multiplyRegion(matrix[i * k + j], src[j], dst[i], blockSize, j > 0);
+    }
+}
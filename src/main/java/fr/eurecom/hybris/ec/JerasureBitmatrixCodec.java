@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.ec;
+
+import eu.vandertil.jerasure.jni.Cauchy;
+import eu.vandertil.jerasure.jni.Jerasure;
+import eu.vandertil.jerasure.jni.Liberation;
+
+/**
+ * XOR-only bitmatrix codecs (Cauchy Reed-Solomon and Liberation)
+ * backed by the Jerasure JNI bindings.
+ * Each coding row of a bitmatrix is made of w rows of k*w bits,
+ * and blocks are processed in packets of PACKET_SIZE bytes.
+ * @author P. Viotti
+ */
+public class JerasureBitmatrixCodec extends AbstractMatrixCodec {
+
+    private static String EC_LIB_NAME = "Jerasure.jni";
+    private static int PACKET_SIZE = 8;     // must be a multiple of sizeof(long)
+    private static int CAUCHY_WORD_SIZE = 8;
+
+    private final CodingScheme scheme;
+
+    /**
+     * @throws UnsatisfiedLinkError if the native library cannot be loaded
+     */
+    public JerasureBitmatrixCodec(CodingScheme scheme) {
+        if (scheme != CodingScheme.CAUCHY_GOOD && scheme != CodingScheme.LIBERATION)
+            throw new IllegalArgumentException(scheme + " is not a bitmatrix scheme");
+        System.loadLibrary(EC_LIB_NAME);
+        this.scheme = scheme;
+    }
+
+    /**
+     * Liberation codes need a prime w >= k (and > 2), Cauchy codes use w = 8.
+     */
+    public int getWordSize(int k) {
+        if (this.scheme == CodingScheme.CAUCHY_GOOD)
+            return CAUCHY_WORD_SIZE;
+        int w = Math.max(k, 3);
+        while (!isPrime(w))
+            w++;
+        return w;
+    }
+
+    private static boolean isPrime(int n) {
+        for (int d = 2; d * d <= n; d++)
+            if (n % d == 0)
+                return false;
+        return n > 1;
+    }
+
+    public int getBlockAlignment(int k, int m) {
+        return this.getWordSize(k) * PACKET_SIZE * 4;
+    }
+
+    protected int getRowSize(int k) {
+        int w = this.getWordSize(k);
+        return k * w * w;
+    }
+
+    protected int[] createCodingMatrix(int k, int m) {
+        int w = this.getWordSize(k);
+        if (this.scheme == CodingScheme.LIBERATION)
+            return Liberation.liberation_coding_bitmatrix(k, w);
+        int[] matrix = Cauchy.cauchy_good_general_coding_matrix(k, m, w);
+        return Jerasure.jerasure_matrix_to_bitmatrix(k, m, w, matrix);
+    }
+
+    protected boolean makeDecodingMatrix(int k, int m, int[] codingMatrix, boolean[] erased,
+            int[] decodingMatrix, int[] dmIds) {
+        return Jerasure.jerasure_make_decoding_bitmatrix(k, m, this.getWordSize(k), codingMatrix, erased,
+                decodingMatrix, dmIds);
+    }
+
+    protected void matrixMultiply(int k, int rows, int[] matrix, byte[][] src, byte[][] dst, int blockSize) {
+        Jerasure.jerasure_bitmatrix_encode(k, rows, this.getWordSize(k), matrix, src, dst,
+                blockSize, PACKET_SIZE);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.ec;
+
+import eu.vandertil.jerasure.jni.Jerasure;
+import eu.vandertil.jerasure.jni.ReedSolomon;
+
+/**
+ * Reed-Solomon (Vandermonde) codec backed by the Jerasure JNI bindings.
+ * @author P. Viotti
+ */
+public class JerasureCodec extends AbstractMatrixCodec {
+
+    private static String EC_LIB_NAME = "Jerasure.jni";
+    private static int WORD_SIZE = 8;
+    private static int BLOCK_ALIGNMENT = 256;   // kept for compatibility with existing chunks
+
+    /**
+     * @throws UnsatisfiedLinkError if the native library cannot be loaded
+     */
+    public JerasureCodec() {
+        System.loadLibrary(EC_LIB_NAME);
+    }
+
+    public int getBlockAlignment(int k, int m) {
+        return BLOCK_ALIGNMENT;
+    }
+
+    protected int[] createCodingMatrix(int k, int m) {
+        return ReedSolomon.reed_sol_vandermonde_coding_matrix(k, m, WORD_SIZE);
+    }
+
+    protected boolean makeDecodingMatrix(int k, int m, int[] codingMatrix, boolean[] erased,
+            int[] decodingMatrix, int[] dmIds) {
+        return Jerasure.jerasure_make_decoding_matrix(k, m, WORD_SIZE, codingMatrix, erased,
+                decodingMatrix, dmIds);
+    }
+
+    protected void matrixMultiply(int k, int rows, int[] matrix, byte[][] src, byte[][] dst, int blockSize) {
+        Jerasure.jerasure_matrix_encode(k, rows, WORD_SIZE, matrix, src, dst, blockSize);
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.kvs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pipe of blocks between an encoder and a streaming upload worker.
+ * Unlike PipedOutputStream, writes give up after a timeout, so that
+ * a stalled or dead reader cannot block the writer forever.
+ * Blocks are passed by reference and must not be modified once written.
+ * @author P. Viotti
+ */
+public class BlockPipe {
+
+    private static final byte[] EOF = new byte[0];
+    private static final byte[] ABORTED = new byte[0];
+
+    private final BlockingQueue<byte[]> blocks;
+    private volatile boolean closedByReader;
+    private volatile boolean drainedByReader;
+
+    private final InputStream in = new InputStream() {
+
+        private byte[] block;
+        private int pos;
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (this.block != EOF && (this.block == null || this.pos == this.block.length)) {
+                try {
+                    this.block = BlockPipe.this.blocks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading from the pipe");
+                }
+                this.pos = 0;
+                if (this.block == ABORTED)
+                    throw new IOException("Pipe aborted by the writer");
+            }
+            if (this.block == EOF)
+                return -1;
+            int n = Math.min(len, this.block.length - this.pos);
+            System.arraycopy(this.block, this.pos, b, off, n);
+            this.pos += n;
+            return n;
+        }
+
+        public void close() {
+            // a reader which consumed the whole value may close before the end of stream
+            BlockPipe.this.drainedByReader = BlockPipe.this.blocks.isEmpty() &&
+                    (this.block == null || this.block == EOF || this.pos == this.block.length);
+            BlockPipe.this.closedByReader = true;
+            BlockPipe.this.blocks.clear();      // unblocks the writer
+        }
+    };
+
+    /**
+     * @param capacity - number of blocks buffered before writes block
+     */
+    public BlockPipe(int capacity) {
+        this.blocks = new ArrayBlockingQueue<byte[]>(capacity);
+    }
+
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    /**
+     * Appends a block, waiting at most <timeout> for room in the pipe.
+     * @throws IOException if the reader closed the pipe or did not keep up
+     */
+    public void write(byte[] block, long timeout, TimeUnit unit) throws IOException {
+        this.put(block, timeout, unit);
+    }
+
+    /**
+     * Signals the end of the stream, waiting at most <timeout> for room in the pipe.
+     * @throws IOException if the reader closed the pipe before consuming
+     * all the blocks, or did not keep up
+     */
+    public void close(long timeout, TimeUnit unit) throws IOException {
+        if (this.closedByReader && this.drainedByReader)
+            return;
+        this.put(EOF, timeout, unit);
+    }
+
+    /**
+     * Makes the reader fail, e.g. when the stream is given up.
+     * Must be called by the writer.
+     */
+    public void abort() {
+        this.blocks.clear();
+        this.blocks.offer(ABORTED);
+    }
+
+    private void put(byte[] block, long timeout, TimeUnit unit) throws IOException {
+        if (this.closedByReader)
+            throw new IOException("Pipe closed by the reader");
+        try {
+            if (!this.blocks.offer(block, timeout, unit))
+                throw new IOException("Timed out writing to the pipe");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to the pipe");
+        }
+    }
+}
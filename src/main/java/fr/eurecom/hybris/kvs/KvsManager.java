@@ -16,6 +16,7 @@
 package fr.eurecom.hybris.kvs;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -28,11 +29,14 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jclouds.rest.AuthorizationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.RateLimiter;
+
 import fr.eurecom.hybris.Config;
 import fr.eurecom.hybris.kvs.drivers.AmazonKvs;
 import fr.eurecom.hybris.kvs.drivers.AzureKvs;
@@ -57,6 +61,7 @@ public class KvsManager {
     private final List<Kvs> kvsLst;                     // kvStores list (not sorted)
     private final List<Kvs> kvsLstByReads;              // kvStores sorted by read latency
     private final List<Kvs> kvsLstByWrites;             // kvStores sorted by write latency
+    private final AtomicLong requests = new AtomicLong();
 
     private final int LATENCY_TEST_DATA_SIZE = 100;     // default value: 100kB
     
@@ -168,6 +173,8 @@ public class KvsManager {
     public List<Kvs> getKvsList()                   { return this.kvsLst; }
     public List<Kvs> getKvsSortedByReadLatency()    { return this.kvsLstByReads; }
     public List<Kvs> getKvsSortedByWriteLatency()   { return this.kvsLstByWrites; }
+    /* number of put and get requests issued so far, a measure of foreground load */
+    public long getRequestCount()                   { return this.requests.get(); }
 
 
     /**
@@ -198,6 +205,41 @@ public class KvsManager {
     }
 
 
+    /**
+     * Worker thread class in charge of asynchronously streaming
+     * a value to a cloud store. The stream is closed once done,
+     * so that a producer writing into a pipe is notified of failures.
+     * @author p.viotti
+     */
+    public class KvsStreamPutWorker implements Callable<Kvs> {
+
+        private final Kvs kvStore;
+        private final String key;
+        private final InputStream value;
+        private final long length;
+
+        public KvsStreamPutWorker(Kvs kvStore, String key, InputStream value, long length) {
+            this.kvStore = kvStore;
+            this.key = key;
+            this.value = value;
+            this.length = length;
+        }
+
+        public Kvs call() {
+            try {
+                KvsManager.this.put(this.kvStore, this.key, this.value, this.length);
+                return this.kvStore;
+            } catch (Exception e) {
+                return new Kvs(FAIL_PREFIX + kvStore.getId(), "", false, 0);
+            } finally {
+                try {
+                    this.value.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+
     /**
      * Worker thread class in charge of asynchronously performing
      * read operations on cloud stores.
@@ -226,6 +268,41 @@ public class KvsManager {
         }
     }
     
+    
+    /**
+     * Worker thread class in charge of asynchronously performing
+     * batch delete operations on cloud stores.
+     * Returns the keys which could not be deleted.
+     * @author p.viotti
+     */
+    public class KvsDeleteBatchWorker implements Callable<List<String>> {
+
+        private final Kvs kvStore;
+        private final List<String> keys;
+        private final RateLimiter rateLimiter;
+
+        /**
+         * @param kvStore
+         * @param keys
+         * @param rateLimiter - deletions per second allowed on kvStore (can be null)
+         */
+        public KvsDeleteBatchWorker(Kvs kvStore, List<String> keys, RateLimiter rateLimiter) {
+            this.kvStore = kvStore;
+            this.keys = keys;
+            this.rateLimiter = rateLimiter;
+        }
+
+        public List<String> call() {
+            if (this.rateLimiter != null)
+                this.rateLimiter.acquire(this.keys.size());
+            try {
+                return KvsManager.this.deleteBatch(this.kvStore, this.keys);
+            } catch (Exception e) {
+                return this.keys;
+            }
+        }
+    }
+    
 
     /**
      * Worker thread class in charge of testing read and
@@ -301,6 +378,7 @@ public class KvsManager {
 
 
     public void put(Kvs kvStore, String key, byte[] data) throws IOException {
+        this.requests.incrementAndGet();
         try {
             kvStore.put(key, data);
         } catch (IOException e) {
@@ -310,7 +388,19 @@ public class KvsManager {
     }
 
 
+    public void put(Kvs kvStore, String key, InputStream data, long length) throws IOException {
+        this.requests.incrementAndGet();
+        try {
+            kvStore.put(key, data, length);
+        } catch (IOException e) {
+            logger.warn("Could not put " + key + " on " + kvStore, e);
+            throw e;
+        }
+    }
+
+
     public byte[] get(Kvs kvStore, String key) throws IOException {
+        this.requests.incrementAndGet();
         try {
             byte[] value = kvStore.get(key);
             if (value == null)
@@ -333,6 +423,19 @@ public class KvsManager {
     }
 
 
+    public List<String> deleteBatch(Kvs kvStore, List<String> keys) throws IOException {
+        try {
+            List<String> failed = kvStore.deleteBatch(keys);
+            if (!failed.isEmpty())
+                logger.warn("Could not delete {} of {} keys from {}", failed.size(), keys.size(), kvStore);
+            return failed;
+        } catch (IOException e) {
+            logger.warn("Could not delete " + keys.size() + " keys from " + kvStore, e);
+            throw e;
+        }
+    }
+
+
     public List<String> list(Kvs kvStore) throws IOException {
         try {
             return kvStore.list();
@@ -343,6 +446,16 @@ public class KvsManager {
     }
 
 
+    public List<String> list(Kvs kvStore, String marker, int maxKeys) throws IOException {
+        try {
+            return kvStore.list(marker, maxKeys);
+        } catch (IOException e) {
+            logger.warn("Could not list keys in {}", kvStore, e);
+            throw e;
+        }
+    }
+
+
     public void shutdown(Kvs kvStore) {
         try {
             kvStore.shutdown();
@@ -380,11 +493,8 @@ public class KvsManager {
     public void emptyStorageContainer(Kvs kvStore) throws IOException {
         logger.debug("Listing {}", kvStore);
         List<String> keys = kvStore.list();
-        for (String key : keys)
-            try {
-                logger.debug("Removing {} from {}", key, kvStore);
-                kvStore.delete(key);
-            } catch (IOException e) { }
+        logger.debug("Removing {} keys from {}", keys.size(), kvStore);
+        kvStore.deleteBatch(keys);
     }
 
     /* ---------------------------------------------------------------------------------------
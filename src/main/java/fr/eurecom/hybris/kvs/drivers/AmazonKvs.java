@@ -17,6 +17,7 @@ package fr.eurecom.hybris.kvs.drivers;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,7 +28,11 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
@@ -42,6 +47,8 @@ import com.google.common.io.ByteStreams;
 
 public class AmazonKvs extends Kvs {
 
+    private final static int MAX_DELETE_KEYS = 1000;   // per DeleteObjects request
+
     private transient final AmazonS3 s3;
     private transient final TransferManager tm;
 
@@ -78,6 +85,21 @@ public class AmazonKvs extends Kvs {
         }
     }
 
+    public void put(String key, InputStream value, long length) throws IOException {
+        try {
+            ObjectMetadata om = new ObjectMetadata();
+            om.setContentLength(length);
+
+            PutObjectRequest request = new PutObjectRequest(this.rootContainer, key, value, om);
+            request.setStorageClass(StorageClass.ReducedRedundancy);
+
+            Upload upload = this.tm.upload(request);
+            upload.waitForCompletion();
+        } catch (AmazonClientException | InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
     public byte[] get(String key) throws IOException {
         try {
             S3Object object = this.s3.getObject(new GetObjectRequest(this.rootContainer, key));
@@ -102,6 +124,25 @@ public class AmazonKvs extends Kvs {
         }
     }
 
+    public List<String> deleteBatch(List<String> keys) throws IOException {
+        List<String> failed = new ArrayList<String>();
+        for (int i=0; i<keys.size(); i+=MAX_DELETE_KEYS) {
+            List<String> batch = keys.subList(i, Math.min(i + MAX_DELETE_KEYS, keys.size()));
+            DeleteObjectsRequest request = new DeleteObjectsRequest(this.rootContainer)
+                    .withKeys(batch.toArray(new String[batch.size()]))
+                    .withQuiet(true);
+            try {
+                this.s3.deleteObjects(request);
+            } catch (MultiObjectDeleteException e) {
+                for (DeleteError error : e.getErrors())
+                    failed.add(error.getKey());
+            } catch (AmazonClientException e) {
+                failed.addAll(batch);
+            }
+        }
+        return failed;
+    }
+
     public List<String> list() throws IOException {
         try {
             List<String> keys = new ArrayList<String>();
@@ -126,6 +167,19 @@ public class AmazonKvs extends Kvs {
         }
     }
 
+    public List<String> list(String marker, int maxKeys) throws IOException {
+        try {
+            List<String> keys = new ArrayList<String>();
+            ObjectListing objectListing = this.s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(this.rootContainer).withMarker(marker).withMaxKeys(maxKeys));
+            for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries())
+                keys.add(objectSummary.getKey());
+            return keys;
+        } catch (AmazonClientException e) {
+            throw new IOException(e);
+        }
+    }
+
     private void createContainer() throws IOException {
         try {
             if (!this.s3.doesBucketExist(this.rootContainer))
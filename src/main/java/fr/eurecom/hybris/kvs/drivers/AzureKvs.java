@@ -18,17 +18,24 @@ package fr.eurecom.hybris.kvs.drivers;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
 import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
 import com.microsoft.azure.storage.blob.BlobRequestOptions;
 import com.microsoft.azure.storage.blob.CloudBlob;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
@@ -47,6 +54,16 @@ public class AzureKvs extends Kvs {
 	private transient final CloudBlobClient blobClient;
 	private transient CloudBlobContainer containerRef;
 	private transient HashMap<String, CloudBlockBlob> blobRefs; // cached
+
+	private transient static final int MAX_SCANS = 8;	// paged listings running at the same time
+	/* Continuation token of each paged listing, by the last key it was served */
+	private transient final Map<String, ResultContinuation> scans = 
+			new LinkedHashMap<String, ResultContinuation>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, ResultContinuation> eldest) {
+			return this.size() > MAX_SCANS;
+		}
+	};
 																// references of
 																// already used
 																// blobs
@@ -85,6 +102,17 @@ public class AzureKvs extends Kvs {
 		}
 	}
 
+	public void put(String key, InputStream value, long length) throws IOException {
+		try {
+			CloudBlockBlob blob = this.containerRef.getBlockBlobReference(key);
+			blob.getProperties().setContentMD5(null);
+			blob.upload(value, length);
+			this.blobRefs.put(key, blob);
+		} catch (URISyntaxException | StorageException | IOException e) {
+			throw new IOException(e);
+		}
+	}
+
 	public byte[] get(String key) throws IOException {
 		try {
 			CloudBlockBlob blob = this.blobRefs.get(key);
@@ -136,6 +164,42 @@ public class AzureKvs extends Kvs {
 
 	}
 
+	/* 
+	 * Azure listings are paginated by opaque continuation tokens rather than by key:
+	 * the token of each scan is kept by the last key it was served. Scans whose 
+	 * token was evicted list the segments from the start, skipping the keys up to marker.
+	 */
+	public List<String> list(String marker, int maxKeys) throws IOException {
+		ResultContinuation token = null;
+		if (marker != null)
+			synchronized (this.scans) {
+				token = this.scans.remove(marker);
+			}
+		boolean skip = marker != null && token == null;
+
+		List<String> keys = new ArrayList<String>();
+		try {
+			do {
+				ResultSegment<ListBlobItem> segment = this.containerRef.listBlobsSegmented(null, true, 
+						EnumSet.noneOf(BlobListingDetails.class), maxKeys - keys.size(), token, null, null);
+				for (ListBlobItem blobItem : segment.getResults()) {
+					String key = ((CloudBlob) blobItem).getName();
+					if (!skip || key.compareTo(marker) > 0)
+						keys.add(key);
+				}
+				token = segment.getContinuationToken();
+			} while (keys.size() < maxKeys && token != null);
+		} catch (StorageException e) {
+			throw new IOException(e);
+		}
+
+		if (!keys.isEmpty() && token != null)
+			synchronized (this.scans) {
+				this.scans.put(keys.get(keys.size() - 1), token);
+			}
+		return keys;
+	}
+
 	private void createContainer() throws IOException {
 		try {
 			this.containerRef = this.blobClient.getContainerReference(this.rootContainer);
@@ -23,9 +23,11 @@ import java.util.List;
 
 import org.apache.http.HttpStatus;
 import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
 import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
 import org.jets3t.service.model.GSBucket;
 import org.jets3t.service.model.GSObject;
+import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.security.GSCredentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,6 +69,17 @@ public class GoogleKvs extends Kvs {
         }
     }
 
+    public void put(String key, InputStream value, long length) throws IOException {
+        try {
+            GSObject object = new GSObject(key);
+            object.setDataInputStream(value);
+            object.setContentLength(length);
+            this.gsService.putObject(this.rootContainer, object);
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
     public byte[] get(String key) throws IOException {
         try {
             GSObject objectComplete = this.gsService.getObject(this.rootContainer, key);
@@ -113,6 +126,19 @@ public class GoogleKvs extends Kvs {
         }
     }
 
+    public List<String> list(String marker, int maxKeys) throws IOException {
+        try {
+            List<String> keys = new ArrayList<String>();
+            StorageObjectsChunk chunk = this.gsService.listObjectsChunked(this.rootContainer, 
+                    null, null, maxKeys, marker);
+            for (StorageObject obj : chunk.getObjects())
+                keys.add(obj.getName());
+            return keys;
+        } catch (ServiceException e) {
+            throw new IOException(e);
+        }
+    }
+
     private void createContainer() throws IOException {
         try {
             this.gsService.createBucket(this.rootContainer, GSBucket.LOCATION_EUROPE, null);	// XXX hardcoded bucket location 
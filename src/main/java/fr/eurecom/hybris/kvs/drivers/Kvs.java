@@ -16,8 +16,16 @@
 package fr.eurecom.hybris.kvs.drivers;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import com.google.common.io.ByteStreams;
 
 public class Kvs {
 
@@ -30,6 +38,16 @@ public class Kvs {
     protected transient long readLatency;
     protected transient int cost; // $ cents per GB
 
+    private transient static final int MAX_SCANS = 8;     // paged listings running at the same time
+    /* Position in its sorted snapshot of each paged listing, by the last key it was served */
+    private transient final Map<String, ListIterator<String>> scans = 
+            new LinkedHashMap<String, ListIterator<String>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<String, ListIterator<String>> eldest) {
+            return this.size() > MAX_SCANS;
+        }
+    };
+
     /**
      * Static Comparator objects for ordering the Kvs list
      * according to both read and write latencies.
@@ -77,9 +95,56 @@ public class Kvs {
 
     /* APIs */
     public void put(String key, byte[] value) throws IOException { }
+    /* Streams <length> bytes; drivers that cannot stream buffer the whole value. */
+    public void put(String key, InputStream value, long length) throws IOException {
+        byte[] buffer = new byte[(int) length];
+        ByteStreams.readFully(value, buffer);
+        this.put(key, buffer);
+    }
     public byte[] get(String key) throws IOException { return null; }
     public List<String> list() throws IOException { return null; }
+    /* Lists in lexicographic order at most maxKeys keys following marker (null for the first page);
+     * drivers without paginated listings list and sort the whole container on the first page
+     * of a scan only, and serve the following pages from that snapshot. */
+    public List<String> list(String marker, int maxKeys) throws IOException {
+        ListIterator<String> keys = null;
+        if (marker != null)
+            synchronized (this.scans) {
+                keys = this.scans.remove(marker);
+            }
+        if (keys == null) {
+            List<String> snapshot = this.list();
+            Collections.sort(snapshot);
+            int from = 0;
+            if (marker != null) {
+                int idx = Collections.binarySearch(snapshot, marker);
+                from = idx >= 0 ? idx + 1 : -idx - 1;
+            }
+            keys = snapshot.listIterator(from);
+        }
+
+        List<String> page = new ArrayList<String>();
+        while (page.size() < maxKeys && keys.hasNext())
+            page.add(keys.next());
+        if (!page.isEmpty() && keys.hasNext())
+            synchronized (this.scans) {
+                this.scans.put(page.get(page.size() - 1), keys);
+            }
+        return page;
+    }
     public void delete(String key) throws IOException { }
+    /* Deletes several keys, with as few requests as the provider allows; 
+     * returns the keys that could not be deleted. */
+    public List<String> deleteBatch(List<String> keys) throws IOException {
+        List<String> failed = new ArrayList<String>();
+        for (String key : keys)
+            try {
+                this.delete(key);
+            } catch (IOException e) {
+                failed.add(key);
+            }
+        return failed;
+    }
     public void shutdown() throws IOException { }
 
     public boolean equals(Object obj) {
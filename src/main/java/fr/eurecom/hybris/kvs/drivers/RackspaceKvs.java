@@ -16,6 +16,7 @@
 package fr.eurecom.hybris.kvs.drivers;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -81,6 +82,16 @@ public class RackspaceKvs extends Kvs {
         }
     }
 
+    public void put(String key, InputStream value, long length) throws IOException {
+        try {
+            Blob blob = this.blobStore.blobBuilder(key)
+                    .payload(value).contentLength(length).build();
+            this.blobStore.putBlob(this.rootContainer, blob);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
     public byte[] get(String key) throws IOException {
         try {
             Blob blob = this.blobStore.getBlob(this.rootContainer, key);
@@ -100,6 +111,15 @@ public class RackspaceKvs extends Kvs {
         }
     }
 
+    public List<String> deleteBatch(List<String> keys) throws IOException {
+        try {
+            this.blobStore.removeBlobs(this.rootContainer, keys);
+            return new ArrayList<String>();
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
     public List<String> list() throws IOException {
         try {
             List<String> keys = new ArrayList<String>();
@@ -114,6 +134,20 @@ public class RackspaceKvs extends Kvs {
         }
     }
 
+    public List<String> list(String marker, int maxKeys) throws IOException {
+        try {
+            ListContainerOptions options = ListContainerOptions.Builder.maxResults(maxKeys);
+            if (marker != null)
+                options = options.afterMarker(marker);
+            List<String> keys = new ArrayList<String>();
+            for (StorageMetadata resourceMd : this.blobStore.list(this.rootContainer, options))
+                keys.add(resourceMd.getName());
+            return keys;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+
     private void createContainer() throws IOException {
         try {
             this.blobStore.createContainerInLocation(null, this.rootContainer);
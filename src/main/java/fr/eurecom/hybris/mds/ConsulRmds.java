@@ -15,12 +15,25 @@
  */
 package fr.eurecom.hybris.mds;
 
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -32,6 +45,8 @@ import com.ecwid.consul.v1.QueryParams;
 import com.ecwid.consul.v1.Response;
 import com.ecwid.consul.v1.kv.model.GetBinaryValue;
 import com.ecwid.consul.v1.kv.model.PutParams;
+import com.ecwid.consul.v1.session.model.NewSession;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import fr.eurecom.hybris.Config;
 import fr.eurecom.hybris.Hybris.HybrisWatcher;
@@ -54,10 +69,32 @@ public class ConsulRmds implements Rmds {
 
 	// Integer marker to tell whether a metadata key has to be created.
 	public static int NONODE = -1;
+
+	private static long MARKERS_SHUTDOWN_TIMEOUT = 5000;	// [ms]
 	
     private final String gcRoot;
     private final String gcStaleDir;
     private final String gcOrphansDir;
+    private final GcMarkerQueue gcMarkers;
+    private final KeySnapshots keySnapshots;
+
+	private static int MARKERS_PAGE = 1000;		// markers read by each prefix read
+	// pages of the last full read of each GC directory, to clear them in bulk once collected
+	private final ConcurrentHashMap<String, List<MarkerPage>> markerPages = 
+			new ConcurrentHashMap<String, List<MarkerPage>>();
+
+	private static long WATCH_WAIT = 30;			// [s] duration of the blocking queries
+	private static long WATCH_RETRY_DELAY = 1000;	// [ms]
+
+	// Consul blocking queries work per prefix: any change under the root fires all the watches
+	private final ConcurrentHashMap<String, Runnable> watches;
+	private ExecutorService watcher;
+	private long watchIndex;
+
+	private static long GC_SESSION_TTL = 30;		// [s] the GC leader lock is released when its session is not renewed
+	// session holding the GC leader lock, renewed in background as long as this client holds it
+	private String gcSession;
+	private ScheduledExecutorService gcSessionRenewer;
     
 	public ConsulRmds(String connectionStr, String root, boolean qRead) {
 		storageRoot = root;
@@ -65,8 +102,25 @@ public class ConsulRmds implements Rmds {
         gcStaleDir = this.gcRoot + "/stale";
         gcOrphansDir = this.gcRoot + "/orphans";
         
+		watches = new ConcurrentHashMap<String, Runnable>();
 		cClient = new ConsulClient(connectionStr);
 		cClient.setKVBinaryValue(storageRoot, new byte[1]);
+		gcMarkers = new GcMarkerQueue("hybris-gcmarkers", new GcMarkerQueue.Writer() {
+			public void write(Map<String, byte[]> markers) throws Exception {
+				ConsulRmds.this.writeGcMarkers(markers);
+			}
+		});
+		keySnapshots = new KeySnapshots(new KeySnapshots.Lister() {
+			public List<String> list() {
+				Response<List<String>> lstResp = cClient.getKVKeysOnly(storageRoot + "/");
+				List<String> keys = new ArrayList<String>();
+				if (lstResp.getValue() != null)
+					for (String path : lstResp.getValue())
+						if (path.length() > storageRoot.length() + 1)
+							keys.add(path.substring(storageRoot.length() + 1));
+				return keys;
+			}
+		});
 	}
 
 	public boolean tsWrite(String key, Metadata md, long version) throws HybrisException {
@@ -136,6 +190,59 @@ public class ConsulRmds implements Rmds {
 		return tsRead(key, stat);
 	}
 
+	public boolean watch(String key, int version, Runnable onChange) throws HybrisException {
+		this.startWatching();
+		this.watches.put(key, onChange);
+		// re-read after the watch is set, so that no change can go unnoticed
+		Stat stat = new Stat();
+		Metadata md = tsRead(key, stat);
+		return md == null ? version == NONODE : stat.getVersion() == version;
+	}
+
+	/* Reads the current index of the root, then polls it with blocking queries in background. */
+	private synchronized void startWatching() throws HybrisException {
+		if (this.watcher != null)
+			return;
+		try {
+			this.watchIndex = cClient.getKVKeysOnly(storageRoot + "/", null, null,
+					QueryParams.DEFAULT).getConsulIndex();
+		} catch (Exception e) {
+			throw new HybrisException("Could not watch " + storageRoot + ": " + e.getMessage(), e);
+		}
+		this.watcher = Executors.newSingleThreadExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hybris-consulwatch-%d").build());
+		this.watcher.execute(new Runnable() {
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						long index = cClient.getKVKeysOnly(storageRoot + "/", null, null,
+								new QueryParams(WATCH_WAIT, watchIndex)).getConsulIndex();
+						if (index != watchIndex) {
+							watchIndex = index;
+							fireWatches();
+						}
+					} catch (Exception e) {
+						logger.warn("Could not watch " + storageRoot + ": " + e.getMessage());
+						fireWatches();		// changes may have been missed
+						try {
+							Thread.sleep(WATCH_RETRY_DELAY);
+						} catch (InterruptedException ie) {
+							return;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private void fireWatches() {
+		for (String key : this.watches.keySet()) {
+			Runnable onChange = this.watches.remove(key);
+			if (onChange != null)
+				onChange.run();
+		}
+	}
+
 	public List<String> list() throws HybrisException {
 		Response<List<String>> lstResp = cClient.getKVKeysOnly(storageRoot);
 		List<String> lstKeys = new LinkedList<String>();
@@ -149,6 +256,21 @@ public class ConsulRmds implements Rmds {
 		return lstKeys;
 	}
 
+	public SortedMap<String, Metadata> list(String marker, int maxKeys) throws HybrisException {
+		// Consul does not paginate key listings: pages are served from a snapshot of the scan
+		ListIterator<String> keys = keySnapshots.keysAfter(marker);
+		SortedMap<String, Metadata> page = new TreeMap<String, Metadata>();
+		while (page.size() < maxKeys && keys.hasNext()) {
+			String key = keys.next();
+			Metadata md = tsRead(key, null);
+			if (md != null)
+				page.put(key, md);
+		}
+		if (!page.isEmpty())
+			keySnapshots.resume(page.lastKey(), keys);
+		return page;
+	}
+
 	public void delete(String key, Metadata tombstone, int version) throws HybrisException {
 		this.tsWrite(key, tombstone, version);
 	}
@@ -188,62 +310,385 @@ public class ConsulRmds implements Rmds {
 	}
 
 	public void shutdown() {
+		gcMarkers.shutdown(MARKERS_SHUTDOWN_TIMEOUT);
+		synchronized (this) {
+			if (watcher != null)
+				watcher.shutdownNow();
+			if (gcSessionRenewer != null)
+				gcSessionRenewer.shutdownNow();
+		}
 	}
 
 	/* -------------------------------------- GC functions */
-	// XXX not implemented
 	
-	public void markStaleKey(final String key) {
-		new Thread(new Runnable() {
-			public void run() {
-				// create ZNode  <root>-gc/stale/<key>
-                String path = ConsulRmds.this.gcStaleDir + "/" + key;
-                try {
-                	ConsulRmds.this.cClient.setKVBinaryValue(path, Metadata.getTombstone(new Timestamp(0, "gc")).serialize());
-                    logger.debug("GcMarker: marked {} as stale", path);
-                } catch (Exception e) {
-                    logger.warn("GcMarker: could not create stale node " + path, e);
-                }
+	public void markStaleKey(String key, Timestamp ts, List<Kvs> replicas) {
+		// <root>-gc/stale/<KvsKey>
+		this.gcMarkers.mark(this.gcStaleDir + "/" + Utils.getKvsKey(key, ts),
+				new Metadata(ts, null, 0, replicas, null).serialize());
+	}
+
+	public void markOrphanKey(String key, Timestamp ts, List<Kvs> savedReplicas) {
+		// <root>-gc/orphans/<KvsKey>
+		this.gcMarkers.mark(this.gcOrphansDir + "/" + Utils.getKvsKey(key, ts),
+				new Metadata(ts, null, 0, savedReplicas, null).serialize());
+	}
+
+	/*
+	 * XXX the adopted client library does not support transactions (Consul > 0.7):
+	 * markers are written one by one.
+	 */
+	private void writeGcMarkers(Map<String, byte[]> markers) throws Exception {
+		Exception error = null;
+		for (Entry<String, byte[]> marker : markers.entrySet())
+			try {
+				this.mergeGcMarker(marker.getKey(), marker.getValue());
+			} catch (Exception e) {
+				if (error == null)
+					error = e;
 			}
-		}).start();
+		if (error != null)
+			throw error;
 	}
 
-	public void markOrphanKey(final String key, final Timestamp ts, final List<Kvs> savedReplicas) {
-		new Thread(new Runnable() {
-			public void run() {
-				// create ZNode <root>-gc/orphans/<KvsKey>
-                String path = ConsulRmds.this.gcOrphansDir + "/" + Utils.getKvsKey(key, ts);
-                byte[] value = new Metadata(ts, null, 0, savedReplicas, null).serialize();
-                try {
-                	ConsulRmds.this.cClient.setKVBinaryValue(path, value);
-                    logger.debug("GcMarker: marked {} as orphan", path);
-                } catch (Exception e) {
-                    logger.warn("GcMarker: could not create orphan node " + path, e);
-                }
+	/**
+	 * Creates a GC marker or merges it with the existing one, 
+	 * by check-and-set on its modify index.
+	 */
+	private void mergeGcMarker(String path, byte[] marker) {
+		QueryParams qp = new QueryParams(ConsistencyMode.CONSISTENT);
+		while (true) {
+			Response<GetBinaryValue> resGet = cClient.getKVBinaryValue(path, qp);
+			PutParams pp = new PutParams();
+			byte[] value = marker;
+			if (resGet.getValue() == null)
+				pp.setCas(0L);
+			else {
+				pp.setCas(resGet.getValue().getModifyIndex());
+				value = GcMarkerQueue.merge(resGet.getValue().getValue(), marker);
+			}
+			if (cClient.setKVBinaryValue(path, value, pp).getValue()) {
+				logger.debug("GcMarker: written {}", path);
+				return;
 			}
-		}).start();
-	} 
+		}
+	}
+
+	public long getDroppedGcMarkers() {
+		return this.gcMarkers.getDroppedMarkers();
+	}
 	
 
 	public Map<String, Metadata> getOrphans() throws HybrisException {
-		return null;
+		try {
+			return this.getGcMarkers(this.gcOrphansDir, null);
+		} catch (Exception e) {
+			logger.error("Could not get all the metadata from children keys of " + this.gcOrphansDir, e);
+			throw new HybrisException(e);
+		}
 	}
 
-	public List<String> getStaleKeys() throws HybrisException {
-		return null;
+	public Map<String, Metadata> getStale() throws HybrisException {
+		try {
+			return this.getGcMarkers(this.gcStaleDir, null);
+		} catch (Exception e) {
+			logger.error("Could not get all the metadata from children keys of " + this.gcStaleDir, e);
+			throw new HybrisException(e);
+		}
+	}
+
+	public Map<String, Metadata> getStale(String key) throws HybrisException {
+		try {
+			return this.getGcMarkers(this.gcStaleDir, key);
+		} catch (Exception e) {
+			logger.error("Could not get the stale markers of " + key, e);
+			throw new HybrisException(e);
+		}
+	}
+
+	/**
+	 * GC markers read with a single prefix read, and their modify indexes.
+	 */
+	private static class MarkerPage {
+		final String prefix;
+		final Map<String, Long> indexes = new HashMap<String, Long>();
+
+		MarkerPage(String prefix) {
+			this.prefix = prefix;
+		}
+	}
+
+	/**
+	 * Reads the GC markers of a directory, only fetching those of key if set.
+	 * All the markers of a directory are read in pages of at most MARKERS_PAGE
+	 * markers: their names are listed first, then their values are read by prefix.
+	 * @return a map of Kvs keys and their metadata; markers written without
+	 *         metadata only hold the timestamp of their Kvs key
+	 */
+	private Map<String, Metadata> getGcMarkers(String dir, String key) throws Exception {
+		String prefix = dir + "/";
+		Map<String, Metadata> markers = new HashMap<String, Metadata>();
+		if (key != null) {
+			this.readGcMarkers(prefix, new MarkerPage(prefix + key), key, markers);
+			return markers;
+		}
+
+		List<String> paths = new ArrayList<String>();
+		Response<List<String>> lstResp = this.cClient.getKVKeysOnly(prefix, 
+				new QueryParams(ConsistencyMode.CONSISTENT));
+		if (lstResp.getValue() != null)
+			for (String path : lstResp.getValue())
+				if (path.length() > prefix.length() && path.indexOf('/', prefix.length()) < 0)
+					paths.add(path);
+		Collections.sort(paths);
+
+		List<MarkerPage> pages = new ArrayList<MarkerPage>();
+		this.readGcMarkers(prefix, prefix, paths, pages, markers);
+		this.markerPages.put(dir, pages);
+		return markers;
+	}
+
+	/*
+	 * Reads the markers of the sorted paths, which all start with prefix: with a single
+	 * read if they are few enough, otherwise splitting prefix on its next character.
+	 */
+	private void readGcMarkers(String dirPrefix, String prefix, List<String> paths, 
+			List<MarkerPage> pages, Map<String, Metadata> markers) throws Exception {
+		if (paths.size() <= MARKERS_PAGE) {
+			if (paths.isEmpty())
+				return;
+			MarkerPage page = new MarkerPage(prefix);
+			this.readGcMarkers(dirPrefix, page, null, markers);
+			pages.add(page);
+			return;
+		}
+
+		int from = 0;
+		while (from < paths.size()) {
+			String path = paths.get(from);
+			if (path.length() == prefix.length()) {		// also a prefix of the following paths: not paged
+				MarkerPage page = new MarkerPage(path);
+				GetBinaryValue value = this.cClient.getKVBinaryValue(path, 
+						new QueryParams(ConsistencyMode.CONSISTENT)).getValue();
+				if (value != null)
+					this.addGcMarker(dirPrefix, value, page, markers);
+				from++;
+				continue;
+			}
+			String subPrefix = path.substring(0, prefix.length() + 1);
+			int to = from;
+			while (to < paths.size() && paths.get(to).startsWith(subPrefix))
+				to++;
+			this.readGcMarkers(dirPrefix, subPrefix, paths.subList(from, to), pages, markers);
+			from = to;
+		}
+	}
+
+	/*
+	 * Reads the markers under the prefix of page, only keeping those of key if set.
+	 */
+	private void readGcMarkers(String dirPrefix, MarkerPage page, String key, 
+			Map<String, Metadata> markers) {
+		QueryParams qp = new QueryParams(ConsistencyMode.CONSISTENT);
+		Response<List<GetBinaryValue>> resGet = this.cClient.getKVBinaryValues(page.prefix, qp);
+		if (resGet.getValue() == null)
+			return;
+		for (GetBinaryValue value : resGet.getValue()) {
+			String child = value.getKey().substring(dirPrefix.length());
+			if (key == null || key.equals(Utils.getKeyFromKvsKey(child)))
+				this.addGcMarker(dirPrefix, value, page, markers);
+		}
+	}
+
+	private void addGcMarker(String dirPrefix, GetBinaryValue value, MarkerPage page, 
+			Map<String, Metadata> markers) {
+		String child = value.getKey().substring(dirPrefix.length());
+		if (child.isEmpty() || child.contains("/"))
+			return;
+		Metadata md = ZkRmds.parseGcMarker(child, value.getValue());
+		if (md != null) {
+			markers.put(child, md);
+			page.indexes.put(child, value.getModifyIndex());
+		}
 	}
 
 	public void removeOrphanKeys(Set<String> orphanKeys) {
+		this.removeMarkers(this.gcOrphansDir, orphanKeys);
 	}
 
-	public void removeStaleKey(String staleKey) {
+	public void removeStaleKeys(Set<String> staleKeys) {
+		this.removeMarkers(this.gcStaleDir, staleKeys);
+	}
+
+	/*
+	 * XXX the adopted client library does not support transactions (Consul > 0.7).
+	 * The pages of the last full read whose markers have all been collected are 
+	 * deleted with a single recursive delete, provided that no marker was written 
+	 * or merged under their prefix since they were read. The other markers are
+	 * deleted one by one (deleting a missing key is not an error in Consul).
+	 */
+	private void removeMarkers(String dir, Set<String> keys) {
+		Set<String> remaining = new HashSet<String>(keys);
+		List<MarkerPage> pages = this.markerPages.remove(dir);
+		if (pages != null)
+			for (MarkerPage page : pages)
+				if (remaining.containsAll(page.indexes.keySet()) && this.clearGcMarkers(dir, page))
+					remaining.removeAll(page.indexes.keySet());
+
+		for (String key : remaining) {
+			String path = dir + "/" + key;
+			try {
+				this.cClient.deleteKVValue(path);
+			} catch (Exception e) {
+				logger.warn("Could not delete GC marker " + path, e);
+			}
+		}
+	}
+
+	/*
+	 * @return true if the markers under the prefix of page were unchanged, and deleted
+	 */
+	private boolean clearGcMarkers(String dir, MarkerPage page) {
+		try {
+			MarkerPage current = new MarkerPage(page.prefix);
+			this.readGcMarkers(dir + "/", current, null, new HashMap<String, Metadata>());
+			if (!current.indexes.equals(page.indexes))
+				return false;
+			this.cClient.deleteKVValues(page.prefix);
+			return true;
+		} catch (Exception e) {
+			logger.warn("Could not delete the GC markers under " + page.prefix, e);
+			return false;
+		}
 	}
 
 	public void emptyStaleAndOrphansContainers() throws HybrisException {
+		try {
+			this.cClient.deleteKVValues(this.gcOrphansDir + "/");
+			this.cClient.deleteKVValues(this.gcStaleDir + "/");
+			this.cClient.deleteKVValues(this.gcRoot + "/checkpoints/");
+		} catch (Exception e) {
+			logger.warn("Could not empty the GC containers", e);
+			throw new HybrisException("Could not empty the GC containers", e);
+		}
+	}
+
+	public String getGcCheckpoint(String id) throws HybrisException {
+		Response<GetBinaryValue> resGet = cClient.getKVBinaryValue(gcRoot + "/checkpoints/" + id);
+		if (resGet.getValue() == null)
+			return null;
+		try {
+			return new String(resGet.getValue().getValue(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new HybrisException(e);
+		}
+	}
+
+	public void setGcCheckpoint(String id, String checkpoint) throws HybrisException {
+		String path = gcRoot + "/checkpoints/" + id;
+		try {
+			if (checkpoint == null)
+				cClient.deleteKVValue(path);
+			else
+				cClient.setKVBinaryValue(path, checkpoint.getBytes("UTF-8"));
+		} catch (Exception e) {
+			throw new HybrisException("Could not write the GC checkpoint " + path, e);
+		}
+	}
+
+	/*
+	 * The leader holds the lock on <root>-gc/leader with a TTL session: 
+	 * as the ephemeral ZNode on ZooKeeper, the lock is released when its client 
+	 * stops renewing the session.
+	 */
+	public synchronized boolean acquireGcLeadership(String clientId) {
+		String path = gcRoot + "/leader";
+		try {
+			if (gcSession == null)
+				gcSession = this.createGcSession(clientId);
+			PutParams pp = new PutParams();
+			pp.setAcquireSession(gcSession);
+			if (cClient.setKVBinaryValue(path, clientId.getBytes("UTF-8"), pp).getValue()) {
+				logger.info("GC: {} is the GC leader", clientId);
+				return true;
+			}
+		} catch (Exception e) {
+			logger.warn("GC: could not acquire the leader lock", e);
+			gcSession = null;	// possibly expired: a new session is created on the next attempt
+		}
+		return false;
+	}
+
+	public synchronized void releaseGcLeadership() {
+		if (gcSession == null)
+			return;
+		try {
+			// released explicitly, as destroying the session would delay the next acquisition
+			PutParams pp = new PutParams();
+			pp.setReleaseSession(gcSession);
+			cClient.setKVBinaryValue(gcRoot + "/leader", new byte[0], pp);
+			cClient.sessionDestroy(gcSession, QueryParams.DEFAULT);
+		} catch (Exception e) {
+			logger.warn("GC: could not destroy the leader session", e);
+		}
+		gcSession = null;
+	}
+
+	/**
+	 * Creates a TTL session and renews it in background until it is destroyed.
+	 */
+	private String createGcSession(String clientId) {
+		NewSession newSession = new NewSession();
+		newSession.setName("hybris-gc-" + clientId);
+		newSession.setTtl(GC_SESSION_TTL + "s");
+		final String session = cClient.sessionCreate(newSession, QueryParams.DEFAULT).getValue();
+
+		if (gcSessionRenewer == null)
+			gcSessionRenewer = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hybris-consulgc-%d").build());
+		gcSessionRenewer.schedule(new Runnable() {
+			public void run() {
+				synchronized (ConsulRmds.this) {
+					if (!session.equals(gcSession))
+						return;		// released or replaced
+					try {
+						cClient.renewSession(session, QueryParams.DEFAULT);
+					} catch (Exception e) {
+						logger.warn("GC: could not renew the leader session", e);
+						gcSession = null;
+						return;
+					}
+				}
+				gcSessionRenewer.schedule(this, GC_SESSION_TTL / 2, TimeUnit.SECONDS);
+			}
+		}, GC_SESSION_TTL / 2, TimeUnit.SECONDS);
+		return session;
 	}
 
+	/*
+	 * Reads all the children of <key> with a single recursive prefix read.
+	 * Values which cannot be parsed and tombstones are skipped.
+	 */
 	public Map<String, Metadata> getAllChildrenMetadata(String key) throws Exception {
-		return null;
+		String prefix = key + "/";
+		QueryParams qp = new QueryParams(ConsistencyMode.CONSISTENT);
+		Response<List<GetBinaryValue>> resGet = this.cClient.getKVBinaryValues(prefix, qp);
+
+		Map<String, Metadata> retMap = new HashMap<String, Metadata>();
+		if (resGet.getValue() == null)
+			return retMap;
+		for (GetBinaryValue value : resGet.getValue()) {
+			String child = value.getKey().substring(prefix.length());
+			if (child.isEmpty() || child.contains("/") || value.getValue() == null)
+				continue;
+			try {
+				Metadata md = new Metadata(value.getValue());
+				if (!md.isTombstone())
+					retMap.put(child, md);
+			} catch (Exception e) {
+				logger.warn("Could not parse the metadata of " + value.getKey(), e);
+			}
+		}
+		return retMap;
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.mds;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.eurecom.hybris.Config;
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+
+/**
+ * Bounded queue of GC markers drained by a single background worker,
+ * which coalesces the markers of the same path, merging the replicas they list,
+ * and writes them in batches.
+ * Producers block while the queue is full. A batch which cannot be written
+ * is retried with exponential backoff, then dropped and counted: the data of
+ * dropped markers is only collected by batchGc.
+ * @author P. Viotti
+ */
+class GcMarkerQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
+
+    private static int CAPACITY = 10000;
+    private static int MAX_BATCH = 100;
+    private static long POLL_INTERVAL = 100;    // [ms]
+    private static int WRITE_ATTEMPTS = 5;
+    private static long RETRY_DELAY = 100;      // [ms], doubled at each attempt
+
+    /**
+     * Writes a batch of GC markers on the metadata store.
+     */
+    interface Writer {
+        /**
+         * Must be idempotent, as a batch is written again after a failure.
+         * @param markers - map of marker paths and values, in insertion order
+         * @throws Exception if any marker could not be written
+         */
+        void write(Map<String, byte[]> markers) throws Exception;
+    }
+
+    private final BlockingQueue<Entry<String, byte[]>> queue;
+    private final Writer writer;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private final AtomicLong droppedMarkers = new AtomicLong();
+
+    GcMarkerQueue(String name, Writer writer) {
+        this.queue = new LinkedBlockingQueue<Entry<String, byte[]>>(CAPACITY);
+        this.writer = writer;
+        this.worker = new Thread(new Runnable() {
+            public void run() {
+                GcMarkerQueue.this.drain();
+            }
+        }, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queues a marker, waiting for room if the queue is full.
+     * @param path
+     * @param value
+     */
+    void mark(String path, byte[] value) {
+        try {
+            this.queue.put(new AbstractMap.SimpleEntry<String, byte[]>(path, value));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("GcMarker: interrupted while queuing {}", path);
+        }
+    }
+
+    /**
+     * Merges two markers of the same Kvs key, so that the replicas of neither are lost.
+     * @param marker - can be null
+     * @param other
+     * @return a marker listing the replicas of both; a legacy marker,
+     *         written without metadata, stands for all the replicas
+     */
+    static byte[] merge(byte[] marker, byte[] other) {
+        if (marker == null)
+            return other;
+        if (marker.length == 0 || other.length == 0)
+            return new byte[0];
+        try {
+            Metadata md = new Metadata(marker);
+            List<Kvs> replicas = new ArrayList<Kvs>(md.getReplicasLst());
+            for (Kvs kvStore : new Metadata(other).getReplicasLst())
+                if (!replicas.contains(kvStore))
+                    replicas.add(kvStore);
+            return new Metadata(md.getTs(), null, 0, replicas, null).serialize();
+        } catch (RuntimeException e) {
+            logger.warn("GcMarker: could not merge markers", e);
+            return other;
+        }
+    }
+
+    /**
+     * @return the number of markers which could not be written
+     */
+    long getDroppedMarkers() {
+        return this.droppedMarkers.get();
+    }
+
+    /**
+     * Writes the queued markers and stops the worker.
+     * @param timeout - [ms] to wait for the queued markers to be written
+     */
+    void shutdown(long timeout) {
+        this.running = false;
+        try {
+            this.worker.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!this.queue.isEmpty())
+            logger.warn("GcMarker: {} markers were not written", this.queue.size());
+    }
+
+    private void drain() {
+        List<Entry<String, byte[]>> drained = new ArrayList<Entry<String, byte[]>>(MAX_BATCH);
+        while (this.running || !this.queue.isEmpty()) {
+            Entry<String, byte[]> first;
+            try {
+                first = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first == null)
+                continue;
+
+            drained.clear();
+            drained.add(first);
+            this.queue.drainTo(drained, MAX_BATCH - 1);
+
+            Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+            for (Entry<String, byte[]> marker : drained)
+                batch.put(marker.getKey(), merge(batch.get(marker.getKey()), marker.getValue()));
+            if (!this.write(batch))
+                logger.error("GcMarker: dropped {} markers ({} so far), batchGc is required to collect their data",
+                        batch.size(), this.droppedMarkers.addAndGet(batch.size()));
+        }
+    }
+
+    /**
+     * Writes a batch of markers, retrying with exponential backoff.
+     * @return false if the batch could not be written
+     */
+    private boolean write(Map<String, byte[]> batch) {
+        long delay = RETRY_DELAY;
+        for (int i=1; ; i++) {
+            try {
+                this.writer.write(batch);
+                return true;
+            } catch (Exception e) {
+                logger.warn("GcMarker: could not write {} markers (attempt {}/{})", 
+                        batch.size(), i, WRITE_ATTEMPTS, e);
+                if (i >= WRITE_ATTEMPTS)
+                    return false;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            delay *= 2;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.mds;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import fr.eurecom.hybris.HybrisException;
+
+/**
+ * Sorted snapshots of the metadata keys, for stores which cannot paginate
+ * their listings: a scan lists and sorts all the keys on its first page only,
+ * and the following pages resume from the snapshot. Therefore each page costs
+ * O(maxKeys) reads, but a snapshot holds all the key names; keys written
+ * after it was taken are only seen by the next scan.
+ * @author P. Viotti
+ */
+class KeySnapshots {
+
+    private static int MAX_SCANS = 8;      // scans running at the same time
+
+    /**
+     * Lists all the metadata keys.
+     */
+    interface Lister {
+        List<String> list() throws HybrisException;
+    }
+
+    private final Lister lister;
+    /* Position in its snapshot of each scan, by the last key it was served */
+    private final Map<String, ListIterator<String>> scans = 
+            new LinkedHashMap<String, ListIterator<String>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<String, ListIterator<String>> eldest) {
+            return this.size() > MAX_SCANS;
+        }
+    };
+
+    KeySnapshots(Lister lister) {
+        this.lister = lister;
+    }
+
+    /**
+     * @param marker - the last key of the previous page; null to start a new scan
+     * @return the keys following marker, in lexicographic order
+     * @throws HybrisException
+     */
+    ListIterator<String> keysAfter(String marker) throws HybrisException {
+        if (marker != null)
+            synchronized (this.scans) {
+                ListIterator<String> keys = this.scans.remove(marker);
+                if (keys != null)
+                    return keys;
+            }
+
+        List<String> keys = this.lister.list();
+        Collections.sort(keys);
+        int from = 0;
+        if (marker != null) {
+            int idx = Collections.binarySearch(keys, marker);
+            from = idx >= 0 ? idx + 1 : -idx - 1;
+        }
+        return Collections.unmodifiableList(keys).listIterator(from);
+    }
+
+    /**
+     * Saves the position of a scan, so that its next page is served from its snapshot.
+     * @param marker - the last key of the page just served
+     * @param keys - the keys following marker
+     */
+    void resume(String marker, ListIterator<String> keys) {
+        synchronized (this.scans) {
+            this.scans.put(marker, keys);
+        }
+    }
+}
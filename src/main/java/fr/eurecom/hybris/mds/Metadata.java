@@ -116,6 +116,25 @@ public class Metadata implements KryoSerializable {
     private static final Logger logger = LoggerFactory.getLogger(Config.LOGGER_NAME);
 
     public enum MetadataType { TOMBSTONE, REPLICATION, EC };
+
+    /* Number of chunk positions the missing-chunk bitmask can record */
+    public static final int MAX_MISSING_CHUNKS = Integer.SIZE;
+
+    /*
+     * Optional attributes are serialized as a tag-length-value list terminated by EXT_END,
+     * right after the type-specific fields, so that attributes unknown to
+     * older clients can be skipped. Their presence is signaled
+     * by setting EXT_FLAG in the type byte, so that metadata written
+     * without them keeps the original layout.
+     */
+    private static final int EXT_FLAG = 0x80;
+    private static final byte EXT_END = 0x00;
+    private static final byte EXT_HASH_LEAF_SIZE = 0x01;
+    private static final byte EXT_CRYPTO_SEGMENT_SIZE = 0x02;
+    private static final byte EXT_COMPRESSION = 0x03;
+    private static final byte EXT_STRIPE_SIZE = 0x04;
+    private static final byte EXT_EC_SCHEME = 0x05;
+    private static final byte EXT_MISSING_CHUNKS = 0x06;
     
     private Timestamp ts;
     private byte[] hash;
@@ -124,6 +143,12 @@ public class Metadata implements KryoSerializable {
     private int size;
     private List<Kvs> replicasLst;
     private MetadataType type;
+    private int hashLeafSize;   // > 0 if hash is the root of a Merkle tree
+    private int cryptoSegmentSize;  // > 0 if data is encrypted in AES-GCM segments
+    private int compression;        // id of the compression codec (0 = none)
+    private int stripeSize;         // > 0 if chunks are made of erasure coded stripes
+    private int ecScheme;           // id of the erasure coding scheme (0 = Reed-Solomon)
+    private int missingChunks;      // bitmask of the chunk positions not yet stored
 
     public Metadata() { }
     public Metadata(Timestamp ts, byte[] hash, int size,
@@ -162,6 +187,12 @@ public class Metadata implements KryoSerializable {
         this.cryptoKey = md.getCryptoKey();
         this.size = md.getSize();
         this.type = md.getType();
+        this.hashLeafSize = md.getHashLeafSize();
+        this.cryptoSegmentSize = md.getCryptoSegmentSize();
+        this.compression = md.getCompression();
+        this.stripeSize = md.getStripeSize();
+        this.ecScheme = md.getEcScheme();
+        this.missingChunks = md.getMissingChunks();
     }
     
     public byte[] serialize() {
@@ -203,6 +234,18 @@ public class Metadata implements KryoSerializable {
     public void setCryptoKey(byte[] ck) { this.cryptoKey = ck; }
     public MetadataType getType() { return this.type; }
     public void setType(MetadataType t) { this.type = t; }
+    public int getHashLeafSize() { return this.hashLeafSize; }
+    public void setHashLeafSize(int leafSize) { this.hashLeafSize = leafSize; }
+    public int getCryptoSegmentSize() { return this.cryptoSegmentSize; }
+    public void setCryptoSegmentSize(int segmentSize) { this.cryptoSegmentSize = segmentSize; }
+    public int getCompression() { return this.compression; }
+    public void setCompression(int compression) { this.compression = compression; }
+    public int getStripeSize() { return this.stripeSize; }
+    public void setStripeSize(int stripeSize) { this.stripeSize = stripeSize; }
+    public int getEcScheme() { return this.ecScheme; }
+    public void setEcScheme(int ecScheme) { this.ecScheme = ecScheme; }
+    public int getMissingChunks() { return this.missingChunks; }
+    public void setMissingChunks(int missingChunks) { this.missingChunks = missingChunks; }
 
     public String toString() {
         switch (type) {
@@ -230,6 +273,12 @@ public class Metadata implements KryoSerializable {
         result = prime * result
                 + (this.replicasLst == null ? 0 : this.replicasLst.hashCode());
         result = prime * result + this.size;
+        result = prime * result + this.hashLeafSize;
+        result = prime * result + this.cryptoSegmentSize;
+        result = prime * result + this.compression;
+        result = prime * result + this.stripeSize;
+        result = prime * result + this.ecScheme;
+        result = prime * result + this.missingChunks;
         result = prime * result + (this.ts == null ? 0 : this.ts.hashCode());
         return result;
     }
@@ -255,6 +304,18 @@ public class Metadata implements KryoSerializable {
             return false;
         if (this.size != other.size)
             return false;
+        if (this.hashLeafSize != other.hashLeafSize)
+            return false;
+        if (this.cryptoSegmentSize != other.cryptoSegmentSize)
+            return false;
+        if (this.compression != other.compression)
+            return false;
+        if (this.stripeSize != other.stripeSize)
+            return false;
+        if (this.ecScheme != other.ecScheme)
+            return false;
+        if (this.missingChunks != other.missingChunks)
+            return false;
         if (this.ts == null) {
             if (other.ts != null)
                 return false;
@@ -266,22 +327,26 @@ public class Metadata implements KryoSerializable {
     public void write(Kryo kryo, Output out) {
         kryo.writeClassAndObject(out, this.ts);
         
+        int extFlag = this.hasExtAttributes() ? EXT_FLAG : 0;
         switch (this.type) {
             case TOMBSTONE:
                 out.writeByte(0x00);
                 return;
             case REPLICATION:
-                out.writeByte(0x01);
-                out.write(this.hash);
+                out.writeByte(0x01 | extFlag);
+                out.write(this.hash != null ? this.hash : new byte[Utils.HASH_LENGTH]);    // GC markers carry no hash
                 break;
             case EC:
-                out.writeByte(0x02);
+                out.writeByte(0x02 | extFlag);
                 out.writeByte(chunksHashes.length);
                 for (byte[] h : chunksHashes)
                     out.write(h);
                 break;
         }
 
+        if (extFlag != 0)
+            this.writeExtAttributes(out);
+
         if (this.cryptoKey == null)
             out.writeByte(0x00);
         else {
@@ -309,7 +374,8 @@ public class Metadata implements KryoSerializable {
     public void read(Kryo kryo, Input in) {
         this.ts = (Timestamp) kryo.readClassAndObject(in);
         
-        switch (in.readByte()) {
+        int typeByte = in.readByte() & 0xFF;
+        switch (typeByte & ~EXT_FLAG) {
             case 0x00:
                 this.hash = null;
                 this.chunksHashes = null;
@@ -333,6 +399,9 @@ public class Metadata implements KryoSerializable {
                 break;
         }
 
+        if ((typeByte & EXT_FLAG) != 0)
+            this.readExtAttributes(in);
+
         switch (in.readByte()) {
             case 0x00:
                 this.cryptoKey = null;
@@ -387,4 +456,65 @@ public class Metadata implements KryoSerializable {
             }
         }
     }
+
+    private boolean hasExtAttributes() {
+        return this.hashLeafSize > 0 || this.cryptoSegmentSize > 0 || this.compression != 0
+                || this.stripeSize > 0 || this.ecScheme != 0 || this.missingChunks != 0;
+    }
+
+    private void writeExtAttributes(Output out) {
+        if (this.hashLeafSize > 0)
+            writeExtAttribute(out, EXT_HASH_LEAF_SIZE, this.hashLeafSize);
+        if (this.cryptoSegmentSize > 0)
+            writeExtAttribute(out, EXT_CRYPTO_SEGMENT_SIZE, this.cryptoSegmentSize);
+        if (this.compression != 0)
+            writeExtAttribute(out, EXT_COMPRESSION, this.compression);
+        if (this.stripeSize > 0)
+            writeExtAttribute(out, EXT_STRIPE_SIZE, this.stripeSize);
+        if (this.ecScheme != 0)
+            writeExtAttribute(out, EXT_EC_SCHEME, this.ecScheme);
+        if (this.missingChunks != 0)
+            writeExtAttribute(out, EXT_MISSING_CHUNKS, this.missingChunks);
+        out.writeByte(EXT_END);
+    }
+
+    private static void writeExtAttribute(Output out, byte tag, int value) {
+        Output attr = new Output(5);
+        attr.writeInt(value, true);
+        out.writeByte(tag);
+        out.writeInt(attr.position(), true);
+        out.write(attr.getBuffer(), 0, attr.position());
+    }
+
+    private void readExtAttributes(Input in) {
+        while (true) {
+            byte tag = in.readByte();
+            if (tag == EXT_END)
+                return;
+            Input attr = new Input(in.readBytes(in.readInt(true)));
+            switch (tag) {
+                case EXT_HASH_LEAF_SIZE:
+                    this.hashLeafSize = attr.readInt(true);
+                    break;
+                case EXT_CRYPTO_SEGMENT_SIZE:
+                    this.cryptoSegmentSize = attr.readInt(true);
+                    break;
+                case EXT_COMPRESSION:
+                    this.compression = attr.readInt(true);
+                    break;
+                case EXT_STRIPE_SIZE:
+                    this.stripeSize = attr.readInt(true);
+                    break;
+                case EXT_EC_SCHEME:
+                    this.ecScheme = attr.readInt(true);
+                    break;
+                case EXT_MISSING_CHUNKS:
+                    this.missingChunks = attr.readInt(true);
+                    break;
+                default:    // written by a newer client
+                    logger.debug("Skipping unknown metadata attribute {}", tag);
+                    break;
+            }
+        }
+    }
 }
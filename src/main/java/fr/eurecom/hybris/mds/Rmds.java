@@ -19,6 +19,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 
 import org.apache.zookeeper.data.Stat;
 
@@ -91,6 +92,17 @@ public interface Rmds {
 	 */
 	Metadata tsRead(String key, Stat stat, HybrisWatcher watcher) throws HybrisException;
 
+	/**
+	 * Set a one-time watch on the metadata of a key, which runs <onChange>
+	 * once the metadata gets created, modified or deleted, or once the watch may have been lost.
+	 * @param key the key to watch
+	 * @param version the version of the metadata previously read, or NONODE if not found
+	 * @param onChange
+	 * @return true if the watch is set and the metadata did not change since it was read
+	 * @throws HybrisException
+	 */
+	boolean watch(String key, int version, Runnable onChange) throws HybrisException;
+
 	/**
 	 * Get the list of metadata keys stored (filtering out tombstone values).
 	 * @return the list of metadata keys stored in the
@@ -98,6 +110,18 @@ public interface Rmds {
 	 */
 	List<String> list() throws HybrisException;
 
+	/**
+	 * Get at most maxKeys metadata keys following marker, in lexicographic order,
+	 * along with their metadata (including tombstone values).
+	 * Stores which cannot paginate their listings list all the keys on the
+	 * first page of a scan and serve the following pages from that snapshot.
+	 * @param marker - the last key of the previous page; null for the first page
+	 * @param maxKeys
+	 * @return a sorted map of keys (String) and Metadata objects, empty after the last page
+	 * @throws HybrisException
+	 */
+	SortedMap<String, Metadata> list(String marker, int maxKeys) throws HybrisException;
+
 	/**
 	 * Mark a key as deleted writing a tombstone value.
 	 * @param key
@@ -127,11 +151,13 @@ public interface Rmds {
 	void shutdown();
 
 	/**
-	 * Mark key as stale - after it has been overwritten on Kvs stores.
+	 * Mark the value of key written with timestamp ts as stale - after it 
+	 * has been overwritten or deleted - recording the Kvs stores that hold it.
 	 * @param key 
-	 * @throws HybrisException
+	 * @param ts - the timestamp of the superseded value
+	 * @param replicas - the Kvs stores of the superseded value
 	 */
-	void markStaleKey(String key);
+	void markStaleKey(String key, Timestamp ts, List<Kvs> replicas);
 	
 	/**
 	 * Mark key as orphan - due to uncompleted write operations.
@@ -142,19 +168,39 @@ public interface Rmds {
 	 */
 	void markOrphanKey(String key, Timestamp ts, List<Kvs> savedReplicas);	
 	
+	/**
+	 * Get the number of GC markers which could not be written:
+	 * the data they index is only collected by a batch GC.
+	 * @return
+	 */
+	long getDroppedGcMarkers();
+
 	/**
 	 * Get orphan keys and their metadata.
+	 * Markers written without metadata by former versions are returned
+	 * with the timestamp of their Kvs key and no list of replicas.
 	 * @return
 	 * @throws HybrisException
 	 */
 	Map<String, Metadata> getOrphans() throws HybrisException;
 
 	/**
-	 * Get stale keys.
+	 * Get stale Kvs keys and the metadata listing their replicas.
+	 * Markers written without metadata by former versions are returned
+	 * with the timestamp of their Kvs key and no list of replicas.
 	 * @return
 	 * @throws HybrisException
 	 */
-	List<String> getStaleKeys() throws HybrisException;
+	Map<String, Metadata> getStale() throws HybrisException;
+
+	/**
+	 * Get the stale Kvs keys of key and the metadata listing their replicas.
+	 * @param key
+	 * @return
+	 * @throws HybrisException
+	 * @see #getStale()
+	 */
+	Map<String, Metadata> getStale(String key) throws HybrisException;
 
 	/**
 	 * Delete the set of orphan keys passed as argument.
@@ -163,11 +209,10 @@ public interface Rmds {
 	void removeOrphanKeys(Set<String> orphanKeys);
 
 	/**
-	 * Delete the key passed as argument from the list of keys
-	 * to be checked as outdated for gc.
+	 * Delete the set of stale Kvs keys passed as argument.
 	 * @param staleKeys
 	 */
-	void removeStaleKey(String staleKey);
+	void removeStaleKeys(Set<String> staleKeys);
 
 	/**
 	 * Empty stale and orphan keys containers.
@@ -175,4 +220,33 @@ public interface Rmds {
 	 */
 	void emptyStaleAndOrphansContainers() throws HybrisException;
 
+	/**
+	 * Get the progress saved by a resumable GC task.
+	 * @param id - the task identifier
+	 * @return the saved checkpoint, or null if none
+	 * @throws HybrisException
+	 */
+	String getGcCheckpoint(String id) throws HybrisException;
+
+	/**
+	 * Save the progress of a resumable GC task.
+	 * @param id - the task identifier
+	 * @param checkpoint - null to remove the saved checkpoint
+	 * @throws HybrisException
+	 */
+	void setGcCheckpoint(String id, String checkpoint) throws HybrisException;
+
+	/**
+	 * Try to become the GC leader, i.e. the only client running background GC.
+	 * Leadership lasts until released or until the session of the client ends.
+	 * @param clientId
+	 * @return true if this client is the GC leader
+	 */
+	boolean acquireGcLeadership(String clientId);
+
+	/**
+	 * Give up GC leadership, if held.
+	 */
+	void releaseGcLeadership();
+
 }
\ No newline at end of file
@@ -20,19 +20,25 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.curator.framework.api.transaction.CuratorTransaction;
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,9 +69,14 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 	 */
 	public static int NONODE = -1;
 
+	private static long MARKERS_SHUTDOWN_TIMEOUT = 5000;	// [ms]
+
 	private final String gcRoot;
 	private final String gcStaleDir;
 	private final String gcOrphansDir;
+	private final String gcCheckpointsDir;
+	private final GcMarkerQueue gcMarkers;
+	private final KeySnapshots keySnapshots;
 	
 	private final boolean quorumRead;
 
@@ -88,6 +99,7 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 		this.gcRoot = this.storageRoot + "-gc";
 		this.gcStaleDir = this.gcRoot + "/stale";
 		this.gcOrphansDir = this.gcRoot + "/orphans";
+		this.gcCheckpointsDir = this.gcRoot + "/checkpoints";
 		this.quorumRead = qRead;
 
 		try {
@@ -96,7 +108,8 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 			this.zkCli.getConnectionStateListenable().addListener(this);
 			this.zkCli.start();
 
-			for (String dir : new String[] { this.storageRoot, this.gcRoot, this.gcStaleDir, this.gcOrphansDir })
+			for (String dir : new String[] { this.storageRoot, this.gcRoot, this.gcStaleDir, this.gcOrphansDir,
+					this.gcCheckpointsDir })
 				try {
 					this.zkCli.create().forPath(dir);
 					logger.debug("Created {}.", dir);
@@ -109,6 +122,22 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 			logger.error("Could not initialize the Zookeeper client. " + e.getMessage(), e);
 			throw new IOException(e);
 		}
+
+		this.gcMarkers = new GcMarkerQueue("hybris-gcmarkers", new GcMarkerQueue.Writer() {
+			public void write(Map<String, byte[]> markers) throws Exception {
+				ZkRmds.this.writeGcMarkers(markers);
+			}
+		});
+		this.keySnapshots = new KeySnapshots(new KeySnapshots.Lister() {
+			public List<String> list() throws HybrisException {
+				try {
+					return ZkRmds.this.zkCli.getChildren().forPath(ZkRmds.this.storageRoot);
+				} catch (Exception e) {
+					logger.error("Could not list the children of ZNode " + ZkRmds.this.storageRoot, e);
+					throw new HybrisException(e);
+				}
+			}
+		});
 	}
 
 	/*
@@ -296,6 +325,28 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#watch(java.lang.String, int, java.lang.Runnable)
+	 */
+	public boolean watch(String key, int version, final Runnable onChange) throws HybrisException {
+
+		String path = this.storageRoot + "/" + key;
+		try {
+			// exists watches fire on creation, data change and deletion, as well as on session events
+			Stat stat = this.zkCli.checkExists().usingWatcher(new CuratorWatcher() {
+				public void process(WatchedEvent event) {
+					onChange.run();
+				}
+			}).forPath(path);
+			return stat == null ? version == NONODE : stat.getVersion() == version;
+		} catch (Exception e) {
+			logger.warn("Could not set a watch on ZNode " + path, e);
+			throw new HybrisException("Could not set a watch on ZNode " + path, e);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -346,6 +397,33 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 		return znodes;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#list(java.lang.String, int)
+	 */
+	public SortedMap<String, Metadata> list(String marker, int maxKeys) throws HybrisException {
+
+		// ZooKeeper does not paginate children: pages are served from a snapshot of the scan
+		ListIterator<String> znodes = this.keySnapshots.keysAfter(marker);
+		SortedMap<String, Metadata> page = new TreeMap<String, Metadata>();
+		while (page.size() < maxKeys && znodes.hasNext()) {
+			String znode = znodes.next();
+			String znodePath = this.storageRoot + "/" + znode;
+			try {
+				page.put(znode, new Metadata(this.zkCli.getData().forPath(znodePath)));
+			} catch (KeeperException e) {
+				if (e.code() != KeeperException.Code.NONODE)
+					throw new HybrisException("Could not read ZNode " + znodePath, e);
+			} catch (Exception e) {
+				throw new HybrisException("Could not read ZNode " + znodePath, e);
+			}
+		}
+		if (!page.isEmpty())
+			this.keySnapshots.resume(page.lastKey(), znodes);
+		return page;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -422,6 +500,7 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 	 * @see fr.eurecom.hybris.mds.Mds1#shutdown()
 	 */
 	public void shutdown() {
+		this.gcMarkers.shutdown(MARKERS_SHUTDOWN_TIMEOUT);
 		this.zkCli.close();
 	}
 
@@ -429,41 +508,101 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 	 * -------------------------------------- GC functions
 	 */
 
-	public void markStaleKey(final String key) {
-		new Thread(new Runnable() {
-			public void run() {
-				String path = gcStaleDir + "/" + key;
-				try {
-					// create ZNode <root>-gc/stale/<key>
-					ZkRmds.this.zkCli.create().forPath(path);
-					logger.debug("GcMarker: marked {} as stale", path);
-				} catch (KeeperException e) {
-					if (e.code() != KeeperException.Code.NODEEXISTS)
-						logger.warn("GcMarker: could not create stale node " + path, e);
-				} catch (Exception e) {
-					logger.warn("GcMarker: could not create stale node " + path, e);
-				}
+	public void markStaleKey(String key, Timestamp ts, List<Kvs> replicas) {
+		// ZNode <root>-gc/stale/<KvsKey>
+		this.gcMarkers.mark(this.gcStaleDir + "/" + Utils.getKvsKey(key, ts),
+				new Metadata(ts, null, 0, replicas, null).serialize());
+	}
+
+	public void markOrphanKey(String key, Timestamp ts, List<Kvs> savedReplicas) {
+		// ZNode <root>-gc/orphans/<KvsKey>
+		this.gcMarkers.mark(this.gcOrphansDir + "/" + Utils.getKvsKey(key, ts),
+				new Metadata(ts, null, 0, savedReplicas, null).serialize());
+	}
+
+	/**
+	 * @return true if the ephemeral leader ZNode belongs to the session of this client
+	 */
+	private boolean isGcLeader(String znodePath) {
+		try {
+			Stat stat = this.zkCli.checkExists().forPath(znodePath);
+			return stat != null && 
+					stat.getEphemeralOwner() == this.zkCli.getZookeeperClient().getZooKeeper().getSessionId();
+		} catch (Exception e) {
+			logger.warn("GC: could not read the leader ZNode", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a batch of GC marker ZNodes in a single transaction.
+	 * As one existing ZNode aborts the whole transaction, 
+	 * in that case ZNodes are created one by one, and merged with
+	 * the existing ones.
+	 * @throws Exception the first error, if any ZNode could not be created
+	 */
+	private void writeGcMarkers(Map<String, byte[]> markers) throws Exception {
+
+		CuratorTransaction curatorTransaction = this.zkCli.inTransaction();
+		for (Entry<String, byte[]> marker : markers.entrySet())
+			curatorTransaction = curatorTransaction.create().forPath(marker.getKey(), marker.getValue()).and();
+		try {
+			((CuratorTransactionFinal) curatorTransaction).commit();
+			logger.debug("GcMarker: created {}", markers.keySet());
+			return;
+		} catch (KeeperException e) {
+			if (e.code() != KeeperException.Code.NODEEXISTS)
+				throw e;
+		}
+
+		Exception error = null;
+		for (Entry<String, byte[]> marker : markers.entrySet())
+			try {
+				this.mergeGcMarker(marker.getKey(), marker.getValue());
+			} catch (Exception e) {
+				if (error == null)
+					error = e;
 			}
-		}).start();
+		if (error != null)
+			throw error;
 	}
 
-	public void markOrphanKey(final String key, final Timestamp ts, final List<Kvs> savedReplicas) {
-		new Thread(new Runnable() {
-			public void run() {
-				// create ZNode <root>-gc/orphans/<KvsKey>
-				String path = gcOrphansDir + "/" + Utils.getKvsKey(key, ts);
-				byte[] value = new Metadata(ts, null, 0, savedReplicas, null).serialize();
+	/**
+	 * Creates a GC marker ZNode or merges it with the existing one.
+	 */
+	private void mergeGcMarker(String path, byte[] marker) throws Exception {
+		while (true) {
+			Stat stat = new Stat();
+			byte[] existing;
+			try {
+				existing = this.zkCli.getData().storingStatIn(stat).forPath(path);
+			} catch (KeeperException.NoNodeException e) {
 				try {
-					ZkRmds.this.zkCli.create().forPath(path, value);
-					logger.debug("GcMarker: marked {} as orphan", path);
-				} catch (KeeperException e) {
-					if (e.code() != KeeperException.Code.NODEEXISTS)
-						logger.warn("GcMarker: could not create orphan node " + path, e);
-				} catch (Exception e) {
-					logger.warn("GcMarker: could not create orphan node " + path, e);
+					this.zkCli.create().forPath(path, marker);
+					logger.debug("GcMarker: created {}", path);
+					return;
+				} catch (KeeperException.NodeExistsException e1) {
+					continue;
 				}
 			}
-		}).start();
+			try {
+				this.zkCli.setData().withVersion(stat.getVersion()).forPath(path, 
+						GcMarkerQueue.merge(existing, marker));
+				logger.debug("GcMarker: merged {}", path);
+				return;
+			} catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+				// changed or collected in the meantime: retry
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#getDroppedGcMarkers()
+	 */
+	public long getDroppedGcMarkers() {
+		return this.gcMarkers.getDroppedMarkers();
 	}
 
 	/*
@@ -473,7 +612,7 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 	 */
 	public Map<String, Metadata> getOrphans() throws HybrisException {
 		try {
-			return this.getAllChildrenMetadata(this.gcOrphansDir);
+			return this.getGcMarkers(this.gcOrphansDir, null);
 		} catch (Exception e) {
 			logger.error("Could not get all the metadata from children ZNodes of " + this.gcOrphansDir, e);
 			throw new HybrisException(e);
@@ -483,18 +622,81 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see fr.eurecom.hybris.mds.Mds1#getStaleKeys()
+	 * @see fr.eurecom.hybris.mds.Mds1#getStale()
 	 */
-	public List<String> getStaleKeys() throws HybrisException {
+	public Map<String, Metadata> getStale() throws HybrisException {
+		try {
+			return this.getGcMarkers(this.gcStaleDir, null);
+		} catch (Exception e) {
+			logger.error("Could not get all the metadata from children ZNodes of " + this.gcStaleDir, e);
+			throw new HybrisException(e);
+		}
+	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#getStale(java.lang.String)
+	 */
+	public Map<String, Metadata> getStale(String key) throws HybrisException {
 		try {
-			return this.zkCli.getChildren().forPath(this.gcStaleDir);
+			return this.getGcMarkers(this.gcStaleDir, key);
 		} catch (Exception e) {
-			logger.error("Could not list the children of ZNode " + this.storageRoot, e);
+			logger.error("Could not get the stale markers of " + key, e);
 			throw new HybrisException(e);
 		}
 	}
 
+	/**
+	 * Reads the GC markers of a directory. Only the names of the other 
+	 * markers are listed when key is set, as ZooKeeper cannot filter children.
+	 * @param dir
+	 * @param key - only read the markers of key, if not null
+	 * @return a map of Kvs keys and their metadata; markers written without
+	 *         metadata only hold the timestamp of their Kvs key
+	 * @throws Exception
+	 */
+	private Map<String, Metadata> getGcMarkers(String dir, String key) throws Exception {
+
+		HashMap<String, Metadata> markers = new HashMap<String, Metadata>();
+		for (String znode : this.zkCli.getChildren().forPath(dir)) {
+			if (key != null && !key.equals(Utils.getKeyFromKvsKey(znode)))
+				continue;
+			String znodePath = dir + "/" + znode;
+			byte[] rawMd;
+			try {
+				rawMd = this.zkCli.getData().forPath(znodePath);
+			} catch (KeeperException e) {
+				if (e.code() != KeeperException.Code.NONODE)
+					logger.warn("Could not read GC marker " + znodePath, e);
+				continue;
+			}
+			Metadata md = parseGcMarker(znode, rawMd);
+			if (md != null)
+				markers.put(znode, md);
+		}
+		return markers;
+	}
+
+	/**
+	 * @return the metadata of a GC marker, or null if it cannot be parsed
+	 */
+	static Metadata parseGcMarker(String kvsKey, byte[] rawMd) {
+		if (rawMd != null && rawMd.length > 0)
+			try {
+				return new Metadata(rawMd);
+			} catch (RuntimeException e) {
+				logger.warn("Could not parse GC marker " + kvsKey);
+				return null;
+			}
+		try {	// legacy marker: the replicas are unknown
+			return new Metadata(Utils.getTimestampfromKvsKey(kvsKey), null, 0, null, null);
+		} catch (RuntimeException e) {
+			logger.warn("Malformed GC marker " + kvsKey);
+			return null;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -518,18 +720,20 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see fr.eurecom.hybris.mds.Mds1#removeStaleKey(java.lang.String)
+	 * @see fr.eurecom.hybris.mds.Mds1#removeStaleKeys(java.util.Set)
 	 */
-	public void removeStaleKey(String staleKey) {
+	public void removeStaleKeys(Set<String> staleKeys) {
 
-		String znodePath = this.gcStaleDir + "/" + staleKey;
-		try {
-			this.zkCli.delete().forPath(znodePath);
-		} catch (KeeperException e) {
-			if (e.code() != KeeperException.Code.NONODE)
-				logger.warn("Could not delete orphan ZNode " + znodePath, e);
-		} catch (Exception e) {
-			logger.warn("Could not delete orphan ZNode " + znodePath, e);
+		for (String key : staleKeys) {
+			String znodePath = this.gcStaleDir + "/" + key;
+			try {
+				this.zkCli.delete().forPath(znodePath);
+			} catch (KeeperException e) {
+				if (e.code() != KeeperException.Code.NONODE)
+					logger.warn("Could not delete stale ZNode " + znodePath, e);
+			} catch (Exception e) {
+				logger.warn("Could not delete stale ZNode " + znodePath, e);
+			}
 		}
 	}
 
@@ -541,7 +745,7 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 	public void emptyStaleAndOrphansContainers() throws HybrisException {
 
 		try {
-			for (String path : new String[] { this.gcOrphansDir, this.gcStaleDir }) {
+			for (String path : new String[] { this.gcOrphansDir, this.gcStaleDir, this.gcCheckpointsDir }) {
 				List<String> znodes = this.zkCli.getChildren().forPath(path);
 				for (String key : znodes) {
 					String znode = path + "/" + key;
@@ -554,6 +758,94 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#getGcCheckpoint(java.lang.String)
+	 */
+	public String getGcCheckpoint(String id) throws HybrisException {
+
+		String znodePath = this.gcCheckpointsDir + "/" + id;
+		try {
+			return new String(this.zkCli.getData().forPath(znodePath), "UTF-8");
+		} catch (KeeperException e) {
+			if (e.code() == KeeperException.Code.NONODE)
+				return null;
+			throw new HybrisException("Could not read the GC checkpoint " + znodePath, e);
+		} catch (Exception e) {
+			throw new HybrisException("Could not read the GC checkpoint " + znodePath, e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#setGcCheckpoint(java.lang.String, java.lang.String)
+	 */
+	public void setGcCheckpoint(String id, String checkpoint) throws HybrisException {
+
+		String znodePath = this.gcCheckpointsDir + "/" + id;
+		try {
+			if (checkpoint == null)
+				this.zkCli.delete().forPath(znodePath);
+			else
+				try {
+					this.zkCli.setData().forPath(znodePath, checkpoint.getBytes("UTF-8"));
+				} catch (KeeperException e) {
+					if (e.code() != KeeperException.Code.NONODE)
+						throw e;
+					this.zkCli.create().forPath(znodePath, checkpoint.getBytes("UTF-8"));
+				}
+		} catch (KeeperException e) {
+			if (e.code() != KeeperException.Code.NONODE)
+				throw new HybrisException("Could not write the GC checkpoint " + znodePath, e);
+		} catch (Exception e) {
+			throw new HybrisException("Could not write the GC checkpoint " + znodePath, e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#acquireGcLeadership(java.lang.String)
+	 */
+	public boolean acquireGcLeadership(String clientId) {
+
+		String znodePath = this.gcRoot + "/leader";
+		try {
+			// ephemeral ZNode <root>-gc/leader, removed when the session of the leader expires
+			this.zkCli.create().withMode(CreateMode.EPHEMERAL).forPath(znodePath, clientId.getBytes("UTF-8"));
+			logger.info("GC: {} is the GC leader", clientId);
+			return true;
+		} catch (KeeperException e) {
+			if (e.code() != KeeperException.Code.NODEEXISTS) {
+				logger.warn("GC: could not create the leader ZNode", e);
+				return false;
+			}
+		} catch (Exception e) {
+			logger.warn("GC: could not create the leader ZNode", e);
+			return false;
+		}
+		return this.isGcLeader(znodePath);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see fr.eurecom.hybris.mds.Rmds#releaseGcLeadership()
+	 */
+	public void releaseGcLeadership() {
+
+		String znodePath = this.gcRoot + "/leader";
+		if (!this.isGcLeader(znodePath))
+			return;
+		try {
+			this.zkCli.delete().forPath(znodePath);
+		} catch (Exception e) {
+			logger.warn("GC: could not delete the leader ZNode", e);
+		}
+	}
+
 	/*
 	 * -------------------------------------------------------------------------
 	 * Private methods
@@ -587,7 +879,13 @@ public class ZkRmds implements Rmds, ConnectionStateListener {
 			} catch (Exception e) {
 				logger.warn("Could not read metadata for ZNode " + znodePath, e);
 			}
-			Metadata md = new Metadata(rawMd);
+			Metadata md;
+			try {
+				md = new Metadata(rawMd);
+			} catch (RuntimeException e) {
+				logger.warn("Could not parse metadata of ZNode " + znodePath);
+				continue;
+			}
 			if (!md.isTombstone())
 				retMap.put(znode, md);
 		}
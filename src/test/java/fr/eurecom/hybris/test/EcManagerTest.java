@@ -16,16 +16,27 @@
 package fr.eurecom.hybris.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import eu.vandertil.jerasure.jni.ReedSolomon;
 import fr.eurecom.hybris.EcManager;
 import fr.eurecom.hybris.HybrisException;
+import fr.eurecom.hybris.ec.CodingScheme;
+import fr.eurecom.hybris.ec.ErasureCodec;
+import fr.eurecom.hybris.ec.JavaReedSolomonCodec;
+import fr.eurecom.hybris.ec.JerasureCodec;
 
 public class EcManagerTest extends HybrisAbstractTest {
 
@@ -228,4 +239,204 @@ public class EcManagerTest extends HybrisAbstractTest {
             }
         }
     }
+
+    @Test
+    public void testPaddingBoundaries() throws HybrisException {
+
+        int k = 3, m = 2;
+        int alignment = k * 256;
+        for (int size : new int[] { 1, alignment - 1, alignment, alignment + 1, 7 * alignment }) {
+            byte[] data = new byte[size];
+            this.random.nextBytes(data);
+
+            byte[][] encoded = ecManager.encode(data, k, m);
+            int blockSize = ((size + alignment - 1) / alignment) * alignment / k;
+            for (byte[] block : encoded)
+                assertEquals(blockSize, block.length);
+
+            // lose the first data block and the last coding block
+            byte[][] dataC = new byte[k][];
+            byte[][] coding = new byte[m][];
+            for (int i=0; i<k; i++)
+                dataC[i] = encoded[i];
+            for (int i=0; i<m; i++)
+                coding[i] = encoded[k+i];
+            dataC[0] = new byte[blockSize];
+            coding[m-1] = new byte[blockSize];
+            int[] erasures = { 0, k + m - 1, -1 };
+
+            assertArrayEquals(data, ecManager.decode(dataC, coding, erasures, k, m, size));
+        }
+    }
+
+    @Test
+    public void testStripedEncodeDecode() throws HybrisException {
+
+        int k = 3, m = 2;
+        CodingScheme scheme = CodingScheme.REED_SOL_VAN;
+        int stripeSize = ecManager.getStripeSize(10000, k, m, scheme);
+        assertEquals(0, stripeSize % (k * 256));
+        int size = 4 * stripeSize + 1234;
+        byte[] data = new byte[size];
+        this.random.nextBytes(data);
+
+        // chunk i is the concatenation of the i-th block of each stripe
+        int chunkSize = ecManager.getStripedChunkSize(size, k, m, stripeSize, scheme);
+        byte[][] chunks = new byte[k+m][chunkSize];
+        int chunkOffset = 0;
+        for (int offset=0; offset<size; offset+=stripeSize) {
+            int length = Math.min(stripeSize, size - offset);
+            byte[][] blocks = ecManager.encode(Arrays.copyOfRange(data, offset, offset + length), k, m);
+            for (int i=0; i<k+m; i++)
+                System.arraycopy(blocks[i], 0, chunks[i], chunkOffset, blocks[i].length);
+            chunkOffset += blocks[0].length;
+        }
+        assertEquals(chunkSize, chunkOffset);
+
+        byte[][] dataC = Arrays.copyOfRange(chunks, 0, k);
+        byte[][] coding = Arrays.copyOfRange(chunks, k, k+m);
+        dataC[1] = new byte[chunkSize];
+        coding[0] = new byte[chunkSize];
+        int[] erasures = { 1, k, -1 };
+
+        assertArrayEquals(data, ecManager.decodeStriped(dataC, coding, erasures, k, m, size, stripeSize, scheme));
+    }
+
+    @Test
+    public void testBitmatrixSchemes() throws HybrisException {
+
+        EcManager bitmatrixManager = new EcManager(EcManager.CODEC_JERASURE, CodingScheme.CAUCHY_GOOD);
+        assertEquals(CodingScheme.CAUCHY_GOOD, bitmatrixManager.getScheme(3, 2));
+
+        int[][] params = { { 3, 2 }, { 4, 3 } };
+        for (CodingScheme scheme : new CodingScheme[] { CodingScheme.CAUCHY_GOOD, CodingScheme.LIBERATION })
+            for (int[] km : params) {
+                int k = km[0], m = km[1];
+                if (!scheme.supports(k, m))
+                    continue;
+                for (int size : new int[] { 1, 1000, 100 * 1024 + 7 }) {
+                    byte[] data = new byte[size];
+                    this.random.nextBytes(data);
+                    byte[][] encoded = bitmatrixManager.encode(data, size, k, m, scheme);
+                    int blockSize = encoded[0].length;
+
+                    // lose m blocks: the first data block and the last coding blocks
+                    byte[][] dataC = Arrays.copyOfRange(encoded, 0, k);
+                    byte[][] coding = Arrays.copyOfRange(encoded, k, k+m);
+                    int[] erasures = new int[m + 1];
+                    dataC[0] = new byte[blockSize];
+                    erasures[0] = 0;
+                    for (int i=1; i<m; i++) {
+                        coding[m-i] = new byte[blockSize];
+                        erasures[i] = k + m - i;
+                    }
+                    erasures[m] = -1;
+
+                    assertArrayEquals(scheme + " k=" + k + " m=" + m, data, 
+                            bitmatrixManager.decode(dataC, coding, erasures, k, m, size, scheme));
+                }
+            }
+
+        // Liberation only supports m = 2
+        EcManager liberationManager = new EcManager(EcManager.CODEC_JERASURE, CodingScheme.LIBERATION);
+        assertEquals(CodingScheme.LIBERATION, liberationManager.getScheme(5, 2));
+        assertEquals(CodingScheme.REED_SOL_VAN, liberationManager.getScheme(5, 3));
+    }
+
+    @Test
+    public void testJavaCodecCompatibility() {
+
+        ErasureCodec jni = new JerasureCodec();
+        ErasureCodec java = new JavaReedSolomonCodec();
+        int blockSize = 512;
+
+        int[][] kms = { {1, 1}, {2, 1}, {2, 2}, {3, 2}, {10, 5}, {17, 25}, {128, 128} };
+        for (int[] km : kms) {
+            int k = km[0], m = km[1];
+            assertArrayEquals(ReedSolomon.reed_sol_vandermonde_coding_matrix(k, m, 8),
+                    JavaReedSolomonCodec.vandermondeCodingMatrix(k, m));
+
+            byte[][] data = new byte[k][blockSize];
+            for (int i=0; i<k; i++)
+                this.random.nextBytes(data[i]);
+            byte[][] jniCoding = new byte[m][blockSize];
+            byte[][] javaCoding = new byte[m][blockSize];
+            jni.encode(k, m, data, jniCoding, blockSize);
+            java.encode(k, m, data, javaCoding, blockSize);
+            for (int i=0; i<m; i++)
+                assertArrayEquals(jniCoding[i], javaCoding[i]);
+        }
+    }
+
+    @Test
+    public void testCodecErasures() {
+
+        ErasureCodec jni = new JerasureCodec();
+        ErasureCodec java = new JavaReedSolomonCodec();
+        int k = 4, m = 3, blockSize = 1024;
+
+        byte[][] data = new byte[k][blockSize];
+        for (int i=0; i<k; i++)
+            this.random.nextBytes(data[i]);
+        byte[][] coding = new byte[m][blockSize];
+        jni.encode(k, m, data, coding, blockSize);
+
+        int[][] patterns = { {0, -1}, {4, -1}, {1, 2, -1}, {0, 5, -1}, {0, 1, 2, -1}, {3, 4, 6, -1} };
+        // each pattern is decoded twice, the second time with cached matrices
+        for (int round=0; round<2; round++)
+            for (ErasureCodec codec : new ErasureCodec[] { jni, java })
+                for (int[] erasures : patterns) {
+                    byte[][] dataC = new byte[k][];
+                    byte[][] codingC = new byte[m][];
+                    for (int i=0; i<k; i++)
+                        dataC[i] = data[i].clone();
+                    for (int i=0; i<m; i++)
+                        codingC[i] = coding[i].clone();
+                    for (int i=0; erasures[i] != -1; i++)
+                        if (erasures[i] < k)    dataC[erasures[i]] = new byte[blockSize];
+                        else                    codingC[erasures[i] - k] = new byte[blockSize];
+
+                    assertTrue(codec.decode(k, m, erasures, dataC, codingC, blockSize));
+                    for (int i=0; i<k; i++)
+                        assertArrayEquals(data[i], dataC[i]);
+                    for (int i=0; i<m; i++)
+                        assertArrayEquals(coding[i], codingC[i]);
+                }
+
+        assertFalse(jni.decode(k, m, new int[] {0, 1, 2, 3, -1}, data, coding, blockSize));
+        assertFalse(java.decode(k, m, new int[] {0, 1, 2, 3, -1}, data, coding, blockSize));
+    }
+
+    @Ignore
+    @Test
+    public void testCodecThroughput() {
+
+        ErasureCodec[] codecs = { new JerasureCodec(), new JavaReedSolomonCodec() };
+        int k = 4, m = 2, blockSize = 4 * 1024 * 1024, rounds = 20;
+
+        byte[][] data = new byte[k][blockSize];
+        for (int i=0; i<k; i++)
+            this.random.nextBytes(data[i]);
+        byte[][] coding = new byte[m][blockSize];
+        int[] erasures = { 0, 1, -1 };
+
+        for (ErasureCodec codec : codecs) {
+            for (int i=0; i<rounds; i++)    // warm-up
+                codec.encode(k, m, data, coding, blockSize);
+
+            long start = System.nanoTime();
+            for (int i=0; i<rounds; i++)
+                codec.encode(k, m, data, coding, blockSize);
+            long encNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i=0; i<rounds; i++)
+                codec.decode(k, m, erasures, data, coding, blockSize);
+            long decNs = System.nanoTime() - start;
+
+            double mb = (double) rounds * k * blockSize / (1024 * 1024);
+            System.out.println(String.format("%s: encode %.1f MB/s, decode (2 erasures) %.1f MB/s",
+                    codec.getClass().getSimpleName(), mb / (encNs / 1e9), mb / (decNs / 1e9)));
+        }
+    }
 }
@@ -16,6 +16,7 @@
 package fr.eurecom.hybris.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
@@ -152,6 +153,29 @@ public class HybrisCacheTest extends HybrisAbstractTest {
         assertArrayEquals(value, retrieved);
     }
 
+    @Ignore
+    @Test
+    public void testErasureCodedCache() throws IOException, HybrisException {
+        hybris = new Hybris("zk", zkTestingServer.getConnectString(), mdsRoot, true, accountsFile,
+                kvsRoot, false, clientId, 1, 6000, 6000, false, false, true, memAddr, 5000, "onwrite", true, 2);
+        MemcachedClient cacheClient = new MemcachedClient(new BinaryConnectionFactory(),
+                AddrUtil.getAddresses(memAddr));
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[5000];
+        this.random.nextBytes(value);
+        hybris.put(key, value);
+
+        String kvsKey = Utils.getKvsKey(key, new Timestamp(0, clientId));
+        assertNotNull(cacheClient.get(kvsKey + "#0"));      // data chunks
+        assertNotNull(cacheClient.get(kvsKey + "#1"));
+        assertNull(cacheClient.get(kvsKey + "#2"));
+
+        cacheClient.delete(kvsKey + "#1");                  // partial hit
+        byte[] retrieved = hybris.get(key);
+        assertArrayEquals(value, retrieved);
+    }
+
     @Test
     public void testMemcachedNotAvailable() {
         try {
@@ -20,19 +20,35 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
 
 import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.data.Stat;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.google.common.io.ByteStreams;
+
+import fr.eurecom.hybris.EcManager;
 import fr.eurecom.hybris.GcManager;
 import fr.eurecom.hybris.Hybris;
 import fr.eurecom.hybris.HybrisException;
+import fr.eurecom.hybris.Scrubber;
+import fr.eurecom.hybris.Utils;
+import fr.eurecom.hybris.kvs.drivers.Kvs;
+import fr.eurecom.hybris.kvs.drivers.TransientKvs;
+import fr.eurecom.hybris.mds.Metadata;
+import fr.eurecom.hybris.mds.ZkRmds;
 
 
 public class HybrisTest extends HybrisAbstractTest {
@@ -166,6 +182,275 @@ public class HybrisTest extends HybrisAbstractTest {
         new GcManager(hr)._emptyContainers();
     }
     
+    @Test
+    public void testStreamingErasureCoding() throws HybrisException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[3 * 1048576 + 4321];   // > hybris.erasurecoding.stripesize
+        this.random.nextBytes(value);
+
+        Hybris hec = new Hybris("zk", zkTestingServer.getConnectString(), "hybris", true, "accounts-test.properties",
+                "hybris-test-container", false, null, 1, 600, 600, false, false, false, "", 0, "", true, 2);
+
+        hec.put(key, new ByteArrayInputStream(value), value.length);
+        assertArrayEquals(value, hec.get(key));
+
+        hec.delete(key);
+        assertNull(hec.get(key));
+    }
+    
+    @Test
+    public void testStreamingRepair() throws Exception {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[3 * 1048576 + 4321];   // > hybris.erasurecoding.stripesize
+        this.random.nextBytes(value);
+
+        // k = 2, m = 1: the write fails if a chunk is dropped
+        FaultyHybris hec = new FaultyHybris(1, true, 2);
+        hec.failStreamedPuts();
+        try {
+            hec.put(key, new ByteArrayInputStream(value), value.length);
+            fail();
+        } catch (HybrisException e) {  }
+
+        // k = 2, m = 2: the chunk dropped while streaming is rebuilt in background
+        hec = new FaultyHybris(2, true, 2);
+        hec.setEcWriteQuorum(3);
+        hec.failStreamedPuts();
+        hec.put(key, new ByteArrayInputStream(value), value.length);
+        assertArrayEquals(value, hec.get(key));
+        ZkRmds mds = new ZkRmds(zkTestingServer.getConnectString(), "hybris", true);
+        for (int i=0; i<50 && mds.tsRead(key, null).getMissingChunks() != 0; i++)
+            Thread.sleep(100);
+        assertEquals(0, mds.tsRead(key, null).getMissingChunks());
+        assertEquals(4, hec.countValidChunks(key));
+        assertArrayEquals(value, hec.get(key));
+        mds.shutdown();
+
+        hec.delete(key);
+    }
+
+    @Test
+    public void testEcWriteQuorum() throws Exception {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[100000];
+        this.random.nextBytes(value);
+
+        // k = 2, m = 2: the write completes once 3 chunks are stored
+        Hybris hec = new Hybris("zk", zkTestingServer.getConnectString(), "hybris", true, "accounts-test.properties",
+                "hybris-test-container", false, null, 2, 600, 600, false, false, false, "", 0, "", true, 2);
+        hec.setEcWriteQuorum(3);
+        hec.put(key, value);
+        assertArrayEquals(value, hec.get(key));
+
+        // missing chunks are eventually uploaded and recorded in the metadata
+        ZkRmds mds = new ZkRmds(zkTestingServer.getConnectString(), "hybris", true);
+        Metadata md = mds.tsRead(key, null);
+        for (int i=0; i<50 && md.getMissingChunks() != 0; i++) {
+            Thread.sleep(100);
+            md = mds.tsRead(key, null);
+        }
+        assertEquals(0, md.getMissingChunks());
+        assertEquals(4, md.getReplicasLst().size());
+        assertArrayEquals(value, hec.get(key));
+        mds.shutdown();
+
+        hec.delete(key);
+        assertNull(hec.get(key));
+
+        // the chunks left for repair must fit the metadata bitmask
+        hec = new Hybris("zk", zkTestingServer.getConnectString(), "hybris", true, "accounts-test.properties",
+                "hybris-test-container", false, null, 1, 600, 600, false, false, false, "", 0, "", true, 
+                Metadata.MAX_MISSING_CHUNKS);
+        hec.setEcWriteQuorum(Metadata.MAX_MISSING_CHUNKS + 1);
+        try {
+            hec.setEcWriteQuorum(Metadata.MAX_MISSING_CHUNKS);
+            fail();
+        } catch (IllegalArgumentException e) {  }
+    }
+    
+    /**
+     * Gives access to the cloud stores of a client, to simulate faults.
+     */
+    private static class FaultyHybris extends Hybris {
+
+        public FaultyHybris(int t, boolean ecEnabled, int k) throws HybrisException {
+            super("zk", zkTestingServer.getConnectString(), "hybris", true, "accounts-test.properties",
+                    "hybris-test-container", false, null, t, 600, 600, false, false, false, "", 0, "", ecEnabled, k);
+        }
+
+        /** Overwrites the first chunk or replica found with random bytes. */
+        public void corruptCopy(String key, Random random) throws Exception {
+            Metadata md = this.mds.tsRead(key, null);
+            String kvsKey = Utils.getKvsKey(key, md.getTs());
+            for (Kvs kvStore : this.kvs.getKvsList()) {
+                byte[] chunk = this.kvs.get(kvStore, kvsKey);
+                if (chunk != null) {
+                    chunk = new byte[chunk.length];     // stores may share the written array
+                    random.nextBytes(chunk);
+                    this.kvs.put(kvStore, kvsKey, chunk);
+                    return;
+                }
+            }
+        }
+
+        /** Deletes the first chunk or replica found. */
+        public void deleteCopy(String key) throws Exception {
+            Metadata md = this.mds.tsRead(key, null);
+            String kvsKey = Utils.getKvsKey(key, md.getTs());
+            for (Kvs kvStore : this.kvs.getKvsList())
+                if (this.kvs.get(kvStore, kvsKey) != null) {
+                    this.kvs.delete(kvStore, kvsKey);
+                    return;
+                }
+        }
+
+        /** Makes streamed puts to the fastest cloud store for writes fail midway. */
+        public void failStreamedPuts() {
+            Kvs failing = new TransientKvs("transient", "", "", "hybris-test-container", true, 0) {
+                public void put(String key, InputStream value, long length) throws IOException {
+                    ByteStreams.readFully(value, new byte[(int) Math.min(length, 1024)]);
+                    throw new IOException("Simulated streaming failure");
+                }
+            };
+            Kvs replaced = this.kvs.getKvsSortedByWriteLatency().get(0);
+            for (List<Kvs> lst : Arrays.asList(this.kvs.getKvsList(), this.kvs.getKvsSortedByReadLatency(),
+                    this.kvs.getKvsSortedByWriteLatency()))
+                for (int i=0; i<lst.size(); i++)
+                    if (lst.get(i) == replaced)
+                        lst.set(i, failing);
+        }
+
+        /** Overwrites the missing-chunk mask recorded in the metadata. */
+        public void setMissingChunks(String key, int mask) throws Exception {
+            Stat stat = new Stat();
+            Metadata md = this.mds.tsRead(key, stat);
+            md.setMissingChunks(mask);
+            this.mds.tsWrite(key, md, stat.getVersion());
+        }
+
+        /** Overwrites the compression codec recorded in the metadata. */
+        public void setCompression(String key, int codecId) throws Exception {
+            Stat stat = new Stat();
+            Metadata md = this.mds.tsRead(key, stat);
+            md.setCompression(codecId);
+            this.mds.tsWrite(key, md, stat.getVersion());
+        }
+
+        /** @return the number of stored replicas matching the metadata */
+        public int countValidReplicas(String key) throws Exception {
+            Metadata md = this.mds.tsRead(key, null);
+            String kvsKey = Utils.getKvsKey(key, md.getTs());
+            int valid = 0;
+            for (Kvs kvStore : this.kvs.getKvsList()) {
+                byte[] value = this.kvs.get(kvStore, kvsKey);
+                if (value != null && Arrays.equals(md.getHash(), Utils.getHash(value, md.getHashLeafSize())))
+                    valid++;
+            }
+            return valid;
+        }
+
+        /** @return the number of stored chunks matching the metadata */
+        public int countValidChunks(String key) throws Exception {
+            Metadata md = this.mds.tsRead(key, null);
+            String kvsKey = Utils.getKvsKey(key, md.getTs());
+            byte[][] chunks = new byte[md.getChunksHashes().length][];
+            int valid = 0;
+            for (Kvs kvStore : this.kvs.getKvsList()) {
+                byte[] chunk = this.kvs.get(kvStore, kvsKey);
+                int idx = chunk == null ? -1 : EcManager.getChunkIndex(chunk, md.getChunksHashes(), chunks);
+                if (idx >= 0) {
+                    chunks[idx] = chunk;
+                    valid++;
+                }
+            }
+            return valid;
+        }
+    }
+    
+    @Test
+    public void testScrubber() throws Exception {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[100000];
+        this.random.nextBytes(value);
+
+        FaultyHybris hec = new FaultyHybris(1, true, 2);
+        hec.put(key, value);
+        Scrubber scrubber = new Scrubber(hec);
+        assertEquals(0, scrubber.scrub(key));
+
+        hec.corruptCopy(key, this.random);
+        assertEquals(2, hec.countValidChunks(key));
+        assertEquals(1, scrubber.scrub(key));
+        assertEquals(3, hec.countValidChunks(key));
+        assertArrayEquals(value, hec.get(key));
+
+        // a whole pass over the metadata finds nothing left to repair
+        while (!scrubber.scrub(1));
+        assertEquals(1, scrubber.getRepairedChunks());
+
+        // chunks still being uploaded by the RepairManager are left alone
+        hec.setMissingChunks(key, 0x7);
+        hec.deleteCopy(key);
+        assertEquals(0, scrubber.scrub(key));
+        assertEquals(2, hec.countValidChunks(key));
+        hec.setMissingChunks(key, 0);
+        assertEquals(1, scrubber.scrub(key));
+        assertEquals(3, hec.countValidChunks(key));
+
+        hec.delete(key);
+    }
+    
+    @Test
+    public void testUnknownCompressionCodec() throws Exception {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[1000];
+        this.random.nextBytes(value);
+
+        FaultyHybris hr = new FaultyHybris(1, false, 0);
+        hr.put(key, value);
+        hr.setCompression(key, 99);     // e.g. written by a newer client
+        try {
+            hr.get(key);
+            fail();
+        } catch (HybrisException e) {  }
+
+        hr.delete(key);
+    }
+
+    @Test
+    public void testReplicaRepair() throws Exception {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        byte[] value = new byte[1000];
+        this.random.nextBytes(value);
+
+        FaultyHybris hr = new FaultyHybris(1, false, 0);
+        hr.put(key, value);
+        assertEquals(2, hr.countValidReplicas(key));
+
+        // read-repair: the tampered replica is rewritten in background
+        hr.corruptCopy(key, this.random);
+        assertEquals(1, hr.countValidReplicas(key));
+        assertArrayEquals(value, hr.get(key));
+        for (int i=0; i<50 && hr.countValidReplicas(key) < 2; i++)
+            Thread.sleep(100);
+        assertEquals(2, hr.countValidReplicas(key));
+
+        // re-replication after the loss of a replica
+        hr.deleteCopy(key);
+        assertEquals(1, hr.countValidReplicas(key));
+        assertEquals(1, hr.getRepairManager().rereplicate());
+        assertEquals(2, hr.countValidReplicas(key));
+        assertArrayEquals(value, hr.get(key));
+
+        hr.delete(key);
+    }
+    
     //    @Ignore
     //    @Test
     //    public void testParallelWrite() throws HybrisException {
@@ -16,10 +16,15 @@
 package fr.eurecom.hybris.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
 
 import org.junit.Test;
 
@@ -93,4 +98,106 @@ public class UtilsTest extends HybrisAbstractTest {
         } catch(GeneralSecurityException | UnsupportedEncodingException ge) {
         }
     }
+
+    @Test
+    public void testSegmentedEncryption() throws GeneralSecurityException {
+
+        int segmentSize = 1024;
+        byte[] key = new byte[Utils.CRYPTO_KEY_LENGTH];
+        this.random.nextBytes(key);
+
+        for (int size : new int[] { 0, 1, segmentSize, 10 * segmentSize + 17 }) {
+            byte[] value = new byte[size];
+            this.random.nextBytes(value);
+
+            byte[] cipherText = Utils.encryptSegmented(value, key, segmentSize);
+            assertArrayEquals(value, Utils.decryptSegmented(cipherText, key, segmentSize));
+
+            // fresh nonces on each encryption
+            assertFalse(Arrays.equals(cipherText, Utils.encryptSegmented(value, key, segmentSize)));
+        }
+
+        byte[] value = new byte[5 * segmentSize + 3];
+        this.random.nextBytes(value);
+        byte[] cipherText = Utils.encryptSegmented(value, key, segmentSize);
+
+        // any tampered segment is detected
+        byte[] tampered = Arrays.copyOf(cipherText, cipherText.length);
+        tampered[(int) Utils.getSegmentOffset(3, segmentSize) + 7] ^= 0x01;
+        try {
+            Utils.decryptSegmented(tampered, key, segmentSize);
+            fail();
+        } catch (GeneralSecurityException e) { }
+
+        // dropping whole trailing segments is detected
+        byte[] truncated = Arrays.copyOf(cipherText, (int) Utils.getSegmentOffset(3, segmentSize));
+        try {
+            Utils.decryptSegmented(truncated, key, segmentSize);
+            fail();
+        } catch (GeneralSecurityException e) { }
+
+        // wrong key
+        byte[] otherKey = new byte[Utils.CRYPTO_KEY_LENGTH];
+        this.random.nextBytes(otherKey);
+        try {
+            Utils.decryptSegmented(cipherText, otherKey, segmentSize);
+            fail();
+        } catch (GeneralSecurityException e) { }
+    }
+
+    @Test
+    public void testCompression() throws DataFormatException {
+
+        byte[] value = new byte[100 * 1024];
+        for (int i=0; i<value.length; i++)
+            value[i] = (byte) ('a' + this.random.nextInt(4));
+        assertTrue(Utils.isCompressible(value, 0.9));
+        byte[] compressed = Utils.compress(value);
+        assertTrue(compressed.length < value.length);
+        assertArrayEquals(value, Utils.decompress(compressed));
+
+        // random data is not worth compressing, but still round-trips
+        this.random.nextBytes(value);
+        assertFalse(Utils.isCompressible(value, 0.9));
+        assertArrayEquals(value, Utils.decompress(Utils.compress(value)));
+
+        byte[] small = "hello hello hello hello".getBytes();
+        assertArrayEquals(small, Utils.decompress(Utils.compress(small)));
+        assertFalse(Utils.isCompressible(new byte[0], 0.9));
+        assertArrayEquals(new byte[0], Utils.decompress(Utils.compress(new byte[0])));
+
+        try {
+            Utils.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+            fail();
+        } catch (DataFormatException e) { }
+    }
+
+    @Test
+    public void testTreeHash() {
+
+        int leafSize = 1024;
+        byte[] value = new byte[10 * leafSize + 17];
+        this.random.nextBytes(value);
+
+        byte[] treeHash = Utils.getHash(value, leafSize);
+        assertEquals(Utils.HASH_LENGTH, treeHash.length);
+
+        // the root does not depend on how the work gets scheduled
+        assertArrayEquals(treeHash, Utils.getHash(Arrays.copyOf(value, value.length), leafSize));
+
+        // sequential and tree hashes are never mixed up
+        assertFalse(Arrays.equals(Utils.getHash(value), treeHash));
+        assertArrayEquals(Utils.getHash(value), Utils.getHash(value, 0));
+
+        // a different leaf size yields a different root
+        assertFalse(Arrays.equals(treeHash, Utils.getHash(value, 2 * leafSize)));
+
+        // any modified leaf changes the root
+        value[5 * leafSize + 3] ^= 0x01;
+        assertFalse(Arrays.equals(treeHash, Utils.getHash(value, leafSize)));
+
+        // empty values and single leaves
+        assertEquals(Utils.HASH_LENGTH, Utils.getHash(new byte[0], leafSize).length);
+        assertEquals(Utils.HASH_LENGTH, Utils.getHash(new byte[leafSize], leafSize).length);
+    }
 }
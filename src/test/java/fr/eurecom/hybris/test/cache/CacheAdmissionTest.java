@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.test.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import fr.eurecom.hybris.cache.CacheAdmission;
+import fr.eurecom.hybris.test.HybrisAbstractTest;
+
+public class CacheAdmissionTest extends HybrisAbstractTest {
+
+    @Test
+    public void testSizeRules() {
+        CacheAdmission admission = new CacheAdmission(1000, 1, "tmp/:0, img/:100000, img/thumbs/:500");
+
+        assertTrue(admission.admit("key", 1000));
+        assertFalse(admission.admit("key", 1001));
+        assertFalse(admission.admit("tmp/key", 1));
+        assertTrue(admission.admit("img/key", 50000));
+        assertFalse(admission.admit("img/thumbs/key", 1000));     // longest prefix
+        assertTrue(admission.admit("img/thumbs/key", 500));
+
+        assertEquals(3, admission.getAdmitted());
+        assertEquals(3, admission.getRejected());
+    }
+
+    @Test
+    public void testDoorkeeper() {
+        CacheAdmission admission = new CacheAdmission(1000, 2, "");
+
+        admission.record("key");
+        assertFalse(admission.admit("key", 10));    // one-hit wonder
+        admission.record("key");
+        assertTrue(admission.admit("key", 10));
+        assertFalse(admission.admit("other", 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRule() {
+        new CacheAdmission(1000, 1, "prefix");
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.test.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import fr.eurecom.hybris.cache.DiskCache;
+import fr.eurecom.hybris.test.HybrisAbstractTest;
+
+public class DiskCacheTest extends HybrisAbstractTest {
+
+    private String newCacheDir() throws IOException {
+        File dir = Files.createTempDirectory("hybris-diskcache").toFile();
+        dir.deleteOnExit();
+        return dir.getPath();
+    }
+
+    /* insertions are written in order, in background */
+    private void waitForKey(DiskCache cache, String key) throws InterruptedException {
+        for (int i=0; i<100 && cache.get(key) == null; i++)
+            Thread.sleep(50);
+    }
+
+    @Test
+    public void testBasicGetPut() throws Exception {
+        DiskCache cache = new DiskCache(this.newCacheDir(), 1024 * 1024);
+        byte[] value = new byte[1000];
+        this.random.nextBytes(value);
+
+        assertNull(cache.get("key#0_c"));
+        cache.put("key#0_c", value);
+        this.waitForKey(cache, "key#0_c");
+        assertArrayEquals(value, cache.get("key#0_c"));
+        assertEquals(value.length, cache.getSize());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(value.length, cache.transferTo("key#0_c", Channels.newChannel(out)));
+        assertArrayEquals(value, out.toByteArray());
+        assertEquals(-1, cache.transferTo("missing", Channels.newChannel(out)));
+
+        cache.put("large", new byte[2 * 1024 * 1024]);  // larger than the quota
+        cache.close();
+        assertNull(cache.get("large"));
+    }
+
+    @Test
+    public void testQuotaAndRestart() throws Exception {
+        String dir = this.newCacheDir();
+        int quota = 20 * 1000;
+        byte[][] values = new byte[50][];
+
+        DiskCache cache = new DiskCache(dir, quota);
+        for (int i=0; i<values.length; i++) {
+            values[i] = new byte[1000];
+            this.random.nextBytes(values[i]);
+            cache.put("key" + i, values[i]);
+        }
+        this.waitForKey(cache, "key49");
+        assertTrue(cache.getSize() <= quota);
+        assertNull(cache.get("key0"));
+        assertArrayEquals(values[49], cache.get("key49"));
+        cache.get("key30");     // most recently used
+        int count = cache.getCount();
+        cache.close();
+        assertEquals(count + 1, new File(dir).list().length);  // values and journal
+
+        cache = new DiskCache(dir, 5 * 1000);    // smaller quota: the least recently used are dropped
+        assertEquals(5, cache.getCount());
+        assertArrayEquals(values[30], cache.get("key30"));
+        assertArrayEquals(values[49], cache.get("key49"));
+        assertNull(cache.get("key31"));
+        cache.close();
+    }
+}
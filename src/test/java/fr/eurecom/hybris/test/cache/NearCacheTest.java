@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.test.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import fr.eurecom.hybris.cache.FrequencySketch;
+import fr.eurecom.hybris.cache.NearCache;
+import fr.eurecom.hybris.test.HybrisAbstractTest;
+
+public class NearCacheTest extends HybrisAbstractTest {
+
+    @Test
+    public void testBasicGetPut() {
+        NearCache cache = new NearCache(1024 * 1024);
+        byte[] value = new byte[100];
+        this.random.nextBytes(value);
+
+        assertNull(cache.get("key#0_c"));
+        cache.put("key#0_c", value);
+        byte[] cached = cache.get("key#0_c");
+        assertArrayEquals(value, cached);
+
+        cached[0]++;    // entries are copied in and out
+        assertArrayEquals(value, cache.get("key#0_c"));
+        value[0]++;
+        assertTrue(cache.get("key#0_c")[0] != value[0]);
+
+        assertEquals(1, cache.getCount());
+        assertEquals(100, cache.getSize());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.put("large", new byte[2 * 1024 * 1024]);  // larger than the cache
+        assertNull(cache.get("large"));
+    }
+
+    @Test
+    public void testBoundedSize() {
+        int capacity = 64 * 1024;
+        NearCache cache = new NearCache(capacity);
+        for (int i=0; i<1000; i++)
+            cache.put("key" + i, new byte[1000]);
+        assertTrue(cache.getSize() <= capacity);
+        assertTrue(cache.getCount() > 0);
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void testFrequentEntriesSurviveScans() {
+        NearCache cache = new NearCache(100 * 1000);
+        for (int i=0; i<20; i++) {
+            cache.put("hot" + i, new byte[1000]);
+            for (int j=0; j<5; j++)
+                assertNotNull(cache.get("hot" + i));
+        }
+
+        for (int i=0; i<10000; i++) {    // one-hit wonders, while hot entries keep being read
+            cache.get("scan" + i);
+            cache.put("scan" + i, new byte[1000]);
+            cache.get("hot" + i % 20);
+        }
+
+        for (int i=0; i<20; i++)
+            assertNotNull(cache.get("hot" + i));
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        assertEquals(0, sketch.frequency("key"));
+        for (int i=0; i<5; i++)
+            sketch.increment("key");
+        assertEquals(5, sketch.frequency("key"));
+        for (int i=0; i<100; i++)
+            sketch.increment("key");
+        assertEquals(15, sketch.frequency("key"));  // saturated
+
+        for (int i=0; i<20000; i++)     // aging
+            sketch.increment("other" + i);
+        assertTrue(sketch.frequency("key") < 15);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.test.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import fr.eurecom.hybris.cache.NegativeCache;
+import fr.eurecom.hybris.test.HybrisAbstractTest;
+
+public class NegativeCacheTest extends HybrisAbstractTest {
+
+    @Test
+    public void testAddAndInvalidate() {
+        NegativeCache cache = new NegativeCache(100, 60000);
+
+        assertFalse(cache.contains("key"));
+        assertTrue(cache.add("key"));       // watch to set
+        assertTrue(cache.contains("key"));
+
+        cache.remove("key");                // written: the watch is still pending
+        assertFalse(cache.contains("key"));
+        assertFalse(cache.add("key"));
+        assertTrue(cache.contains("key"));
+
+        cache.invalidate("key");            // watch fired
+        assertFalse(cache.contains("key"));
+        assertTrue(cache.add("key"));
+
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testBounds() throws InterruptedException {
+        NegativeCache cache = new NegativeCache(10, 100);
+        for (int i=0; i<10; i++)
+            assertTrue(cache.add("key" + i));
+        assertFalse(cache.add("other"));    // too many watches pending
+        assertFalse(cache.contains("other"));
+        assertEquals(10, cache.getCount());
+
+        cache.invalidate("key0");
+        assertTrue(cache.add("other"));
+        assertTrue(cache.contains("other"));
+
+        Thread.sleep(200);                  // expired
+        assertFalse(cache.contains("other"));
+    }
+}
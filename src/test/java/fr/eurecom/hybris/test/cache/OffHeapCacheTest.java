@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.test.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import fr.eurecom.hybris.cache.OffHeapCache;
+import fr.eurecom.hybris.test.HybrisAbstractTest;
+
+public class OffHeapCacheTest extends HybrisAbstractTest {
+
+    @Test
+    public void testBasicGetPut() throws IOException {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024, null);
+        byte[] value = new byte[100];
+        this.random.nextBytes(value);
+
+        assertNull(cache.getBytes("key#0_c"));
+        cache.put("key#0_c", value);
+        byte[] cached = cache.getBytes("key#0_c");
+        assertArrayEquals(value, cached);
+        cached[0]++;                                    // a copy
+        assertArrayEquals(value, cache.getBytes("key#0_c"));
+
+        assertEquals(1, cache.getCount());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.put("large", new byte[2 * 1024 * 1024]);  // larger than the cache
+        assertNull(cache.getBytes("large"));
+    }
+
+    @Test
+    public void testRingEviction() throws IOException {
+        OffHeapCache cache = new OffHeapCache(64 * 1024, null);
+        byte[][] values = new byte[500][];
+        for (int i=0; i<values.length; i++) {
+            values[i] = new byte[500 + this.random.nextInt(1000)];
+            this.random.nextBytes(values[i]);
+            cache.put("key" + i, values[i]);
+        }
+
+        assertTrue(cache.getCount() > 0);
+        assertTrue(cache.getCount() < values.length);
+        assertNull(cache.getBytes("key0"));
+        assertArrayEquals(values[values.length - 1], cache.getBytes("key" + (values.length - 1)));
+        for (int i=0; i<values.length; i++) {
+            byte[] cached = cache.getBytes("key" + i);
+            if (cached != null)
+                assertArrayEquals(values[i], cached);
+        }
+    }
+
+    @Test
+    public void testMappedFileReuse() throws IOException {
+        File file = File.createTempFile("hybris-offheap", ".cache");
+        file.deleteOnExit();
+        byte[][] values = new byte[300][];
+
+        OffHeapCache cache = new OffHeapCache(128 * 1024, file.getPath());
+        for (int i=0; i<values.length; i++) {
+            values[i] = new byte[1000];
+            this.random.nextBytes(values[i]);
+            cache.put("key" + i, values[i]);
+        }
+        int count = cache.getCount();
+        cache.close();
+
+        cache = new OffHeapCache(128 * 1024, file.getPath());
+        assertEquals(count, cache.getCount());
+        for (int i=values.length - count; i<values.length; i++)
+            assertArrayEquals(values[i], cache.getBytes("key" + i));
+
+        cache.put("new", values[0]);     // keeps on writing after the reused records
+        assertArrayEquals(values[0], cache.getBytes("new"));
+        assertArrayEquals(values[values.length - 1], cache.getBytes("key" + (values.length - 1)));
+        cache.close();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2013 EURECOM (www.eurecom.fr)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.eurecom.hybris.test.kvs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+import fr.eurecom.hybris.kvs.BlockPipe;
+import fr.eurecom.hybris.test.HybrisAbstractTest;
+
+public class BlockPipeTest extends HybrisAbstractTest {
+
+    @Test
+    public void testStream() throws Exception {
+        final BlockPipe pipe = new BlockPipe(1);
+        byte[] value = new byte[10000];
+        this.random.nextBytes(value);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<byte[]> read = executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return ByteStreams.toByteArray(pipe.getInputStream());
+            }
+        });
+        for (int offset=0; offset<value.length; offset+=1000) {
+            byte[] block = new byte[1000];
+            System.arraycopy(value, offset, block, 0, 1000);
+            pipe.write(block, 10, TimeUnit.SECONDS);
+        }
+        pipe.close(10, TimeUnit.SECONDS);
+        assertArrayEquals(value, read.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testStalledReader() throws IOException {
+        BlockPipe pipe = new BlockPipe(1);
+        pipe.write(new byte[10], 100, TimeUnit.MILLISECONDS);
+        long start = System.currentTimeMillis();
+        try {
+            pipe.write(new byte[10], 100, TimeUnit.MILLISECONDS);     // nobody reads
+            fail();
+        } catch (IOException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void testClosedReaderAndAbort() throws IOException {
+        BlockPipe pipe = new BlockPipe(1);
+        pipe.getInputStream().close();     // e.g. the upload failed
+        try {
+            pipe.write(new byte[10], 100, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (IOException e) {  }
+
+        pipe = new BlockPipe(1);
+        InputStream in = pipe.getInputStream();
+        pipe.write(new byte[10], 100, TimeUnit.MILLISECONDS);
+        pipe.abort();
+        try {
+            in.read(new byte[10]);
+            fail();
+        } catch (IOException e) {  }
+    }
+}
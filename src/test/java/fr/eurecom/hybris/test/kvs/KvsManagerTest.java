@@ -15,6 +15,7 @@
  */
 package fr.eurecom.hybris.test.kvs;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -25,6 +26,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.After;
@@ -89,6 +91,46 @@ public class KvsManagerTest extends HybrisAbstractTest {
             assertNull(kvs.get(replica, key));
     }
 
+    @Test
+    public void testDeleteBatch() throws IOException {
+
+        Kvs provider = kvs.getKvsList().get(0);
+        List<String> keys = new ArrayList<String>();
+        byte[] value = new BigInteger(50, this.random).toString(32).getBytes();
+        for (int i=0; i<10; i++) {
+            String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+            kvs.put(provider, key, value);
+            keys.add(key);
+        }
+        keys.add(this.TEST_KEY_PREFIX + "notexisting");
+
+        assertTrue(kvs.deleteBatch(provider, keys).isEmpty());
+        for (String key : keys)
+            assertNull(kvs.get(provider, key));
+    }
+
+    @Test
+    public void testPagedList() throws IOException {
+
+        Kvs provider = kvs.getKvsList().get(0);
+        List<String> keys = new ArrayList<String>();
+        byte[] value = new BigInteger(50, this.random).toString(32).getBytes();
+        for (int i=0; i<7; i++) {
+            String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+            kvs.put(provider, key, value);
+            keys.add(key);
+        }
+        Collections.sort(keys);
+
+        List<String> listed = new ArrayList<String>();
+        List<String> page;
+        while (!(page = kvs.list(provider, listed.isEmpty() ? null : listed.get(listed.size() - 1), 3)).isEmpty()) {
+            assertTrue(page.size() <= 3);
+            listed.addAll(page);
+        }
+        assertEquals(keys, listed);
+    }
+
     @Test
     public void testOverwrite() {
 
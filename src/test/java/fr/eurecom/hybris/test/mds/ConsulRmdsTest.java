@@ -556,4 +556,46 @@ public class ConsulRmdsTest extends HybrisAbstractTest {
         assertEquals(1, allMd.size());
         assertEquals(md, allMd.get(key2));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGcMarkers() throws HybrisException, InterruptedException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        replicas.add(new TransientKvs("transient", "A-accessKey", "A-secretKey", "container", true, 10));
+
+        int num = 250;
+        for (int i=0; i<num; i++)
+            mds.markOrphanKey(key, new Timestamp(i, "clientXYZ"), replicas);
+
+        Map<String, Metadata> orphans = mds.getOrphans();
+        for (int i=0; i<100 && orphans.size() < num; i++) {
+            Thread.sleep(100);
+            orphans = mds.getOrphans();
+        }
+        assertEquals(num, orphans.size());
+        for (int i=0; i<num; i++)
+            assertEquals(replicas, orphans.get(Utils.getKvsKey(key, new Timestamp(i, "clientXYZ"))).getReplicasLst());
+
+        mds.removeOrphanKeys(orphans.keySet());     // all collected: cleared in bulk
+        assertEquals(0, mds.getOrphans().size());
+    }
+
+    @Test
+    public void testGcLeadership() throws Exception {
+
+        ConsulRmds other = new ConsulRmds("http://localhost:" + consul.getHttpPort(), MDS_TEST_ROOT, true);
+        assertTrue(mds.acquireGcLeadership("client1"));
+        assertTrue(mds.acquireGcLeadership("client1"));     // re-entrant
+        assertFalse(other.acquireGcLeadership("client2"));
+
+        other.releaseGcLeadership();                        // not the leader: no effect
+        assertTrue(mds.acquireGcLeadership("client1"));
+
+        mds.releaseGcLeadership();
+        assertTrue(other.acquireGcLeadership("client2"));
+        assertFalse(mds.acquireGcLeadership("client1"));
+        other.releaseGcLeadership();
+        other.shutdown();
+    }
+}
@@ -25,11 +25,14 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
 import fr.eurecom.hybris.Utils;
+import fr.eurecom.hybris.Utils.CompressionCodec;
+import fr.eurecom.hybris.ec.CodingScheme;
 import fr.eurecom.hybris.kvs.drivers.Kvs;
 import fr.eurecom.hybris.kvs.drivers.TransientKvs;
 import fr.eurecom.hybris.mds.Metadata;
@@ -171,6 +174,87 @@ public class MetadataTest extends HybrisAbstractTest {
         assertEquals(2, mddes.getReplicasLst().size());
     }
 
+    @Test
+    public void testExtAttributesSerialization() {
+
+        Timestamp ts = new Timestamp(this.random.nextInt(100), Utils.generateClientId());
+        byte[] hash = new byte[Utils.HASH_LENGTH];
+        this.random.nextBytes(hash);
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        replicas.add(new TransientKvs("transient", "A-accessKey", "A-secretKey", "container", true, 20));
+        replicas.add(new TransientKvs("transient", "B-accessKey", "B-secretKey", "container", true, 20));
+
+        Metadata md = new Metadata(ts, hash, 3000000, replicas, null);
+        md.setHashLeafSize(1048576);
+
+        Metadata mddes = new Metadata(md.serialize());
+        assertEquals(md, mddes);
+        assertEquals(1048576, mddes.getHashLeafSize());
+        assertArrayEquals(hash, mddes.getHash());
+        assertNull(mddes.getCryptoKey());
+        assertEquals(2, mddes.getReplicasLst().size());
+
+        // no extended attributes: the original layout is kept
+        md.setHashLeafSize(0);
+        mddes = new Metadata(md.serialize());
+        assertEquals(md, mddes);
+        assertEquals(0, mddes.getHashLeafSize());
+
+        byte[] cryptoKey = new byte[Utils.CRYPTO_KEY_LENGTH];
+        this.random.nextBytes(cryptoKey);
+        md = new Metadata(ts, hash, 3000000, replicas, cryptoKey);
+        md.setCryptoSegmentSize(65536);
+        mddes = new Metadata(md.serialize());
+        assertEquals(md, mddes);
+        assertEquals(65536, mddes.getCryptoSegmentSize());
+        assertArrayEquals(cryptoKey, mddes.getCryptoKey());
+
+        md.setCompression(CompressionCodec.DEFLATE.getId());
+        mddes = new Metadata(md.serialize());
+        assertEquals(md, mddes);
+        assertEquals(CompressionCodec.DEFLATE, CompressionCodec.fromId(mddes.getCompression()));
+
+        md.setEcScheme(CodingScheme.CAUCHY_GOOD.getId());
+        mddes = new Metadata(md.serialize());
+        assertEquals(md, mddes);
+        assertEquals(CodingScheme.CAUCHY_GOOD, CodingScheme.fromId(mddes.getEcScheme()));
+
+        md.setMissingChunks(1 << 0 | 1 << 3);
+        mddes = new Metadata(md.serialize());
+        assertEquals(md, mddes);
+        assertEquals(9, mddes.getMissingChunks());
+    }
+
+    @Test
+    public void testUnknownExtAttribute() {
+
+        Timestamp ts = new Timestamp(this.random.nextInt(100), Utils.generateClientId());
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        replicas.add(new TransientKvs("transient", "A-accessKey", "A-secretKey", "container", true, 20));
+        Metadata md = new Metadata(ts, new byte[Utils.HASH_LENGTH], 3000000, replicas, null);
+        md.setHashLeafSize(1048576);
+        byte[] raw = md.serialize();
+
+        // an attribute written by a newer client, before the hash leaf size attribute
+        byte[] leafSizeAttr = { 0x01, 0x03, (byte) 0x80, (byte) 0x80, 0x40 };
+        byte[] unknownAttr = { 0x7F, 0x02, (byte) 0xAA, (byte) 0xBB };
+        int pos = -1;
+        for (int i=0; pos < 0 && i <= raw.length - leafSizeAttr.length; i++)
+            if (Arrays.equals(leafSizeAttr, Arrays.copyOfRange(raw, i, i + leafSizeAttr.length)))
+                pos = i;
+        assertTrue(pos > 0);
+        byte[] extended = new byte[raw.length + unknownAttr.length];
+        System.arraycopy(raw, 0, extended, 0, pos);
+        System.arraycopy(unknownAttr, 0, extended, pos, unknownAttr.length);
+        System.arraycopy(raw, pos, extended, pos + unknownAttr.length, raw.length - pos);
+
+        Metadata mddes = new Metadata(extended);
+        assertEquals(md, mddes);
+        assertEquals(1048576, mddes.getHashLeafSize());
+        assertEquals(3000000, mddes.getSize());
+        assertEquals(1, mddes.getReplicasLst().size());
+    }
+
     @Test
     public void testTombstone() {
         int n = this.random.nextInt(100);
@@ -26,12 +26,19 @@ import static org.junit.Assert.fail;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
 import org.apache.curator.test.TestingServer;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
@@ -547,4 +554,188 @@ public class ZkRmdsTest extends HybrisAbstractTest {
         assertEquals(1, allMd.size());
         assertEquals(md, allMd.get(key2));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testStaleMarkers() throws Exception {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        Timestamp ts1 = new Timestamp(1, Utils.generateClientId());
+        Timestamp ts2 = new Timestamp(2, Utils.generateClientId());
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        replicas.add(new TransientKvs("transient", "A-accessKey", "A-secretKey", "container", true, 10));
+
+        mds.markStaleKey(key, ts1, replicas);
+        mds.markStaleKey(key, ts2, replicas);
+        mds.markStaleKey(key + "-other", ts1, replicas);
+
+        Map<String, Metadata> stale = mds.getStale();
+        for (int i=0; i<50 && stale.size() < 3; i++) {     // markers are written asynchronously
+            Thread.sleep(100);
+            stale = mds.getStale();
+        }
+        assertEquals(3, stale.size());
+        stale = mds.getStale(key);
+        assertEquals(2, stale.size());
+        assertEquals(ts1, stale.get(Utils.getKvsKey(key, ts1)).getTs());
+        assertEquals(replicas, stale.get(Utils.getKvsKey(key, ts2)).getReplicasLst());
+
+        // markers written without metadata by former versions
+        Timestamp ts3 = new Timestamp(3, Utils.generateClientId());
+        CuratorFramework zkCli = CuratorFrameworkFactory.newClient(zkTestingServer.getConnectString(), 
+                new RetryOneTime(100));
+        zkCli.start();
+        zkCli.create().forPath("/" + MDS_TEST_ROOT + "-gc/stale/" + Utils.getKvsKey(key, ts3), new byte[0]);
+        zkCli.close();
+        stale = mds.getStale(key);
+        assertEquals(3, stale.size());
+        assertEquals(ts3, stale.get(Utils.getKvsKey(key, ts3)).getTs());
+        assertNull(stale.get(Utils.getKvsKey(key, ts3)).getReplicasLst());
+
+        mds.removeStaleKeys(mds.getStale().keySet());
+        assertEquals(0, mds.getStale().size());
+    }
+
+    @Test
+    public void testGcMarkerBatches() throws HybrisException, InterruptedException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        List<Kvs> replicas = new ArrayList<Kvs>();
+        replicas.add(new TransientKvs("transient", "A-accessKey", "A-secretKey", "container", true, 10));
+
+        int num = 250;      // several batches, with duplicates coalesced or skipped
+        for (int i=0; i<num; i++) {
+            mds.markOrphanKey(key, new Timestamp(i, "clientXYZ"), replicas);
+            mds.markOrphanKey(key, new Timestamp(i / 2, "clientXYZ"), replicas);
+        }
+
+        Map<String, Metadata> orphans = mds.getOrphans();
+        for (int i=0; i<100 && orphans.size() < num; i++) {
+            Thread.sleep(100);
+            orphans = mds.getOrphans();
+        }
+        assertEquals(num, orphans.size());
+        for (int i=0; i<num; i++)
+            assertEquals(replicas, orphans.get(Utils.getKvsKey(key, new Timestamp(i, "clientXYZ"))).getReplicasLst());
+    }
+
+    @Test
+    public void testOrphanMarkersMerge() throws HybrisException, InterruptedException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        Timestamp ts = new Timestamp(1, "clientXYZ");
+        Kvs a = new TransientKvs("transient", "A-accessKey", "A-secretKey", "container", true, 10);
+        Kvs b = new TransientKvs("faulty", "B-accessKey", "B-secretKey", "container", true, 10);
+
+        mds.markOrphanKey(key, ts, Arrays.asList(a));
+        Map<String, Metadata> orphans = mds.getOrphans();
+        for (int i=0; i<100 && orphans.isEmpty(); i++) {
+            Thread.sleep(100);
+            orphans = mds.getOrphans();
+        }
+        mds.markOrphanKey(key, ts, Arrays.asList(b));      // the marker exists already
+
+        List<Kvs> replicas = orphans.get(Utils.getKvsKey(key, ts)).getReplicasLst();
+        for (int i=0; i<100 && replicas.size() < 2; i++) {
+            Thread.sleep(100);
+            replicas = mds.getOrphans().get(Utils.getKvsKey(key, ts)).getReplicasLst();
+        }
+        assertEquals(Arrays.asList(a, b), replicas);
+    }
+
+    @Test
+    public void testGcLeadership() throws Exception {
+
+        ZkRmds other = new ZkRmds(zkTestingServer.getConnectString(), MDS_TEST_ROOT, true);
+        try {
+            assertTrue(mds.acquireGcLeadership("client1"));
+            assertTrue(mds.acquireGcLeadership("client1"));     // re-entrant
+            assertFalse(other.acquireGcLeadership("client2"));
+
+            other.releaseGcLeadership();                        // not the leader: no effect
+            assertTrue(mds.acquireGcLeadership("client1"));
+
+            mds.releaseGcLeadership();
+            assertTrue(other.acquireGcLeadership("client2"));
+            assertFalse(mds.acquireGcLeadership("client1"));
+        } finally {
+            other.shutdown();                                   // the ephemeral leader node goes away
+        }
+        assertTrue(mds.acquireGcLeadership("client1"));
+        mds.releaseGcLeadership();
+    }
+
+    @Test
+    public void testPagedList() throws HybrisException {
+
+        List<String> keys = new ArrayList<String>();
+        Timestamp ts = new Timestamp(1, Utils.generateClientId());
+        byte[] hash = new byte[Utils.HASH_LENGTH];
+        this.random.nextBytes(hash);
+        Metadata md = new Metadata(ts, hash, 11, new ArrayList<Kvs>(), null);
+        for (int i=0; i<7; i++) {
+            String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+            mds.tsWrite(key, md, ZkRmds.NONODE);
+            keys.add(key);
+        }
+        mds.delete(keys.get(0), Metadata.getTombstone(new Timestamp(2, "clientXYZ")), -1);
+        Collections.sort(keys);
+
+        List<String> listed = new ArrayList<String>();
+        String marker = null;
+        SortedMap<String, Metadata> page;
+        while (!(page = mds.list(marker, 3)).isEmpty()) {
+            assertTrue(page.size() <= 3);
+            listed.addAll(page.keySet());
+            marker = page.lastKey();
+        }
+        assertEquals(keys, listed);     // tombstones included
+
+        // the following pages of a scan are served from the listing of its first page
+        page = mds.list(null, 3);
+        String lateKey = keys.get(keys.size() - 1) + "-late";
+        mds.tsWrite(lateKey, md, ZkRmds.NONODE);
+        listed = new ArrayList<String>(page.keySet());
+        marker = page.lastKey();
+        while (!(page = mds.list(marker, 3)).isEmpty()) {
+            listed.addAll(page.keySet());
+            marker = page.lastKey();
+        }
+        assertEquals(keys, listed);
+        List<String> expected = new ArrayList<String>(keys.subList(4, keys.size()));
+        expected.add(lateKey);
+        assertEquals(expected, new ArrayList<String>(mds.list(keys.get(3), 10).keySet()));
+
+        assertNull(mds.getGcCheckpoint("test"));
+        mds.setGcCheckpoint("test", keys.get(3));
+        assertEquals(keys.get(3), mds.getGcCheckpoint("test"));
+        mds.setGcCheckpoint("test", null);
+        assertNull(mds.getGcCheckpoint("test"));
+    }
+
+    @Test
+    public void testWatch() throws HybrisException, InterruptedException {
+
+        String key = this.TEST_KEY_PREFIX + new BigInteger(50, this.random).toString(32);
+        Metadata md = new Metadata(new Timestamp(1, Utils.generateClientId()), null, 0, new ArrayList<Kvs>(), null);
+        final CountDownLatch created = new CountDownLatch(1);
+        assertTrue(mds.watch(key, ZkRmds.NONODE, new Runnable() {
+            public void run() {
+                created.countDown();
+            }
+        }));
+        mds.tsWrite(key, md, ZkRmds.NONODE);
+        assertTrue(created.await(10, TimeUnit.SECONDS));
+
+        Stat stat = new Stat();
+        mds.tsRead(key, stat);
+        assertFalse(mds.watch(key, ZkRmds.NONODE, new Runnable() { public void run() { } }));
+        final CountDownLatch deleted = new CountDownLatch(1);
+        assertTrue(mds.watch(key, stat.getVersion(), new Runnable() {
+            public void run() {
+                deleted.countDown();
+            }
+        }));
+        mds.delete(key, Metadata.getTombstone(new Timestamp(2, "clientXYZ")), stat.getVersion());
+        assertTrue(deleted.await(10, TimeUnit.SECONDS));
+    }
+}